@@ -0,0 +1,86 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Walker/Vose alias table for drawing from a fixed discrete distribution in O(1) per draw. It is
+ * built once for a weight vector that many particles sample from (e.g., the transformed weights
+ * at a junction) and draws with a single uniform random number.
+ */
+public class AliasSampler
+{
+	private final double[] weights;
+	private final double[] prob;
+	private final int[] alias;
+	
+	public AliasSampler(double[] weights)
+	{
+		int n = weights.length;
+		double sum = 0.0;
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0, numLarge = 0, s, l, positive = 0;
+		
+		this.weights = weights;
+		prob = new double[n];
+		alias = new int[n];
+		
+		for(int i=0; i<n; i++)
+		{
+			sum += weights[i];
+			if(weights[i]>0) positive = i;
+		}
+		if(!(sum>0))
+		{
+			throw new IllegalArgumentException("AliasSampler weights must have a positive sum");
+		}
+		
+		// Scale so that the average weight is 1 and split the entries into under- and overfull
+		for(int i=0; i<n; i++)
+		{
+			scaled[i] = weights[i]*n/sum;
+			if(scaled[i]<1.0) small[numSmall++] = i;
+			else large[numLarge++] = i;
+		}
+		
+		// Fill each underfull entry with probability mass from an overfull one
+		while(numSmall>0 && numLarge>0)
+		{
+			s = small[--numSmall];
+			l = large[--numLarge];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if(scaled[l]<1.0) small[numSmall++] = l;
+			else large[numLarge++] = l;
+		}
+		
+		// Whatever is left is full up to rounding error, except a zero weight, which must never be drawn
+		while(numLarge>0)
+		{
+			l = large[--numLarge];
+			prob[l] = 1.0;
+			alias[l] = l;
+		}
+		while(numSmall>0)
+		{
+			s = small[--numSmall];
+			prob[s] = weights[s]>0 ? 1.0 : 0.0;
+			alias[s] = weights[s]>0 ? s : positive;
+		}
+	}
+	
+	public int sample(Random r)
+	{
+		double u = r.nextDouble()*prob.length;
+		int i = Math.min((int) u, prob.length-1);
+		
+		return (u-i<prob[i]) ? i : alias[i];
+	}
+	
+	public double[] getWeights()
+	{
+		return weights;
+	}
+}
@@ -0,0 +1,106 @@
+package DWR.DMS.PTM;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that AliasSampler draws the junction choices with the same distribution as
+ * Particle.weightedChoice, which scans the cumulative weights for one uniform draw scaled by their
+ * sum (reproduced here as weightedChoice, since the engine's method needs a particle). For each
+ * weight vector, including ones with zero weights and a single candidate, both methods draw the
+ * given number of choices. Their frequency tables are compared with a two-sample chi-square test,
+ * and a candidate with zero weight must never be drawn. The exit status is 1 if any check failed.
+ *
+ * Usage: java DWR.DMS.PTM.AliasSamplerCheck [-samples N] [-seed S] [-alpha 0.001|0.01|0.05]
+ */
+public class AliasSamplerCheck
+{
+	private static final double[][] WEIGHTS = {
+			{1.0, 1.0, 1.0},
+			{0.7, 0.2, 0.1},
+			{0.0, 3.0, 0.0, 1.0},
+			{5.0},
+			{0.0, 0.0, 2.5},
+			{1e-4, 1.0, 1000.0},
+			{0.05, 0.3, 0.15, 0.2, 0.1, 0.1, 0.05, 0.05}};
+
+	public static void main(String[] args)
+	{
+		int samples = 1000000;
+		long seed = 1;
+		double alpha = 0.001;
+		boolean passed = true;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-samples")) samples = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-seed")) seed = Long.parseLong(args[++i]);
+			else if(args[i].equals("-alpha")) alpha = Double.parseDouble(args[++i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		System.out.println(String.format("%-48s %4s %12s %10s %6s", "weights", "df", "chi2", "critical", "result"));
+		for(double[] weights : WEIGHTS)
+		{
+			passed &= check(weights, samples, new Random(seed), alpha);
+		}
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed) System.exit(1);
+	}
+
+	private static boolean check(double[] weights, int samples, Random generator, double alpha)
+	{
+		AliasSampler sampler = new AliasSampler(weights);
+		long[] weighted = new long[weights.length];
+		long[] alias = new long[weights.length];
+		double chi2 = 0.0, critical = 0.0;
+		int df = -1;
+		boolean passed = true;
+
+		for(int i=0; i<samples; i++)
+		{
+			weighted[weightedChoice(weights, generator)]++;
+			alias[sampler.sample(generator)]++;
+		}
+
+		for(int k=0; k<weights.length; k++)
+		{
+			if(weights[k]==0.0 && (weighted[k]>0 || alias[k]>0)) passed = false;
+			if(weighted[k] + alias[k]>0)
+			{
+				chi2 += (double) (weighted[k] - alias[k])*(weighted[k] - alias[k])/(weighted[k] + alias[k]);
+				df++;
+			}
+		}
+		if(df>0)
+		{
+			critical = AssessmentScheduleCheck.chiSquareQuantile(df, alpha);
+			passed &= chi2<=critical;
+		}
+
+		System.out.println(String.format("%-48s %4d %12.2f %10.2f %6s", Arrays.toString(weights), df, chi2, critical,
+				passed ? "ok" : "FAIL"));
+		return passed;
+	}
+
+	// The cumulative scan of Particle.weightedChoice
+	private static int weightedChoice(double[] weights, Random generator)
+	{
+		double sum = 0.0, cumulative = 0.0, u;
+
+		for(double w : weights) sum += w;
+		u = generator.nextDouble()*sum;
+		for(int i=0; i<weights.length; i++)
+		{
+			cumulative += weights[i];
+			if(u<cumulative) return i;
+		}
+		// Rounding; return the last candidate with a positive weight
+		for(int i=weights.length-1; i>0; i--)
+		{
+			if(weights[i]>0.0) return i;
+		}
+		return 0;
+	}
+}
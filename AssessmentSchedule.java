@@ -0,0 +1,35 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Schedule of the random confusion assessments made with randAssess on. A fish that assesses with
+ * probability probAssess in each time step, independently of the other steps, goes a geometric
+ * number of steps without an assessment before the next one: P(k steps) = (1-p)^k p. countdown
+ * draws that number directly, floor(ln(U)/ln(1-p)) with U uniform on (0, 1], so it takes one
+ * random number per assessment instead of one per time step. AssessmentScheduleCheck compares
+ * the two.
+ */
+public class AssessmentSchedule
+{
+	// Number of time steps without an assessment before the next one
+	public static int countdown(Random generator, float probAssess)
+	{
+		double steps;
+
+		if(probAssess>=1.0f) return 0;
+		if(probAssess<=0.0f) return Integer.MAX_VALUE;
+
+		steps = Math.floor(Math.log(1.0 - generator.nextDouble())/Math.log(1.0 - probAssess));
+		return steps>=Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) steps;
+	}
+
+	// The same number counted the way it was before the countdown: one draw per time step
+	public static int bernoulliSteps(Random generator, float probAssess)
+	{
+		int steps = 0;
+
+		while(generator.nextDouble()>=probAssess) steps++;
+		return steps;
+	}
+}
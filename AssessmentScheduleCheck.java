@@ -0,0 +1,111 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Checks that the geometric countdown of AssessmentSchedule gives the same distribution of
+ * assessment intervals as drawing a uniform in every time step. For each probAssess, both
+ * methods draw the given number of intervals. Their histograms (intervals of 0..bins-2 steps and
+ * a tail bin for the longer ones) are compared with a two-sample chi-square test, and the
+ * geometric histogram is also tested against the exact probabilities (1-p)^k p. The check fails if
+ * a statistic exceeds the chi-square quantile for the significance level, or if the interval
+ * count of probAssess 0 or 1 is wrong. The exit status is 1 if any check failed.
+ *
+ * Usage: java DWR.DMS.PTM.AssessmentScheduleCheck [-intervals N] [-seed S] [-alpha 0.001|0.01|0.05]
+ */
+public class AssessmentScheduleCheck
+{
+	private static final float[] PROB_ASSESS = {0.01f, 0.05f, 0.2f, 0.5f, 0.9f};
+
+	public static void main(String[] args)
+	{
+		int intervals = 1000000;
+		long seed = 1;
+		double alpha = 0.001;
+		boolean passed = true;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-intervals")) intervals = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-seed")) seed = Long.parseLong(args[++i]);
+			else if(args[i].equals("-alpha")) alpha = Double.parseDouble(args[++i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		System.out.println(String.format("%-10s %6s %10s %10s %10s %12s %12s %10s %6s", "probAssess", "bins", "mean(B)",
+				"mean(G)", "expected", "chi2(B vs G)", "chi2(G vs p)", "critical", "result"));
+		for(float p : PROB_ASSESS)
+		{
+			passed &= check(p, intervals, new Random(seed), alpha);
+		}
+
+		if(AssessmentSchedule.countdown(new Random(seed), 1.0f)!=0 || 
+				AssessmentSchedule.countdown(new Random(seed), 0.0f)!=Integer.MAX_VALUE)
+		{
+			System.out.println("countdown is wrong for probAssess 0 or 1");
+			passed = false;
+		}
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed) System.exit(1);
+	}
+
+	private static boolean check(float p, int intervals, Random generator, double alpha)
+	{
+		int bins = bins(p, intervals);
+		long[] bernoulli = new long[bins];
+		long[] geometric = new long[bins];
+		double sumB = 0.0, sumG = 0.0;
+		double twoSample = 0.0, fit = 0.0, expected, critical;
+		int steps, df = -1;
+		boolean passed;
+
+		for(int i=0; i<intervals; i++)
+		{
+			steps = AssessmentSchedule.bernoulliSteps(generator, p);
+			bernoulli[Math.min(steps, bins-1)]++;
+			sumB += steps;
+
+			steps = AssessmentSchedule.countdown(generator, p);
+			geometric[Math.min(steps, bins-1)]++;
+			sumG += steps;
+		}
+
+		for(int k=0; k<bins; k++)
+		{
+			// Probability of exactly k steps, or of at least k steps for the tail bin
+			expected = intervals*Math.pow(1.0 - p, k)*(k<bins-1 ? p : 1.0);
+			fit += (geometric[k] - expected)*(geometric[k] - expected)/expected;
+			if(bernoulli[k] + geometric[k]>0)
+			{
+				twoSample += (double) (bernoulli[k] - geometric[k])*(bernoulli[k] - geometric[k])/(bernoulli[k] + geometric[k]);
+				df++;
+			}
+		}
+		critical = chiSquareQuantile(bins-1, alpha);
+		passed = twoSample<=chiSquareQuantile(df, alpha) && fit<=critical;
+
+		System.out.println(String.format("%-10.2f %6d %10.4f %10.4f %10.4f %12.2f %12.2f %10.2f %6s", p, bins, sumB/intervals,
+				sumG/intervals, (1.0 - p)/p, twoSample, fit, critical, passed ? "ok" : "FAIL"));
+		return passed;
+	}
+
+	// Bins for 0, 1, ... steps, with at least about 50 intervals expected in the tail bin
+	private static int bins(float p, int intervals)
+	{
+		int bins = 2;
+
+		while(bins<500 && intervals*Math.pow(1.0 - p, bins)>=50.0) bins++;
+		return bins;
+	}
+
+	// Upper alpha quantile of the chi-square distribution (Wilson-Hilferty approximation). Also used
+	// by AliasSamplerCheck.
+	static double chiSquareQuantile(int df, double alpha)
+	{
+		double z = alpha<=0.001 ? 3.0902 : (alpha<=0.01 ? 2.3263 : 1.6449);
+		double h = 2.0/(9.0*df);
+
+		return df*Math.pow(1.0 - h + z*Math.sqrt(h), 3.0);
+	}
+}
@@ -6,39 +6,83 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
 import java.util.Calendar;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.File;
+import java.io.IOException;
 
 import javax.xml.bind.JAXBElement.GlobalScope;
 
 import ncsa.hdf.hdf5lib.exceptions.HDF5SymbolTableException;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
-import ch.systemsx.cisd.hdf5.IHDF5SimpleWriter;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
 
 /**
+ * In cohort mode (cohort/enabled) each particle stands for cohortWeight fish. Mortality reduces
+ * the weight instead of killing the particle, until it falls below cohortMinWeight, and the
+ * counters, reach survival and convergence estimates are weighted by it. At a junction the whole
+ * cohort follows the drawn choice. Splitting it between the choices would reduce the variance of
+ * its path, but the children would have to be adopted by the PTM engine, which owns the particle
+ * list and the IDs, so splitting is deferred until the engine can adopt child particles.
+ *
  * @author Doug Jackson
  * doug.jackson@noaa.gov
  */
 public class BehavedParticle extends Particle
 {	
 	// Static fields
-	public static String outputFilename = MainPTM.getBehaviorOutputFilename();
-	public static IHDF5SimpleWriter writer = initializeWriter();
+	public static String outputFilename = BehaviorShard.outputFilename(MainPTM.getBehaviorOutputFilename());
+	public static volatile IHDF5Writer writer;
+	public static BehaviorOutputLayout outputLayout;
+	public static BehaviorEventTable eventTable;
+	public static BehaviorOutputWindows outputWindows;
+	public static int writerWindow;
+	// Held for reading while an event is written, and for writing while the file is opened or rolled
+	private static final ReentrantReadWriteLock writerLock = new ReentrantReadWriteLock();
 	public static IHDF5SimpleReader reader;
+	public static IHDF5SimpleReader qualReader;
 	public static String behaviorParameterFile = MainPTM.getBehaviorInputFilename();
-	public static HashMap<String, double[]> ECVecHash = new HashMap<String, double[]>();
 	public static HashMap<Integer, Integer> nodeECHash = new HashMap<Integer, Integer>();
+	public static ChannelECTable channelEC;
+	public static ECFramePrefetcher ECFrames;
 	public static boolean ECEnabled;
+	public static volatile boolean ECInitialized = false;
 	public static boolean echoedSetpoints = false;
 	public static int tideCountThr;
 	public static boolean swimTime = true;
 	public static String sunriseTime, sunsetTime;
+	public static DielSchedule dielSchedule;
+	public static TrajectoryRecorder trajectoryRecorder = new TrajectoryRecorder();
+	public static ReachSurvivalEstimator reachSurvival = new ReachSurvivalEstimator();
+	public static BehaviorCounters counters = new BehaviorCounters();
+	public static ConvergenceMonitor convergence = new ConvergenceMonitor();
+	public static ParticleChangeBuffer changeBuffer = new ParticleChangeBuffer();
+	public static BehaviorPopulation population = new BehaviorPopulation();
 	public static boolean immortal = false;
+	public static final Set<BehavedParticle> liveParticles = ConcurrentHashMap.newKeySet();
+	public static final Set<Integer> finishedParticles = ConcurrentHashMap.newKeySet();
+	public static volatile int livePruneTime = Integer.MIN_VALUE;
+	public static int snapshotInterval = 0;
+	public static String snapshotFilename = "";
+	public static int nextSnapshotTime = -1;
+	public static BehaviorSnapshot restartSnapshot;
+	public static ConfusionProbabilityCache confusionCache = new ConfusionProbabilityCache();
+	public static NodeDecisionCache nodeDecisionCache = new NodeDecisionCache();
+	public static HashMap<Integer, double[][]> sharedTransformations = new HashMap<Integer, double[][]>();
+	public static boolean fastGaussian = false;
+	public static boolean cohortMode = false;
+	public static double cohortInitialWeight = 1.0;
+	public static double cohortMinWeight = 1.0;
 	
 	// Static initializer
+	// Only the behavior parameters are read here. The EC index and Qual access (initializeEC) and
+	// the output file (acquireWriter) are initialized the first time they are used, so runs that don't
+	// use EC, or that never record an event, don't pay for them.
 	static 
 	{
-		double[] ECUpNodes;
+		long start = System.nanoTime();
 		
 		// Open the HDF5 file that contains the parameter values
 		try
@@ -46,12 +90,23 @@ public class BehavedParticle extends Particle
 			reader = HDF5Factory.openForReading(behaviorParameterFile);
 			System.out.println("Opened " + behaviorParameterFile);
 			
-			// Create a HashMap to translate a node ID to an index into the EC vectors from QualData
-			ECUpNodes = reader.readDoubleArray("QualData/upNodes");
-			for(int i=0; i<ECUpNodes.length; i++)
-			{
-				nodeECHash.put((int)ECUpNodes[i], i);
-			}
+			// Read the snapshot settings. A restart must be known before the output file is opened
+			// because the existing output is kept.
+			readSnapshotSettings();
+			
+			// Read the storage layout for the output file
+			outputLayout = BehaviorOutputLayout.read(reader);
+			eventTable = new BehaviorEventTable(outputLayout);
+			
+			// Read the output window length. A restarted run keeps the window index up to the window
+			// that was open when the snapshot was taken.
+			outputWindows = BehaviorOutputWindows.read(reader, outputFilename);
+			if(restartSnapshot==null) outputWindows.startIndex();
+			else outputWindows.restartIndex(restartSnapshot.window);
+			
+			// Read the sampled trajectory settings
+			trajectoryRecorder = TrajectoryRecorder.read(reader, outputLayout);
+			if(trajectoryRecorder.isEnabled()) System.out.println("Recording " + trajectoryRecorder);
 			
 			// Read in the sunrise and sunset times and set the appropriate hours in MainPTM
 			sunriseTime = reader.readString("sunriseTime");
@@ -60,6 +115,14 @@ public class BehavedParticle extends Particle
 			MainPTM.sunriseMin = Integer.parseInt(sunriseTime.substring(2, 4));
 			MainPTM.sunsetHour = Integer.parseInt(sunsetTime.substring(0, 2));
 			MainPTM.sunsetMin = Integer.parseInt(sunsetTime.substring(2, 4));
+			
+			// Precompute the daytime/nighttime state, optionally with date-varying solar times
+			dielSchedule = new DielSchedule(sunriseTime, sunsetTime);
+			if(reader.exists("diel/dateVarying") && reader.readBoolean("diel/dateVarying"))
+			{
+				dielSchedule.setDateVarying(reader.readFloat("diel/latitude"), reader.readFloat("diel/longitude"), 
+						reader.readFloat("diel/utcOffset"));
+			}
 					
 			// Read in the tideCountThr and set the class variable in SmartChannel
 			tideCountThr = reader.readInt("tideCountThr");
@@ -68,9 +131,43 @@ public class BehavedParticle extends Particle
 			// Read in the immortal flag
 			immortal = reader.readBoolean("immortal");
 			
+			// Files written before the ziggurat generator was added keep the polar method, so they
+			// reproduce earlier runs
+			if(reader.exists("fastGaussian")) fastGaussian = reader.readBoolean("fastGaussian");
+			
+			// Optionally update the per-step behavior state of all fish in bulk
+			population = BehaviorPopulation.read(reader, fastGaussian);
+			if(population.isEnabled()) System.out.println("Updating the behavior state of the live fish in bulk each time step");
+			
+			// Print the run-wide counters every reportInterval minutes of model time
+			if(reader.exists("counters/reportInterval")) counters.reportInterval = reader.readInt("counters/reportInterval");
+			
+			// Read the early stopping settings for calibration runs
+			convergence = ConvergenceMonitor.read(reader);
+			if(convergence.isEnabled())
+			{
+				System.out.println("Stopping " + (convergence.endRun ? "the run" : "insertions") + " once the 95% intervals are narrower than " + 
+						convergence.targetWidth + " (at least " + convergence.minFish + " fish)");
+			}
+			
+			// Read the observer settings. In the batched modes, node and waterbody changes are
+			// buffered and handed to the consumers in bulk. A particle observer is still called
+			// for every change unless observer/synchronous is false.
+			changeBuffer = ParticleChangeBuffer.read(reader);
+			
+			// Read the cohort settings. In cohort mode each particle represents cohortWeight fish.
+			if(reader.exists("cohort/enabled")) cohortMode = reader.readBoolean("cohort/enabled");
+			if(cohortMode)
+			{
+				cohortInitialWeight = reader.readFloat("cohort/initialWeight");
+				cohortMinWeight = reader.readFloat("cohort/minWeight");
+				counters.weighted = true;
+				System.out.println("Cohort mode: initialWeight=" + cohortInitialWeight + ", minWeight=" + cohortMinWeight);
+			}
+			
 		} catch (HDF5SymbolTableException e)
 		{
-			System.out.println("Could not find either QualData/upNodes, tideCountThr, dielSwimPeriod, or immortal in the HDF5 file " + behaviorParameterFile);
+			System.out.println("Could not find either tideCountThr, dielSwimPeriod, or immortal in the HDF5 file " + behaviorParameterFile);
 			System.exit(2);
 		}catch (Exception e)
 		{
@@ -78,7 +175,24 @@ public class BehavedParticle extends Particle
 			System.out.println("Aborting execution");
 			System.exit(1);
 		} 
-				
+		
+		// A restarted run continues the run-wide totals from the snapshot, and the particles that had
+		// finished stay in the next snapshots
+		if(restartSnapshot!=null)
+		{
+			try
+			{
+				restartSnapshot.restoreTotals(reachSurvival, counters, convergence);
+			} catch (IOException e)
+			{
+				System.out.println("Failed to read the totals in the behavior snapshot: " + e.getMessage());
+				System.out.println("Aborting execution");
+				System.exit(1);
+			}
+			for(int id : restartSnapshot.finished) finishedParticles.add(id);
+		}
+		
+		System.out.println("Initialized behavior parameters in " + (System.nanoTime()-start)/1000000 + " ms");
 	}
 
 	// Behavior parameters
@@ -108,8 +222,12 @@ public class BehavedParticle extends Particle
 	public float confusionFactor;
 	public boolean randAssess;
 	public float probAssess;
+	// Number of time steps left before the next random assessment (-1 until the first one is drawn)
+	public int assessCountdown = -1;
 	public float initProbConfusion;
 	public boolean enteredSmartChannel;
+	// Time step in which BehaviorPopulation already updated the fish
+	public int populationStep = Integer.MIN_VALUE;
 	
 	// tide stage change threshold for behaviors 5 and 6
 	public float stageThresholdInc;
@@ -138,7 +256,7 @@ public class BehavedParticle extends Particle
     public HashMap<Integer, Double> channelStdSwimSpeed = new HashMap<Integer, Double>();
 	
 	// mortality parameters
-	Random generator = new Random();
+	BehaviorRandom generator = new BehaviorRandom();
 	public double realizedSurvProb;
 	
 	// Checkpoint parameters
@@ -149,6 +267,27 @@ public class BehavedParticle extends Particle
 	public int[] checkpoints;
 	public int[] checkpointsPassCount;
 	
+	// The daytime swim decision is made once per time step
+	public int swimTimeStep = -1;
+	public boolean swimTimeThisStep = true;
+	
+	// Swim velocity from the last call to calcXVelocityIntDeterministic
+	public float lastSwimVelocity = 0.0f;
+	
+	// Number of fish represented by the particle in cohort mode
+	public double cohortWeight;
+	
+	// Reach the fish is in for the reach survival estimate (null if none), when it entered the
+	// reach, and how many of the fish it represents are still alive in the reach
+	public String reachOrigin = null;
+	public int reachEntryTime;
+	public double reachWeight;
+	
+	// Whether the particle's state was restored from the restart snapshot
+	public boolean restored = false;
+	// Set while the engine inserts a restored particle, which doesn't make a node decision
+	private boolean placing = false;
+	
 	////////////////////////////////////////////////////////////////////
 	// Instance methods
 	////////////////////////////////////////////////////////////////////
@@ -156,6 +295,15 @@ public class BehavedParticle extends Particle
 	public BehavedParticle(ParticleFixedInfo pFI)
 	{		
 		super(pFI);
+		IHDF5Writer w;
+		
+		// In a sharded run each fish's random stream depends only on the base seed and its ID
+		if(BehaviorShard.isSeeded())
+		{
+			generator.setSeed(BehaviorShard.seed(getId()));
+		}
+		cohortWeight = cohortMode ? cohortInitialWeight : 1.0;
+		reachWeight = cohortWeight;
 		
 		// lastDecisionTime == -999.0f indicates that makeNodeDecision has never been run
 		lastDecisionAttemptTime = -999.0f;
@@ -193,10 +341,20 @@ public class BehavedParticle extends Particle
 			for(int i=0; i<nodeDecisions.length; i++)
 			{
 				if(!echoedSetpoints) System.out.println("Node decision " + Integer.toString(i) + " = " + Integer.toString(nodeDecisions[i]));
-				weightsTransformation.put(nodeDecisions[i], reader.readDoubleMatrix("weightsTransformation/weightsTransformation_" 
-						+ Integer.toString(nodeDecisions[i])));
-				if(!echoedSetpoints) writer.writeDoubleMatrix("weightsTransformation/weightsTransformation_" + Integer.toString(nodeDecisions[i]), 
-					weightsTransformation.get(nodeDecisions[i]));				
+				weightsTransformation.put(nodeDecisions[i], internTransformation(nodeDecisions[i], 
+						reader.readDoubleMatrix("weightsTransformation/weightsTransformation_" + Integer.toString(nodeDecisions[i]))));
+				if(!echoedSetpoints)
+				{
+					w = acquireWriter();
+					try
+					{
+						outputLayout.writeDoubleMatrix(w, "weightsTransformation/weightsTransformation_" + Integer.toString(nodeDecisions[i]), 
+								weightsTransformation.get(nodeDecisions[i]));
+					} finally
+					{
+						releaseWriter();
+					}
+				}
 			}
 			
 			// See if we need to update EC
@@ -260,26 +418,33 @@ public class BehavedParticle extends Particle
 						", daytimeSwimProb=" + daytimeSwimProb + ", sunriseTime=" + sunriseTime + ", sunsetTime=" + sunsetTime +  // daytimeSwimProb NA
 						", checkpoints = " + Arrays.toString(checkpoints) + ", immortal=" + immortal);
 				
-				writer.writeInt("swimCode", swimCode);
-				writer.writeBoolean("variableSwimSpeed", variableSwimSpeed);
-				writer.writeInt("velDecisionPeriod", velDecisionPeriod);
-				writer.writeFloat("constProbConfusion", constProbConfusion);
-				writer.writeFloat("slopeProbConfusion", slopeProbConfusion);
-				writer.writeBoolean("randAssess", randAssess);
-				writer.writeFloat("probAssess", probAssess);
-				writer.writeFloat("initProbConfusion", initProbConfusion);
-				writer.writeInt("tideCountThr", tideCountThr);
-				writer.writeFloat("filterK", filterK);
-				writer.writeFloat("holdThr", holdThr);
-				writer.writeFloat("stageThresholdInc", stageThresholdInc);
-				writer.writeFloat("stageThresholdDec", stageThresholdDec);
-				writer.writeFloat("daytimeSwimProb", daytimeSwimProb); // NA
-				writer.writeString("sunriseTime", sunriseTime, 4);
-				writer.writeString("sunsetTime", sunsetTime, 4);
-				writer.writeIntArray("nodeDecisions", nodeDecisions);
-				writer.writeDoubleMatrix("channelPars", channelPars);
-				writer.writeIntArray("checkpoints", checkpoints);
-				writer.writeBoolean("immortal", immortal);
+				w = acquireWriter();
+				try
+				{
+					w.writeInt("swimCode", swimCode);
+					w.writeBoolean("variableSwimSpeed", variableSwimSpeed);
+					w.writeInt("velDecisionPeriod", velDecisionPeriod);
+					w.writeFloat("constProbConfusion", constProbConfusion);
+					w.writeFloat("slopeProbConfusion", slopeProbConfusion);
+					w.writeBoolean("randAssess", randAssess);
+					w.writeFloat("probAssess", probAssess);
+					w.writeFloat("initProbConfusion", initProbConfusion);
+					w.writeInt("tideCountThr", tideCountThr);
+					w.writeFloat("filterK", filterK);
+					w.writeFloat("holdThr", holdThr);
+					w.writeFloat("stageThresholdInc", stageThresholdInc);
+					w.writeFloat("stageThresholdDec", stageThresholdDec);
+					w.writeFloat("daytimeSwimProb", daytimeSwimProb); // NA
+					w.writeString("sunriseTime", sunriseTime, 4);
+					w.writeString("sunsetTime", sunsetTime, 4);
+					w.writeIntArray("nodeDecisions", nodeDecisions);
+					outputLayout.writeDoubleMatrix(w, "channelPars", channelPars);
+					w.writeIntArray("checkpoints", checkpoints);
+					w.writeBoolean("immortal", immortal);
+				} finally
+				{
+					releaseWriter();
+				}
 			}
 			
 			echoedSetpoints = true; 
@@ -297,10 +462,26 @@ public class BehavedParticle extends Particle
 		epsSwimSpeed = 0.0f;
 		
 		// Write the realized swimSpeed for each particle to the output file, but 
-		// only do this if variableSwimSpeed==false
-		if(variableSwimSpeed==false)
+		// only do this if variableSwimSpeed==false. In a sharded run, only the worker that owns the
+		// particle writes it.
+		if(variableSwimSpeed==false && BehaviorShard.owns(getId()))
 		{
-			writer.writeFloat("swimSpeed/particleNum/" + Integer.toString(this.getId()), swimSpeed);
+			w = acquireWriter();
+			try
+			{
+				if(eventTable.isEnabled())
+				{
+					eventTable.record(w, getId(), BehaviorEventTable.SWIM_SPEED, SimulationClock.current().epochMinute, 
+							0, 0, swimSpeed);
+				}
+				else
+				{
+					w.writeFloat("swimSpeed/particleNum/" + Integer.toString(this.getId()), swimSpeed);
+				}
+			} finally
+			{
+				releaseWriter();
+			}
 		}	
 		
 		// Initialize confusionFactor (-1 is confused)
@@ -320,6 +501,21 @@ public class BehavedParticle extends Particle
 		probConfusion = initProbConfusion;
 		realizedSurvProb = 1.0;
 		enteredSmartChannel = false;
+		
+		// If this run is a restart, pick up where the particle left off. Particles that had died or
+		// been retired stay dead. The reach survival totals already count the live ones.
+		if(restartSnapshot!=null)
+		{
+			if(restartSnapshot.restore(this))
+			{
+				restored = true;
+				registerLive();
+			}
+			else if(restartSnapshot.isFinished(getId()))
+			{
+				isDead = true;
+			}
+		}
 	}
 
 	// Main swim behavior stuff here
@@ -526,6 +722,7 @@ public class BehavedParticle extends Particle
 			swimVelocity = 0.0f;				
 		}
 		
+		lastSwimVelocity = swimVelocity;
 		return swimVelocity;
 	}
 
@@ -542,15 +739,28 @@ public class BehavedParticle extends Particle
 		int numWaterBodies = nd.getNumberOfWaterbodies();
 		double [] weightVector;
 		double sumWeightVector;
-		float tempChannelLength;
 		int [] indexVector;
 		boolean madeDecision = false;
+		boolean transformed;
 		float minFlow = 0.0f;
+		float thisFlow;
+		NodeDecisionCache.NodeWeights nodeWeights;
+		NodeDecisionCache.ChoiceWeights choiceWeights;
+		AliasSampler sampler;
+		NodeTopology topology;
+		
+		if(placing) return;
 		
+		topology = NodeTopology.get(nd);
 		previousWB = wb;
 		
 		// Send message to observer about change
-		if (observer != null)
+		if (changeBuffer.isBatched())
+		{
+			changeBuffer.record(ParticleChangeBuffer.NODE_CHANGE, getId(), envIndex(previousWB), -1, nd.getEnvIndex(), 
+					Globals.currentModelTime);
+		}
+		if (observer != null && changeBuffer.observed(getId()))
 		{
 			observer.observeChange(ParticleObserver.NODE_CHANGE, this);
 		}
@@ -595,13 +805,10 @@ public class BehavedParticle extends Particle
 				// Is there another decision type to try?
 				if(nodeDecisionIndex<nodeDecisions.length)
 				{
-					for(int i=0; i<numWaterBodies; i++)
+					// Boundaries are excluded, except 901 and 915 (where water is taken out)
+					for(int i=0; i<topology.choices.length; i++)
 					{
-						// Prevent movement into boundaries, but allow entry into 901 and 915 (where water is taken out)
-						if(!(nd.getWaterbody(i) instanceof Boundary) || nd.getWaterbodyEnvIndex(i)==901 || nd.getWaterbodyEnvIndex(i)==915)
-						{
-							possibleChoices.add(i);
-						}
+						possibleChoices.add(topology.choices[i]);
 					}
 					possibleChoicesHash.put(nd.getEnvIndex(), possibleChoices);
 				}
@@ -625,122 +832,109 @@ public class BehavedParticle extends Particle
 			weightVector = new double[possibleChoices.size()];
 			sumWeightVector = 0.0;
 			indexVector = new int[possibleChoices.size()];
+			transformed = false;
+			sampler = null;
 			
-			switch(nodeDecisions[nodeDecisionIndex])
+			// If none of the choices at this node have been tried yet, the transformed weights and an
+			// alias sampler for them are shared by all particles at this node. Without a sampler (no
+			// positive weight), the weights are computed below as for a partly tried node.
+			choiceWeights = null;
+			if(possibleChoices.size()==topology.choices.length)
 			{
+				choiceWeights = getChoiceWeights(topology);
+			}
+			if(choiceWeights!=null && choiceWeights.sampler!=null)
+			{
+				sampler = choiceWeights.sampler;
+				weightVector = sampler.getWeights();
+				sumWeightVector = choiceWeights.sum;
+				System.arraycopy(topology.choices, 0, indexVector, 0, indexVector.length);
+				transformed = true;
+			}
+			else
+			{
+				switch(nodeDecisions[nodeDecisionIndex])
+				{
 			
-			// Outflow-based decision
-			case 0:
+				// Outflow-based decision
+				case 0:
 				
-				for(int i=0 ; i<possibleChoices.size(); i++)
-				{
-					weightVector[i] = nd.getFilterOp(possibleChoices.get(i))*nd.getOutflow(possibleChoices.get(i));
-					sumWeightVector += weightVector[i];
-					indexVector[i] = possibleChoices.get(i);
-				}
-				break;
+					nodeWeights = nodeDecisionCache.getWeights(nd, 0);
+					for(int i=0 ; i<possibleChoices.size(); i++)
+					{
+						weightVector[i] = nodeWeights.weight[possibleChoices.get(i)];
+						sumWeightVector += weightVector[i];
+						indexVector[i] = possibleChoices.get(i);
+					}
+					break;
 				
-			// Channel width-based decision
-			case 1:
+				// Channel width-based decision
+				// Widths at the node end of each channel are static
+				case 1:
 				
-				for(int i=0; i<possibleChoices.size(); i++)
-				{
-					if(nd.getWaterbody(possibleChoices.get(i)) instanceof Channel)
+					for(int i=0; i<possibleChoices.size(); i++)
 					{
-						// Get channel width at either the beginning of the channel or the end, depending
-						// on which end of the channel we're at
-						if(((Channel)nd.getWaterbody(possibleChoices.get(i))).getUpNodeId()==nd.getEnvIndex())
-						{
-							weightVector[i] = ((Channel)nd.getWaterbody(possibleChoices.get(i))).getWidth(0.0f);
-						}
-						else
-						{
-							tempChannelLength = ((Channel)nd.getWaterbody(possibleChoices.get(i))).getLength();
-							weightVector[i] =
-									((Channel)nd.getWaterbody(possibleChoices.get(i))).getWidth(tempChannelLength);
-						}
+						weightVector[i] = topology.endWidth[possibleChoices.get(i)];
+						sumWeightVector += weightVector[i];
+						indexVector[i] = possibleChoices.get(i);
 					}
-					else
+					break; 
+			
+				// Salinity (EC)-based decision
+				// Uses the salinity at the opposite end of each channel
+				case 2:
+				
+					nodeWeights = nodeDecisionCache.getWeights(nd, 2);
+					for(int i=0; i<possibleChoices.size(); i++)
 					{
-						weightVector[i] = 0.0;
+						weightVector[i] = nodeWeights.weight[possibleChoices.get(i)];
+						sumWeightVector += weightVector[i];
+						indexVector[i] = possibleChoices.get(i);
 					}
-					sumWeightVector += weightVector[i];
-					indexVector[i] = possibleChoices.get(i);
-				}
-				break; 
+					break; 
 			
-			// Salinity (EC)-based decision
-			case 2:
+				// Total flow-based decision
+				// Choose waterbody based on flow relative to the channel with the lowest (or most negative)
+				// flow. Exclude the waterbody that the particle is coming from.
+				case 3:
 				
-				for(int i=0; i<possibleChoices.size(); i++)
-				{
-					if(nd.getWaterbody(possibleChoices.get(i)) instanceof Channel)
+					// Find the lowest (or most negative) flow
+					nodeWeights = nodeDecisionCache.getWeights(nd, 3);
+					for(int i=0; i<possibleChoices.size(); i++)
 					{
-						// Get salinity at the opposite end of the channel
-						if(((Channel)nd.getWaterbody(possibleChoices.get(i))).getUpNodeId()==nd.getEnvIndex())
+						thisFlow = (float) nodeWeights.weight[possibleChoices.get(i)];
+						if(i==0 || thisFlow<minFlow)
 						{
-							// false = use downNode
-							weightVector[i] = lookupEC((Channel)nd.getWaterbody(possibleChoices.get(i)), false);
+							minFlow = thisFlow;
+						}
+					}
+				
+					// weightVector is equal to flow-minFlow+1.0f (the +1.0f is to ensure that sumWeightVector>0 if there's
+					// a valid choice). Set weightVector = 0.0f for the waterbody the fish is coming from. Also set weightVector = 0.0f
+					// if the outflow is zero, which indicates that the outflow is blocked by a gate.
+					for(int i=0; i<possibleChoices.size(); i++)
+					{
+						if(nd.getWaterbody(possibleChoices.get(i))==previousWB)
+						{
+							weightVector[i] = 0.0f;
+						}
+						else if(nodeWeights.blocked[possibleChoices.get(i)])
+						{
+							weightVector[i] = 0.0f;
 						}
 						else
 						{
-							// true = use upNode
-							weightVector[i] = lookupEC((Channel)nd.getWaterbody(possibleChoices.get(i)), true);
+							weightVector[i] = (float) nodeWeights.weight[possibleChoices.get(i)] - minFlow + 1.0f;
+							sumWeightVector += weightVector[i];
 						}
+						indexVector[i] = possibleChoices.get(i);
 					}
-					else
-					{
-						weightVector[i] = 0.0;
-					}
-					sumWeightVector += weightVector[i];
-					indexVector[i] = possibleChoices.get(i);
-				}
-				break; 
-			
-			// Total flow-based decision
-			// Choose waterbody based on flow relative to the channel with the lowest (or most negative)
-			// flow. Exclude the waterbody that the particle is coming from.
-			case 3:
 				
-				// Find the lowest (or most negative) flow
-				for(int i=0; i<possibleChoices.size(); i++)
-				{
-					if(i==0)
-					{
-						minFlow = nd.getFilterOp(possibleChoices.get(i))*nd.getSignedOutflow(possibleChoices.get(i));
-					}
-					else if((nd.getFilterOp(possibleChoices.get(i))*nd.getSignedOutflow(possibleChoices.get(i)))<minFlow)
-					{
-						minFlow =  nd.getFilterOp(possibleChoices.get(i))*nd.getSignedOutflow(possibleChoices.get(i));
-					}
-				}
+					break;
 				
-				// weightVector is equal to flow-minFlow+1.0f (the +1.0f is to ensure that sumWeightVector>0 if there's
-				// a valid choice). Set weightVector = 0.0f for the waterbody the fish is coming from. Also set weightVector = 0.0f
-				// if the outflow is zero, which indicates that the outflow is blocked by a gate.
-				for(int i=0; i<possibleChoices.size(); i++)
-				{
-					if(nd.getWaterbody(possibleChoices.get(i))==previousWB)
-					{
-						weightVector[i] = 0.0f;
-					}
-					else if(nd.getSignedOutflow(possibleChoices.get(i))==0.0f)
-					{
-						weightVector[i] = 0.0f;
-					}
-					else
-					{
-						weightVector[i] = nd.getFilterOp(possibleChoices.get(i))*nd.getSignedOutflow(possibleChoices.get(i)) -
-								minFlow + 1.0f;
-						sumWeightVector += weightVector[i];
-					}
-					indexVector[i] = possibleChoices.get(i);
+				default:
+						throw new IllegalArgumentException("Unrecognized decision type in nodeDecisions");
 				}
-				
-				break;
-				
-			default:
-					throw new IllegalArgumentException("Unrecognized decision type in nodeDecisions");
 			}
 					
 			// If there are viable options, make a choice. Otherwise, clear possibleChoices and
@@ -748,10 +942,20 @@ public class BehavedParticle extends Particle
 			if(sumWeightVector > 0)
 			{
 				// Apply the user-defined transformation
-				weightVector = transformWeightVector(weightVector, sumWeightVector);
+				if(!transformed)
+				{
+					weightVector = transformWeightVector(weightVector, sumWeightVector);
+				}
 				
 				// Make the choice and remove it from the list of possible future choices for this node
-				choiceIndex = weightedChoice(weightVector);
+				if(sampler!=null)
+				{
+					choiceIndex = sampler.sample(generator);
+				}
+				else
+				{
+					choiceIndex = weightedChoice(weightVector);
+				}
 				possibleChoices.remove(possibleChoices.indexOf(indexVector[choiceIndex]));
 				possibleChoicesHash.put(nd.getEnvIndex(), possibleChoices);
 				madeDecision = true;
@@ -771,8 +975,16 @@ public class BehavedParticle extends Particle
 			
 		} while(!madeDecision);		
 
+		// In cohort mode the whole cohort follows the drawn choice, so the expected weight entering
+		// each waterbody is still cohortWeight times its probability
+		enterWaterbody(indexVector[choiceIndex]);
+	}
+	
+	// Enter waterbody waterbodyIndex of the current node
+	protected void enterWaterbody(int waterbodyIndex)
+	{
 		// Get a pointer to the water body that the particle entered
-		wb = nd.getWaterbody(indexVector[choiceIndex]);
+		wb = nd.getWaterbody(waterbodyIndex);
 		
 		// Update parameters, etc., when entering a new channel
 		enterChannel();
@@ -811,15 +1023,44 @@ public class BehavedParticle extends Particle
 		}
 		
 		// Send message to observer about change
-		if (observer != null)
+		if (changeBuffer.isBatched())
+			changeBuffer.record(ParticleChangeBuffer.WATERBODY_CHANGE, getId(), envIndex(previousWB), wb.getEnvIndex(), 
+					nd.getEnvIndex(), Globals.currentModelTime);
+		if (observer != null && changeBuffer.observed(getId()))
+		{
 			observer.observeChange(ParticleObserver.WATERBODY_CHANGE, this);
+		}
 		
 		// Set x as beginning of Channel...
 		x = getXLocationInChannel();
 	}
 	
+	// Shared, transformed weights over all of the choices at the node for the current decision type
+	protected NodeDecisionCache.ChoiceWeights getChoiceWeights(NodeTopology topology)
+	{
+		int decisionType = nodeDecisions[nodeDecisionIndex];
+		
+		switch(decisionType)
+		{
+		case 1:
+			return topology.getWidthWeights(weightsTransformation.get(decisionType));
+			
+		case 0: case 2: case 3:
+			return nodeDecisionCache.getChoiceWeights(nd, topology, decisionType, previousWB, 
+					weightsTransformation.get(decisionType));
+			
+		default:
+			throw new IllegalArgumentException("Unrecognized decision type in nodeDecisions");
+		}
+	}
+	
 	// Transform the values in weightVector
 	protected double[] transformWeightVector(double[] weightVector, double sumWeightVector)
+	{
+		return transformWeightVector(weightVector, sumWeightVector, weightsTransformation.get(nodeDecisions[nodeDecisionIndex]));
+	}
+	
+	public static double[] transformWeightVector(double[] weightVector, double sumWeightVector, double[][] transformation)
 	{
 		double[] newWeightVector = new double[weightVector.length];
 		System.arraycopy(weightVector, 0, newWeightVector, 0, weightVector.length);
@@ -832,8 +1073,7 @@ public class BehavedParticle extends Particle
 		    newWeightVector[i] /= sumWeightVector;
 		
 			// apply the transformation
-		    newWeightVector[i] *= interpLinear(weightsTransformation.get(nodeDecisions[nodeDecisionIndex])[0],
-		    		weightsTransformation.get(nodeDecisions[nodeDecisionIndex])[1], newWeightVector[i]);
+		    newWeightVector[i] *= interpLinear(transformation[0], transformation[1], newWeightVector[i]);
 			
 			sumNewWeightVector += newWeightVector[i];
 		}
@@ -849,7 +1089,7 @@ public class BehavedParticle extends Particle
 		return newWeightVector;
 	}
 	
-	public double interpLinear(double[] x, double[] y, double xi) throws IllegalArgumentException
+	public static double interpLinear(double[] x, double[] y, double xi) throws IllegalArgumentException
 	{
 
 		double[] dx = new double[x.length-1];
@@ -934,6 +1174,7 @@ public class BehavedParticle extends Particle
 	public void checkCheckpoints()
 	{
 		int checkpointIndex; 
+		IHDF5Writer w;
 		
 		// Check to see if the particle has reached Chipps Island yet
 		if(previousWB!=null)
@@ -946,7 +1187,22 @@ public class BehavedParticle extends Particle
 				recordCheckpoint(this, "Chipps", ChippsPassCount);
 				
 				// Write the realized survival to the output file
-				writer.writeDouble("realizedSurvProb/" + this.getId(), realizedSurvProb);
+				w = acquireWriter();
+				try
+				{
+					if(eventTable.isEnabled())
+					{
+						eventTable.record(w, getId(), BehaviorEventTable.SURV_PROB, SimulationClock.current().epochMinute, 
+								0, 0, realizedSurvProb);
+					}
+					else
+					{
+						outputLayout.writeSurvProb(w, "realizedSurvProb/" + this.getId(), realizedSurvProb);
+					}
+				} finally
+				{
+					releaseWriter();
+				}
 			}
 		}		
 		
@@ -1051,25 +1307,65 @@ public class BehavedParticle extends Particle
 		}
 	}
     
-	// Update the probability of confusion based on the signalToNoise of the current channel
+	// Update the probability of confusion based on the signalToNoise of the current channel.
+	// The value is shared by all fish in the channel and only recomputed when signalToNoise changes.
 	public void updateProbConfusion()
 	{
-		double signalToNoise, lnSignalToNoise, term;
-		
 		// Only change probConfusion if the fish is currently in a smart channel.
 		if(wb instanceof SmartChannel)
 		{
-			signalToNoise = ((SmartChannel) wb).getSignalToNoise();
-			lnSignalToNoise = Math.log(Math.max(1E-10, signalToNoise));
-			term = Math.exp(constProbConfusion + slopeProbConfusion*lnSignalToNoise);
-			probConfusion = maxProbConfusion*term/(1+term);
+			probConfusion = confusionCache.getProbConfusion((SmartChannel) wb, constProbConfusion, slopeProbConfusion, 
+					maxProbConfusion);
 		}
 	}
 	
 	@Override
 	public void insert()
 	{
+		// In a sharded run, particles that belong to another worker are never inserted here. The
+		// PTM engine still creates them, so it could save their memory by checking
+		// BehaviorShard.owns() first.
+		if(!BehaviorShard.owns(getId()))
+		{
+			isDead = true;
+			return;
+		}
+		
+		// A restarted run doesn't simulate the particles that had finished before the snapshot again,
+		// and doesn't record the insertion of the ones it restored a second time
+		if(restartSnapshot!=null && restartSnapshot.isFinished(getId()))
+		{
+			isDead = true;
+			return;
+		}
+		if(restored)
+		{
+			// The engine places the particle at its release node. Put it back where it was when the
+			// snapshot was taken instead, without a node decision, which would draw random numbers and
+			// record events a second time.
+			restartSnapshot.restorePosition(this);
+			placing = true;
+			try
+			{
+				super.insert();
+			} finally
+			{
+				placing = false;
+			}
+			restartSnapshot.restorePosition(this);
+			return;
+		}
+		
+		// Once the survival estimates have converged, the rest of the release isn't needed
+		if(convergence.isConverged())
+		{
+			isDead = true;
+			convergence.skippedInsertion();
+			return;
+		}
+		
 		super.insert();
+		registerLive();
 		
 		// Record the insertion time
 		recordInsertion(this);		
@@ -1078,6 +1374,47 @@ public class BehavedParticle extends Particle
 	// Override updatePosition to implement BehavedParticle actions that occur every 15 minutes
 	public void updatePosition(float delT)
 	{		
+		// Drop the particles that died in the last time step from liveParticles, and take a snapshot of
+		// all particles before the first one moves in this time step
+		checkLive(Globals.currentModelTime);
+		checkSnapshot();
+		checkWindow();
+		counters.checkReport(Globals.currentModelTime);
+		changeBuffer.checkStep(Globals.currentModelTime);
+		population.checkStep(Globals.currentModelTime);
+		
+		// Once the survival estimates have converged in an endRun run, fish still moving are
+		// censored where they are
+		if(convergence.shouldRetire() && !isDead)
+		{
+			reachSurvival.censor(this, Globals.currentModelTime);
+			isDead = true;
+			convergence.retired();
+			return;
+		}
+		
+		// With the population store, this was done for all fish at the start of the time step
+		if(populationStep!=Globals.currentModelTime)
+		{
+			updateStepState();
+		}
+		
+		// Clear the memory of time spent and movement in the previous time step
+		movementTimeDistance.clear();
+				
+		super.updatePosition(delT);		
+		
+		// Record the state at the end of the time step for sampled fish
+		if(trajectoryRecorder.isEnabled() && !isDead)
+		{
+			recordTrajectory(delT);
+		}
+	}
+	
+	// Behavior state that changes once per time step. BehaviorPopulation.updateStepState does the same
+	// for all fish at once, so the two have to be kept in step.
+	public void updateStepState()
+	{
 		// Update the probability of confusion the first time that the fish enters a SmartChannel
 		if(enteredSmartChannel==false)
 		{
@@ -1092,9 +1429,18 @@ public class BehavedParticle extends Particle
 		// confused/unconfused during this time step
 		if(randAssess)
 		{
-			if(generator.nextDouble()<probAssess)
+			if(assessCountdown<0)
+			{
+				assessCountdown = drawAssessCountdown();
+			}
+			if(assessCountdown==0)
 			{
 				checkConfusion();
+				assessCountdown = drawAssessCountdown();
+			}
+			else
+			{
+				assessCountdown--;
 			}
 		}
 		
@@ -1102,13 +1448,46 @@ public class BehavedParticle extends Particle
 		if(variableSwimSpeed)
 		{
 			// Draw epsSwimSpeed from a normal distribution
-			epsSwimSpeed = (float) (generator.nextGaussian()*stdSwimSpeed);
+			if(fastGaussian)
+			{
+				epsSwimSpeed = (float) (ZigguratGaussian.next(generator)*stdSwimSpeed);
+			}
+			else
+			{
+				epsSwimSpeed = (float) (generator.nextGaussian()*stdSwimSpeed);
+			}
 		}
+	}
+	
+	// Time steps are numbered from the start of model time, so the sampled steps don't depend on
+	// when the fish was inserted or whether the run was restarted
+	protected void recordTrajectory(float delT)
+	{
+		int julianMin = Globals.currentModelTime + (int) (delT/60.0f);
+		int step = (int) ((long) Globals.currentModelTime*60L/(long) delT);
 		
-		// Clear the memory of time spent and movement in the previous time step
-		movementTimeDistance.clear();
-				
-		super.updatePosition(delT);		
+		IHDF5Writer w;
+		
+		if(trajectoryRecorder.isDue(getId(), step))
+		{
+			w = acquireWriter();
+			try
+			{
+				trajectoryRecorder.record(w, getId(), julianMin, wb.getEnvIndex(), x, lastSwimVelocity, 
+						confusionFactor, currentDirection);
+			} finally
+			{
+				releaseWriter();
+			}
+		}
+	}
+	
+	// Assessing with probability probAssess in each time step means that the number of steps
+	// without an assessment before the next one is geometric. Drawing it directly takes one random
+	// number per assessment instead of one per time step.
+	public int drawAssessCountdown()
+	{
+		return AssessmentSchedule.countdown(generator, probAssess);
 	}
 	
 	@Override
@@ -1221,8 +1600,32 @@ public class BehavedParticle extends Particle
 		
 		realizedSurvProb *= survivalProb;
 		
+		// In cohort mode, mortality reduces the number of fish the particle represents. Once that
+		// falls below cohortMinWeight, the cohort survives at cohortMinWeight with probability
+		// cohortWeight/cohortMinWeight, which keeps the expected weight unchanged.
+		if(cohortMode)
+		{
+			if(!immortal)
+			{
+				reachSurvival.loss(this, reachWeight*(1.0-survivalProb), Globals.currentModelTime);
+				counters.loss(getCurrentWaterbody().getEnvIndex(), cohortWeight*(1.0-survivalProb));
+				cohortWeight *= survivalProb;
+				if(cohortWeight<cohortMinWeight)
+				{
+					if(generator.nextDouble()*cohortMinWeight<cohortWeight)
+					{
+						cohortWeight = cohortMinWeight;
+					}
+					else
+					{
+						isDead = true;
+						recordDeath(this);
+					}
+				}
+			}
+		}
 		// Particle dies with P(1-survivalProb) 
-		if(generator.nextDouble()>survivalProb && !immortal)
+		else if(generator.nextDouble()>survivalProb && !immortal)
 		{
 			isDead = true;
 //		    observer.observeChange(ParticleObserver.DEATH,this);
@@ -1230,139 +1633,489 @@ public class BehavedParticle extends Particle
 		}
 	}
 	
+	public void registerLive()
+	{
+		liveParticles.add(this);
+	}
+	
+	// envIndex of w, or -1 if there is none
+	private static int envIndex(Waterbody w)
+	{
+		return w==null ? -1 : w.getEnvIndex();
+	}
+	
 	public void checkSwimTime()
 	{
+		SimulationClock clock = SimulationClock.current();
+		
 		// If it's nighttime, the fish will swim.
 		// If it's daytime, fish swims with probability daytimeSwimProb. 
-		if(!MainPTM.isDaytime || (MainPTM.isDaytime && generator.nextDouble()<daytimeSwimProb)) {
-			swimTime = true;
-		} else {
-			swimTime = false;
+		// The decision is cached for the rest of the time step.
+		if(clock.julianMin!=swimTimeStep)
+		{
+			if(!clock.daytime || daytimeSwimProb>=1.0f)
+			{
+				swimTimeThisStep = true;
+			}
+			else
+			{
+				swimTimeThisStep = daytimeSwimProb>0.0f && generator.nextDouble()<daytimeSwimProb;
+			}
+			swimTimeStep = clock.julianMin;
 		}
+		swimTime = swimTimeThisStep;
 	}
 	
 	////////////////////////////////////////////////////////////////////
 	// Class methods
 	////////////////////////////////////////////////////////////////////
-	public static IHDF5SimpleWriter initializeWriter()
+	// Open the output file the first time something is written to it, and move on to the next
+	// file when the model time enters a new output window. The writer can't be closed or rolled
+	// until releaseWriter is called, so write the whole event and release it in a finally block.
+	// A thread that already holds the writer keeps writing to the same file.
+	public static IHDF5Writer acquireWriter()
+	{
+		int window = outputWindows.windowOf(Globals.currentModelTime);
+		
+		writerLock.readLock().lock();
+		if(writer!=null && (window==writerWindow || writerLock.getReadHoldCount()>1)) return writer;
+		
+		writerLock.readLock().unlock();
+		writerLock.writeLock().lock();
+		try
+		{
+			if(writer==null)
+			{
+				long start = System.nanoTime();
+				writerWindow = window;
+				writer = initializeWriter();
+				System.out.println("Initialized behavior output file in " + (System.nanoTime()-start)/1000000 + " ms");
+			}
+			else if(window!=writerWindow)
+			{
+				rollWriter(window);
+			}
+			writerLock.readLock().lock();
+		} finally
+		{
+			writerLock.writeLock().unlock();
+		}
+		return writer;
+	}
+	
+	public static void releaseWriter()
+	{
+		writerLock.readLock().unlock();
+	}
+	
+	// Finish the file of the current output window as soon as the model time has moved past it,
+	// instead of when the next event is written, so that it can be read or merged while the run goes
+	// on. This is called before each particle moves, after the snapshot of the time step.
+	public static void checkWindow()
+	{
+		int window = outputWindows.windowOf(Globals.currentModelTime);
+		
+		if(!outputWindows.isEnabled() || writer==null || window==writerWindow) return;
+		
+		writerLock.writeLock().lock();
+		try
+		{
+			if(writer!=null && window!=writerWindow) rollWriter(window);
+		} finally
+		{
+			writerLock.writeLock().unlock();
+		}
+	}
+	
+	// Finish the file of the current window and open the one for window. The caller holds the
+	// write lock.
+	private static void rollWriter(int window)
+	{
+		if(trajectoryRecorder.isEnabled())
+		{
+			trajectoryRecorder.flush(writer);
+			trajectoryRecorder.reset();
+		}
+		if(eventTable.isEnabled())
+		{
+			eventTable.flush(writer);
+			eventTable.reset();
+		}
+		writer.close();
+		outputWindows.completed(writerWindow);
+		System.out.println("Closed " + outputWindows.filename(writerWindow) + " (" + 
+				new File(outputWindows.filename(writerWindow)).length() + " bytes)");
+		
+		writerWindow = window;
+		writer = initializeWriter();
+	}
+	
+	// Build the node ID to EC index translation, open the Qual data and set up the per-channel EC
+	// table the first time EC is needed
+	public static synchronized void initializeEC()
+	{
+		double[] ECUpNodes;
+		long start = System.nanoTime();
+		
+		if(ECInitialized) return;
+		
+		try
+		{
+			// Create a HashMap to translate a node ID to an index into the EC vectors from QualData
+			ECUpNodes = reader.readDoubleArray("QualData/upNodes");
+			for(int i=0; i<ECUpNodes.length; i++)
+			{
+				nodeECHash.put((int)ECUpNodes[i], i);
+			}
+			
+			// The EC series is either embedded in the behavior file or kept in a shared Qual data store
+			// that is referenced by QualData/qualStore
+			if(reader.exists("QualData/qualStore"))
+			{
+				qualReader = QualDataStore.open(reader.readString("QualData/qualStore"), behaviorParameterFile);
+			}
+			else
+			{
+				qualReader = reader;
+			}
+			
+			// Read the upcoming EC frames in the background
+			ECFrames = new ECFramePrefetcher(qualReader, reader.exists("qualPrefetch/window") ? reader.readInt("qualPrefetch/window") : 2);
+			channelEC = new ChannelECTable(ECFrames, nodeECHash);
+		} catch (HDF5SymbolTableException e)
+		{
+			System.out.println("Could not find QualData/upNodes in the HDF5 file " + behaviorParameterFile);
+			System.exit(2);
+		}
+		
+		ECInitialized = true;
+		System.out.println("Initialized behavior EC index in " + (System.nanoTime()-start)/1000000 + " ms");
+	}
+	
+	public static IHDF5Writer initializeWriter()
 	{	
-		// Delete outputFilename if it already exists
-		File testFile = new File(outputFilename);
+		String filename = outputWindows.filename(writerWindow);
+		int[] checkpoints;
+		boolean restartWindow = restartSnapshot!=null && writerWindow==restartSnapshot.window && new File(filename).exists();
+		
+		// Delete the output file if it already exists, unless the run is being restarted and this is
+		// the file of an earlier window, or the one that was open when the snapshot was taken. The
+		// events that the earlier run recorded in that one after the snapshot are removed.
+		File testFile = new File(filename);
 		try
 		{
-			if(testFile.exists())
+			if(testFile.exists() && (restartSnapshot==null || writerWindow>restartSnapshot.window))
 			{
 				testFile.delete();
 			}
 
 		} catch (Exception e)
 		{
-			System.out.println("Cannot delete old output file " + outputFilename);
+			System.out.println("Cannot delete old output file " + filename);
 			System.out.println("Try deleting it manually and restarting. Aborting execution");
 			System.exit(1);
 		}
-		IHDF5SimpleWriter w = HDF5Factory.open(outputFilename);
-		System.out.println("Opened " + outputFilename + " for writing.");
+		IHDF5Writer w = outputLayout.open(filename);
+		System.out.println("Opened " + filename + " for writing (" + outputLayout + ").");
+		outputLayout.write(w);
+		if(restartWindow)
+		{
+			// Only the first window echoes the checkpoints, so take them from the parameter file
+			checkpoints = reader.readIntArray("checkpoints");
+			Arrays.sort(checkpoints);
+			restartSnapshot.removeLaterEvents(w, checkpoints);
+			if(eventTable.isEnabled()) eventTable.restart(w, restartSnapshot.eventRows);
+			if(trajectoryRecorder.isEnabled()) trajectoryRecorder.restart(w, restartSnapshot.trajectoryRows);
+		}
 		return w;
 	}
 	
-	public static void recordDeath(BehavedParticle bP)
+	// All particles read the same weightsTransformation matrices, so share one copy of each. This
+	// lets static caches of transformed weights recognize the transformation by reference.
+	public static synchronized double[][] internTransformation(int decisionType, double[][] transformation)
 	{
-		int julianMin = Globals.currentModelTime;
-		String modelDate, modelTime;
+		double[][] shared = sharedTransformations.get(decisionType);
+		
+		if(shared!=null && Arrays.deepEquals(shared, transformation))
+		{
+			return shared;
+		}
+		sharedTransformations.put(decisionType, transformation);
+		return transformation;
+	}
+	
+	public static void readSnapshotSettings()
+	{
+		String restartFilename = "";
 		
-		modelDate = Globals.getModelDate(julianMin);
-		modelTime = Globals.getModelTime(julianMin);
+		if(reader.exists("snapshot/interval")) snapshotInterval = reader.readInt("snapshot/interval");
+		if(reader.exists("snapshot/filename")) snapshotFilename = reader.readString("snapshot/filename");
+		if(reader.exists("snapshot/restartFile")) restartFilename = reader.readString("snapshot/restartFile");
 		
-		// Write to the HDF5 file
-		writer.writeString("died/particleNum/" + Integer.toString(bP.getId()) + "/modelDate", modelDate, 9);
-		writer.writeInt("died/particleNum/" + Integer.toString(bP.getId()) + "/modelTime", new Integer(modelTime).intValue());
-		writer.writeInt("died/particleNum/" + Integer.toString(bP.getId()) + "/waterBody", bP.getCurrentWaterbody().getEnvIndex());
+		if(snapshotInterval>0 && snapshotFilename.isEmpty())
+		{
+			System.out.println("snapshot/interval is set but snapshot/filename is empty. Snapshots are disabled.");
+			snapshotInterval = 0;
+		}
 		
+		if(!restartFilename.isEmpty())
+		{
+			try
+			{
+				restartSnapshot = BehaviorSnapshot.read(restartFilename);
+				System.out.println("Restarting from behavior snapshot " + restartFilename + " taken at " + 
+						Globals.getModelDate(restartSnapshot.julianMin) + " " + Globals.getModelTime(restartSnapshot.julianMin) + 
+						" (" + restartSnapshot.n + " particles)");
+			} catch (Exception e)
+			{
+				System.out.println("Failed to read behavior snapshot " + restartFilename + ": " + e.getMessage());
+				System.out.println("Aborting execution");
+				System.exit(1);
+			}
+		}
 	}
 	
-	public static void recordCheckpoint(BehavedParticle bP, String checkpoint, int passCount)
+	// Remove the particles that have died from liveParticles the first time this is called in a time
+	// step, so the set only holds the particles that are still moving
+	public static void checkLive(int julianMin)
 	{
-		int julianMin = Globals.currentModelTime;
-		String modelDate, modelTime;
+		if(julianMin==livePruneTime) return;
 		
-		modelDate = Globals.getModelDate(julianMin);
-		modelTime = Globals.getModelTime(julianMin);
-		
-		// Write to the HDF5 file
-		writer.writeString(checkpoint + "/particleNum/" + Integer.toString(bP.getId()) + "/modelDate_" + passCount, modelDate, 9);
-		writer.writeInt(checkpoint + "/particleNum/" + Integer.toString(bP.getId()) + "/modelTime_" + passCount, new Integer(modelTime).intValue());
+		synchronized(liveParticles)
+		{
+			if(julianMin==livePruneTime) return;
+			livePruneTime = julianMin;
+			pruneLive();
+		}
 	}
 	
-	public static void recordInsertion(BehavedParticle bP)
+	// With snapshots on, the IDs of the particles removed are kept so that a restarted run doesn't
+	// simulate them again
+	private static void pruneLive()
+	{
+		for(BehavedParticle bP : liveParticles)
+		{
+			if(bP.isDead)
+			{
+				liveParticles.remove(bP);
+				if(snapshotInterval>0) finishedParticles.add(bP.getId());
+			}
+		}
+	}
+	
+	// Write a snapshot of the live particles every snapshotInterval minutes of model time. This is
+	// called before each particle moves, so the first call in a new time step sees all particles
+	// at the start of the step.
+	public static void checkSnapshot()
 	{
 		int julianMin = Globals.currentModelTime;
-		String modelDate, modelTime;
+		BehaviorSnapshot s;
+		
+		if(snapshotInterval<=0) return;
 		
-		modelDate = Globals.getModelDate(julianMin);
-		modelTime = Globals.getModelTime(julianMin);
+		if(nextSnapshotTime<0)
+		{
+			nextSnapshotTime = julianMin + snapshotInterval;
+		}
+		else if(julianMin>=nextSnapshotTime)
+		{
+			synchronized(liveParticles)
+			{
+				pruneLive();
+				s = BehaviorSnapshot.capture(liveParticles, finishedParticles, julianMin);
+			}
+			writerLock.readLock().lock();
+			try
+			{
+				s.captureOutput(writer==null ? -1 : writerWindow, eventTable.getRows(), trajectoryRecorder.getRows());
+			} finally
+			{
+				writerLock.readLock().unlock();
+			}
+			s.captureTotals(reachSurvival, counters, convergence);
+			BehaviorSnapshot.writeInBackground(s, snapshotFilename);
+			nextSnapshotTime = julianMin + snapshotInterval;
+		}
+	}
+	
+	public static void recordDeath(BehavedParticle bP)
+	{
+		SimulationClock clock = SimulationClock.current();
+		String path = "died/particleNum/" + Integer.toString(bP.getId());
+		IHDF5Writer w;
 		
 		// Write to the HDF5 file
-		writer.writeString("inserted/particleNum/" + Integer.toString(bP.getId()) + "/modelDate", modelDate, 9);
-		writer.writeInt("inserted/particleNum/" + Integer.toString(bP.getId()) + "/modelTime", new Integer(modelTime).intValue());	
-		writer.writeInt("inserted/particleNum/" + Integer.toString(bP.getId()) + "/insertionNode", bP.nd.getEnvIndex());
+		w = acquireWriter();
+		try
+		{
+			if(eventTable.isEnabled())
+			{
+				eventTable.record(w, bP.getId(), BehaviorEventTable.DIED, clock.epochMinute, 
+						bP.getCurrentWaterbody().getEnvIndex(), 0, cohortMode ? bP.cohortWeight : 1.0);
+			}
+			else
+			{
+				w.writeString(path + "/modelDate", clock.modelDate, 9);
+				w.writeInt(path + "/modelTime", clock.modelTimeHHMM);
+				w.writeInt(path + "/waterBody", bP.getCurrentWaterbody().getEnvIndex());
+				if(cohortMode) w.writeDouble(path + "/weight", bP.cohortWeight);
+			}
+		} finally
+		{
+			releaseWriter();
+		}
+		
+		reachSurvival.death(bP, clock.julianMin);
+		counters.death(bP.getCurrentWaterbody().getEnvIndex(), bP.cohortWeight);
+		if(bP.ChippsPassCount==0 && bP.ExitPassCount==0) convergence.resolve(bP, Double.NaN);
 		
 	}
 	
-	public static double lookupEC(Channel c, Boolean useUpNode)
+	public static void recordCheckpoint(BehavedParticle bP, String checkpoint, int passCount)
 	{
-		double[] ECVec;
-		double minEC=0.001;
-		double EC = minEC;
-		int node, tryCount=0;
-		boolean success=false;
-		int julianMin = Globals.currentModelTime;
-		String modelDate, modelTime, modelDateTime;
-		modelDate = Globals.getModelDate(julianMin);
-		modelTime = Globals.getModelTime(julianMin);
-		modelDateTime = modelDate+modelTime;
+		SimulationClock clock = SimulationClock.current();
+		String path = checkpoint + "/particleNum/" + Integer.toString(bP.getId());
+		IHDF5Writer w;
 		
-		if(ECVecHash.containsKey(modelDateTime))
+		// Write to the HDF5 file
+		w = acquireWriter();
+		try
 		{
-			ECVec = ECVecHash.get(modelDateTime);
+			if(eventTable.isEnabled())
+			{
+				eventTable.record(w, bP.getId(), BehaviorEventTable.CHECKPOINT, clock.epochMinute, 
+						BehaviorEventTable.checkpointLocation(checkpoint), passCount, cohortMode ? bP.cohortWeight : 1.0);
+			}
+			else
+			{
+				w.writeString(path + "/modelDate_" + passCount, clock.modelDate, 9);
+				w.writeInt(path + "/modelTime_" + passCount, clock.modelTimeHHMM);
+				if(cohortMode) w.writeDouble(path + "/weight_" + passCount, bP.cohortWeight);
+			}
+		} finally
+		{
+			releaseWriter();
 		}
-		else
+		
+		reachSurvival.checkpoint(bP, checkpoint, passCount, clock.julianMin);
+		counters.passage(checkpoint, passCount, bP.cohortWeight);
+		convergence.arrived(bP, checkpoint, passCount);
+		
+		// The fish's outcome is known the first time it reaches Chipps or Exit
+		if(passCount==1)
 		{
-			ECVec = reader.readDoubleArray("QualData/" + modelDateTime);
-			ECVecHash.put(modelDateTime, ECVec);
+			if(checkpoint.equals("Chipps") && bP.ExitPassCount==0) convergence.resolve(bP, bP.realizedSurvProb);
+			else if(checkpoint.equals("Exit") && bP.ChippsPassCount==0) convergence.resolve(bP, Double.NaN);
 		}
+	}
+	
+	public static void recordInsertion(BehavedParticle bP)
+	{
+		SimulationClock clock = SimulationClock.current();
+		String path = "inserted/particleNum/" + Integer.toString(bP.getId());
+		IHDF5Writer w;
 		
-		// Try the node indicated by useUpNode. If that doesn't work, use the opposite node. If that
-		// doesn't work, return the default, arbitrarily small, EC
-		while(tryCount<2 && !success)
+		// Write to the HDF5 file
+		w = acquireWriter();
+		try
 		{
-			if(useUpNode) node = c.getUpNodeId();
-			else node = c.getDownNodeId();
-			
-			// See if this node is stored in QualData
-			if(nodeECHash.containsKey(node))
-			{
-				// put an arbitrary lower bound on EC so the fish choose an option with EC==0.0 if there are no other 
-				// options
-				EC =  Math.max(minEC, ECVec[nodeECHash.get(node)]);
-				success=true;
-			}		
+			if(eventTable.isEnabled())
+			{
+				eventTable.record(w, bP.getId(), BehaviorEventTable.INSERTED, clock.epochMinute, 
+						bP.nd.getEnvIndex(), 0, cohortMode ? bP.cohortWeight : 1.0);
+			}
 			else
 			{
-				useUpNode = !useUpNode;
-				tryCount++;
+				w.writeString(path + "/modelDate", clock.modelDate, 9);
+				w.writeInt(path + "/modelTime", clock.modelTimeHHMM);	
+				w.writeInt(path + "/insertionNode", bP.nd.getEnvIndex());
+				if(cohortMode) w.writeDouble(path + "/weight", bP.cohortWeight);
 			}
+		} finally
+		{
+			releaseWriter();
 		}
-
-		return EC;		
+		
+		reachSurvival.enter(bP, ReachSurvivalEstimator.RELEASE, clock.julianMin);
+		counters.insertion(bP.cohortWeight);
+		convergence.inserted(bP, clock.julianMin);
+		
+	}
+	
+	public static double lookupEC(Channel c, Boolean useUpNode)
+	{
+		if(!ECInitialized) initializeEC();
+		
+		return channelEC.lookup(c, useUpNode, SimulationClock.current().julianMin);
+	}
+	
+	// EC at all QualData nodes at julianMin
+	public static double[] getECFrame(int julianMin)
+	{
+		if(!ECInitialized) initializeEC();
+		
+		return channelEC.getFrame(julianMin);
 	}
 	
 	public static void destructor()
 	{
+		// The end-of-run output goes to the file that is open, even if the model time has just
+		// crossed into a new output window
+		IHDF5Writer w;
+		
+		if(writer==null)
+		{
+			acquireWriter();
+			releaseWriter();
+		}
+		writerLock.writeLock().lock();
+		w = writer;
+		
+		BehaviorSnapshot.shutdown();
+		if(changeBuffer.isBatched())
+		{
+			changeBuffer.shutdown();
+			System.out.println(changeBuffer);
+		}
+		if(trajectoryRecorder.isEnabled())
+		{
+			trajectoryRecorder.flush(w);
+			System.out.println("Wrote " + trajectoryRecorder);
+		}
+		if(eventTable.isEnabled())
+		{
+			eventTable.flush(w);
+			System.out.println("Wrote " + eventTable);
+		}
+		
+		// Fish still in a reach at the end of the run are censored
+		for(BehavedParticle bP : liveParticles)
+		{
+			if(!bP.isDead) reachSurvival.censor(bP, Globals.currentModelTime);
+		}
+		reachSurvival.write(w, outputLayout);
+		System.out.println(reachSurvival);
+		counters.write(w, outputLayout);
+		System.out.println("Counters: " + counters);
+		if(convergence.isEnabled())
+		{
+			convergence.write(w, outputLayout);
+			System.out.println(convergence);
+		}
 		reader.close();
 		System.out.println("Closed " + behaviorParameterFile);
+		if(ECFrames!=null)
+		{
+			ECFrames.shutdown();
+			System.out.println(ECFrames);
+		}
+		QualDataStore.closeAll();
+		System.out.println("Closed " + confusionCache);
 		writer.close();
-		System.out.println("Closed " + outputFilename);
+		outputWindows.completed(writerWindow);
+		writerLock.writeLock().unlock();
+		System.out.println("Closed " + outputWindows.filename(writerWindow) + " (" + 
+				new File(outputWindows.filename(writerWindow)).length() + " bytes, " + outputLayout + ")");
 	}
 
 }
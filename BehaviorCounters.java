@@ -0,0 +1,450 @@
+package DWR.DMS.PTM;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Run-wide tallies of insertions, checkpoint passages, exports and deaths by waterbody. The
+ * counters are LongAdders, which spread concurrent updates over striped cells, so particles moved
+ * on different threads don't contend on a shared count. The counts can be read at any time while
+ * the run is going; toString gives a one-line progress summary, which is printed every
+ * reportInterval minutes of model time if that is set. The counts are saved in behavior
+ * snapshots, so a restarted run continues them.
+ *
+ * In cohort mode a particle stands for cohortWeight fish, and mortality reduces that weight without
+ * ending the particle. Next to each count, a DoubleAdder then sums the number of fish: the weight
+ * of the particle at each insertion, passage and death, plus the weight lost to mortality by
+ * waterbody (loss). Those sums are written under counters/weight/ when weighted is set. Without
+ * cohorts every weight is 1, so they equal the counts.
+ */
+public class BehaviorCounters
+{
+	private final LongAdder inserted = new LongAdder();
+	private final LongAdder died = new LongAdder();
+	private final LongAdder exported = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> passages = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> firstPassages = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<Integer, LongAdder> deathsByWaterbody = new ConcurrentHashMap<Integer, LongAdder>();
+
+	// Number of fish, in cohort mode
+	private final DoubleAdder insertedWeight = new DoubleAdder();
+	private final DoubleAdder diedWeight = new DoubleAdder();
+	private final DoubleAdder exportedWeight = new DoubleAdder();
+	private final ConcurrentHashMap<String, DoubleAdder> passageWeights = new ConcurrentHashMap<String, DoubleAdder>();
+	private final ConcurrentHashMap<String, DoubleAdder> firstPassageWeights = new ConcurrentHashMap<String, DoubleAdder>();
+	private final ConcurrentHashMap<Integer, DoubleAdder> deathWeightsByWaterbody = new ConcurrentHashMap<Integer, DoubleAdder>();
+
+	public boolean weighted = false;
+	public int reportInterval = 0;
+	private volatile int nextReportTime = -1;
+
+	// A particle of the given weight was inserted
+	public void insertion(double weight)
+	{
+		inserted.increment();
+		insertedWeight.add(weight);
+	}
+
+	public void passage(String checkpoint, int passCount, double weight)
+	{
+		adder(passages, checkpoint).increment();
+		weightAdder(passageWeights, checkpoint).add(weight);
+		if(passCount==1)
+		{
+			adder(firstPassages, checkpoint).increment();
+			weightAdder(firstPassageWeights, checkpoint).add(weight);
+		}
+		if(checkpoint.equals("SWP") || checkpoint.equals("CVP"))
+		{
+			exported.increment();
+			exportedWeight.add(weight);
+		}
+	}
+
+	// A particle died with the given weight left
+	public void death(int waterbody, double weight)
+	{
+		died.increment();
+		adder(deathsByWaterbody, waterbody).increment();
+		loss(waterbody, weight);
+	}
+
+	// Mortality removed weight fish from a cohort that is still alive
+	public void loss(int waterbody, double weight)
+	{
+		diedWeight.add(weight);
+		weightAdder(deathWeightsByWaterbody, waterbody).add(weight);
+	}
+
+	public long getInserted()
+	{
+		return inserted.sum();
+	}
+
+	public long getDied()
+	{
+		return died.sum();
+	}
+
+	public long getExported()
+	{
+		return exported.sum();
+	}
+
+	public long getPassages(String checkpoint)
+	{
+		LongAdder a = passages.get(checkpoint);
+		return a==null ? 0 : a.sum();
+	}
+
+	public long getFirstPassages(String checkpoint)
+	{
+		LongAdder a = firstPassages.get(checkpoint);
+		return a==null ? 0 : a.sum();
+	}
+
+	public long getDeaths(int waterbody)
+	{
+		LongAdder a = deathsByWaterbody.get(waterbody);
+		return a==null ? 0 : a.sum();
+	}
+
+	public double getInsertedWeight()
+	{
+		return insertedWeight.sum();
+	}
+
+	public double getDiedWeight()
+	{
+		return diedWeight.sum();
+	}
+
+	public double getExportedWeight()
+	{
+		return exportedWeight.sum();
+	}
+
+	public double getFirstPassageWeight(String checkpoint)
+	{
+		DoubleAdder a = firstPassageWeights.get(checkpoint);
+		return a==null ? 0.0 : a.sum();
+	}
+
+	// Print the summary the first time this is called in each reportInterval of model time
+	public void checkReport(int julianMin)
+	{
+		int next = nextReportTime;
+
+		if(reportInterval<=0) return;
+
+		if(next<0)
+		{
+			nextReportTime = julianMin + reportInterval;
+		}
+		else if(julianMin>=next)
+		{
+			synchronized(this)
+			{
+				if(julianMin<nextReportTime) return;
+				nextReportTime = julianMin + reportInterval;
+			}
+			System.out.println(Globals.getModelDate(julianMin) + " " + Globals.getModelTime(julianMin) + " " + this);
+		}
+	}
+
+	public void write(IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		TreeMap<String, Long> p = sums(passages);
+		TreeMap<String, Long> f = sums(firstPassages);
+		TreeMap<Integer, Long> d = sums(deathsByWaterbody);
+		TreeMap<Integer, Double> dw = weightSums(deathWeightsByWaterbody);
+		TreeSet<Integer> keys = new TreeSet<Integer>(d.keySet());
+		int[] waterbodies;
+		int[] deaths;
+		double[] deathWeights;
+		int i = 0;
+
+		// A cohort can lose weight in a waterbody where no particle died
+		keys.addAll(dw.keySet());
+		waterbodies = new int[keys.size()];
+		deaths = new int[keys.size()];
+		deathWeights = new double[keys.size()];
+
+		w.writeLong("counters/inserted", getInserted());
+		w.writeLong("counters/died", getDied());
+		w.writeLong("counters/exported", getExported());
+		for(Map.Entry<String, Long> e : p.entrySet())
+		{
+			w.writeLong("counters/passages/" + e.getKey(), e.getValue());
+			w.writeLong("counters/firstPassages/" + e.getKey(), f.containsKey(e.getKey()) ? f.get(e.getKey()) : 0);
+		}
+		for(Integer waterbody : keys)
+		{
+			waterbodies[i] = waterbody;
+			deaths[i] = d.containsKey(waterbody) ? d.get(waterbody).intValue() : 0;
+			deathWeights[i] = dw.containsKey(waterbody) ? dw.get(waterbody) : 0.0;
+			i++;
+		}
+		if(waterbodies.length>0)
+		{
+			layout.writeIntArray(w, "counters/deathWaterbodies", waterbodies);
+			layout.writeIntArray(w, "counters/deathsByWaterbody", deaths);
+		}
+
+		if(!weighted) return;
+
+		w.writeDouble("counters/weight/inserted", getInsertedWeight());
+		w.writeDouble("counters/weight/died", getDiedWeight());
+		w.writeDouble("counters/weight/exported", getExportedWeight());
+		for(Map.Entry<String, Double> e : weightSums(passageWeights).entrySet())
+		{
+			w.writeDouble("counters/weight/passages/" + e.getKey(), e.getValue());
+			w.writeDouble("counters/weight/firstPassages/" + e.getKey(), getFirstPassageWeight(e.getKey()));
+		}
+		if(waterbodies.length>0) layout.writeDoubleArray(w, "counters/weight/deathsByWaterbody", deathWeights);
+	}
+
+	// Sum the counters written by the workers of a sharded run
+	public static void writeMerged(List<IHDF5Reader> shards, IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		BehaviorCounters merged = new BehaviorCounters();
+		int[] waterbodies, deaths;
+		double[] deathWeights;
+
+		for(IHDF5Reader r : shards)
+		{
+			if(!r.exists("counters/inserted")) continue;
+
+			merged.inserted.add(r.readLong("counters/inserted"));
+			merged.died.add(r.readLong("counters/died"));
+			merged.exported.add(r.readLong("counters/exported"));
+			if(r.exists("counters/passages"))
+			{
+				for(String checkpoint : r.getGroupMembers("counters/passages"))
+				{
+					adder(merged.passages, checkpoint).add(r.readLong("counters/passages/" + checkpoint));
+					adder(merged.firstPassages, checkpoint).add(r.readLong("counters/firstPassages/" + checkpoint));
+				}
+			}
+			if(r.exists("counters/deathWaterbodies"))
+			{
+				waterbodies = r.readIntArray("counters/deathWaterbodies");
+				deaths = r.readIntArray("counters/deathsByWaterbody");
+				for(int i=0; i<waterbodies.length; i++)
+				{
+					adder(merged.deathsByWaterbody, waterbodies[i]).add(deaths[i]);
+				}
+			}
+			if(r.exists("counters/weight/inserted"))
+			{
+				merged.weighted = true;
+				merged.insertedWeight.add(r.readDouble("counters/weight/inserted"));
+				merged.diedWeight.add(r.readDouble("counters/weight/died"));
+				merged.exportedWeight.add(r.readDouble("counters/weight/exported"));
+				if(r.exists("counters/weight/passages"))
+				{
+					for(String checkpoint : r.getGroupMembers("counters/weight/passages"))
+					{
+						weightAdder(merged.passageWeights, checkpoint).add(r.readDouble("counters/weight/passages/" + checkpoint));
+						weightAdder(merged.firstPassageWeights, checkpoint).add(
+								r.readDouble("counters/weight/firstPassages/" + checkpoint));
+					}
+				}
+				if(r.exists("counters/weight/deathsByWaterbody"))
+				{
+					waterbodies = r.readIntArray("counters/deathWaterbodies");
+					deathWeights = r.readDoubleArray("counters/weight/deathsByWaterbody");
+					for(int i=0; i<waterbodies.length; i++)
+					{
+						weightAdder(merged.deathWeightsByWaterbody, waterbodies[i]).add(deathWeights[i]);
+					}
+				}
+			}
+		}
+		merged.write(w, layout);
+	}
+
+	// Save the counts for a behavior snapshot
+	public void save(DataOutputStream out) throws IOException
+	{
+		out.writeLong(getInserted());
+		out.writeLong(getDied());
+		out.writeLong(getExported());
+		save(out, sums(passages));
+		save(out, sums(firstPassages));
+		out.writeInt(deathsByWaterbody.size());
+		for(Map.Entry<Integer, Long> e : sums(deathsByWaterbody).entrySet())
+		{
+			out.writeInt(e.getKey());
+			out.writeLong(e.getValue());
+		}
+		out.writeDouble(getInsertedWeight());
+		out.writeDouble(getDiedWeight());
+		out.writeDouble(getExportedWeight());
+		saveWeights(out, weightSums(passageWeights));
+		saveWeights(out, weightSums(firstPassageWeights));
+		out.writeInt(deathWeightsByWaterbody.size());
+		for(Map.Entry<Integer, Double> e : weightSums(deathWeightsByWaterbody).entrySet())
+		{
+			out.writeInt(e.getKey());
+			out.writeDouble(e.getValue());
+		}
+	}
+
+	// Replace the counts with those saved by save
+	public void restore(DataInputStream in) throws IOException
+	{
+		int n;
+
+		inserted.reset();
+		inserted.add(in.readLong());
+		died.reset();
+		died.add(in.readLong());
+		exported.reset();
+		exported.add(in.readLong());
+		restore(in, passages);
+		restore(in, firstPassages);
+		deathsByWaterbody.clear();
+		n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			adder(deathsByWaterbody, in.readInt()).add(in.readLong());
+		}
+		insertedWeight.reset();
+		insertedWeight.add(in.readDouble());
+		diedWeight.reset();
+		diedWeight.add(in.readDouble());
+		exportedWeight.reset();
+		exportedWeight.add(in.readDouble());
+		restoreWeights(in, passageWeights);
+		restoreWeights(in, firstPassageWeights);
+		deathWeightsByWaterbody.clear();
+		n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			weightAdder(deathWeightsByWaterbody, in.readInt()).add(in.readDouble());
+		}
+	}
+
+	private static void save(DataOutputStream out, TreeMap<String, Long> counts) throws IOException
+	{
+		out.writeInt(counts.size());
+		for(Map.Entry<String, Long> e : counts.entrySet())
+		{
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue());
+		}
+	}
+
+	private static void restore(DataInputStream in, ConcurrentHashMap<String, LongAdder> map) throws IOException
+	{
+		int n = in.readInt();
+
+		map.clear();
+		for(int i=0; i<n; i++)
+		{
+			adder(map, in.readUTF()).add(in.readLong());
+		}
+	}
+
+	private static void saveWeights(DataOutputStream out, TreeMap<String, Double> weights) throws IOException
+	{
+		out.writeInt(weights.size());
+		for(Map.Entry<String, Double> e : weights.entrySet())
+		{
+			out.writeUTF(e.getKey());
+			out.writeDouble(e.getValue());
+		}
+	}
+
+	private static void restoreWeights(DataInputStream in, ConcurrentHashMap<String, DoubleAdder> map) throws IOException
+	{
+		int n = in.readInt();
+
+		map.clear();
+		for(int i=0; i<n; i++)
+		{
+			weightAdder(map, in.readUTF()).add(in.readDouble());
+		}
+	}
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+
+		s.append("inserted=").append(getInserted()).append(", died=").append(getDied()).append(", exported=").append(getExported());
+		for(Map.Entry<String, Long> e : sums(firstPassages).entrySet())
+		{
+			s.append(", ").append(e.getKey()).append("=").append(e.getValue());
+		}
+		if(weighted)
+		{
+			s.append(String.format("; fish inserted=%.1f, died=%.1f, exported=%.1f", getInsertedWeight(), getDiedWeight(),
+					getExportedWeight()));
+			for(Map.Entry<String, Double> e : weightSums(firstPassageWeights).entrySet())
+			{
+				s.append(String.format(", %s=%.1f", e.getKey(), e.getValue()));
+			}
+		}
+		return s.toString();
+	}
+
+	private static <K> LongAdder adder(ConcurrentHashMap<K, LongAdder> map, K key)
+	{
+		LongAdder a = map.get(key);
+
+		if(a==null)
+		{
+			LongAdder created = new LongAdder();
+			a = map.putIfAbsent(key, created);
+			if(a==null) a = created;
+		}
+		return a;
+	}
+
+	private static <K> DoubleAdder weightAdder(ConcurrentHashMap<K, DoubleAdder> map, K key)
+	{
+		DoubleAdder a = map.get(key);
+
+		if(a==null)
+		{
+			DoubleAdder created = new DoubleAdder();
+			a = map.putIfAbsent(key, created);
+			if(a==null) a = created;
+		}
+		return a;
+	}
+
+	private static <K> TreeMap<K, Double> weightSums(ConcurrentHashMap<K, DoubleAdder> map)
+	{
+		TreeMap<K, Double> sums = new TreeMap<K, Double>();
+
+		for(Map.Entry<K, DoubleAdder> e : map.entrySet())
+		{
+			sums.put(e.getKey(), e.getValue().sum());
+		}
+		return sums;
+	}
+
+	private static <K> TreeMap<K, Long> sums(ConcurrentHashMap<K, LongAdder> map)
+	{
+		TreeMap<K, Long> sums = new TreeMap<K, Long>();
+
+		for(Map.Entry<K, LongAdder> e : map.entrySet())
+		{
+			sums.put(e.getKey(), e.getValue().sum());
+		}
+		return sums;
+	}
+}
@@ -0,0 +1,232 @@
+package DWR.DMS.PTM;
+
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Columnar storage of the per-particle events: insertions, deaths, checkpoint passages, the swim
+ * speed of each fish and its realized survival probability at Chipps. With
+ * outputLayout/columnarEvents set, these are appended as rows to extendable, chunked datasets
+ * under events/ instead of being written as scalar datasets in one group per particle
+ * (inserted/particleNum/<id>/..., died/..., <checkpoint>/..., swimSpeed/..., realizedSurvProb/...).
+ * Scalar datasets can't be compressed and each carries its own object header, so for large
+ * releases the columns are much smaller and faster to write. The columns are:
+ * particleId, type (INSERTED, DIED, CHECKPOINT, SWIM_SPEED or SURV_PROB), minute (minutes since
+ * 01JAN1970 0000 of the model time), location (insertion node, waterbody of death, or checkpoint:
+ * the node for user-defined checkpoints, -1..-4 for the names in events/namedCheckpoints; 0 for
+ * the swim speed and survival probability rows), pass (pass number of a checkpoint, 0 otherwise)
+ * and value (the weight of the fish, 1 unless cohort mode is on, or the swim speed or survival
+ * probability). value is float32 if
+ * outputLayout/float32SurvProb is set. Rows are buffered in blocks of the layout's chunk size.
+ * A restarted run continues after the rows that had been recorded when the snapshot was taken
+ * and overwrites the later ones.
+ */
+public class BehaviorEventTable
+{
+	public static final String GROUP = "events/";
+
+	public static final byte INSERTED = 0;
+	public static final byte DIED = 1;
+	public static final byte CHECKPOINT = 2;
+	public static final byte SWIM_SPEED = 3;
+	public static final byte SURV_PROB = 4;
+
+	public static final String[] NAMED_CHECKPOINTS = {"Chipps", "Exit", "SWP", "CVP"};
+
+	public boolean enabled;
+	public int blockSize;
+
+	// Column buffers
+	private int[] particleId;
+	private byte[] type;
+	private int[] minute;
+	private int[] location;
+	private int[] pass;
+	private double[] value;
+	private int n;
+
+	private long rowsWritten;
+	private boolean created;
+	private BehaviorOutputLayout layout;
+
+	public BehaviorEventTable(BehaviorOutputLayout layout)
+	{
+		this.layout = layout;
+		enabled = layout.columnarEvents;
+		blockSize = layout.chunkSize>0 ? layout.chunkSize : 65536;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	// Location code of a checkpoint: the node for user-defined checkpoints, or -1..-4 for the named ones
+	public static int checkpointLocation(String checkpoint)
+	{
+		for(int i=0; i<NAMED_CHECKPOINTS.length; i++)
+		{
+			if(NAMED_CHECKPOINTS[i].equals(checkpoint)) return -1-i;
+		}
+		return Integer.parseInt(checkpoint);
+	}
+
+	public static String checkpointName(int location)
+	{
+		return location<0 ? NAMED_CHECKPOINTS[-1-location] : Integer.toString(location);
+	}
+
+	public synchronized void record(IHDF5Writer w, int id, byte eventType, int eventMinute, int eventLocation,
+			int passNumber, double eventValue)
+	{
+		if(particleId==null) allocate();
+
+		particleId[n] = id;
+		type[n] = eventType;
+		minute[n] = eventMinute;
+		location[n] = eventLocation;
+		pass[n] = passNumber;
+		value[n] = eventValue;
+		n++;
+
+		if(n==blockSize) flush(w);
+	}
+
+	// Append the buffered rows to the output file
+	public synchronized void flush(IHDF5Writer w)
+	{
+		float[] floatValue;
+
+		if(n==0) return;
+
+		if(!created) create(w);
+
+		w.writeIntArrayBlockWithOffset(GROUP + "particleId", particleId, n, rowsWritten);
+		w.writeByteArrayBlockWithOffset(GROUP + "type", type, n, rowsWritten);
+		w.writeIntArrayBlockWithOffset(GROUP + "minute", minute, n, rowsWritten);
+		w.writeIntArrayBlockWithOffset(GROUP + "location", location, n, rowsWritten);
+		w.writeIntArrayBlockWithOffset(GROUP + "pass", pass, n, rowsWritten);
+		if(layout.float32SurvProb)
+		{
+			floatValue = new float[n];
+			for(int i=0; i<n; i++) floatValue[i] = (float) value[i];
+			w.writeFloatArrayBlockWithOffset(GROUP + "value", floatValue, n, rowsWritten);
+		}
+		else
+		{
+			w.writeDoubleArrayBlockWithOffset(GROUP + "value", value, n, rowsWritten);
+		}
+
+		rowsWritten += n;
+		w.writeLong(GROUP + "rowsWritten", rowsWritten);
+		n = 0;
+	}
+
+	// Start over in a new output file. Buffered rows must be flushed first.
+	public synchronized void reset()
+	{
+		n = 0;
+		rowsWritten = 0;
+		created = false;
+	}
+
+	public synchronized long getRows()
+	{
+		return rowsWritten + n;
+	}
+
+	// Continue a restarted run after the first rows rows of the file, which were recorded before the
+	// snapshot was taken
+	public synchronized void restart(IHDF5Writer w, long rows)
+	{
+		long fileRows = w.exists(GROUP + "rowsWritten") ? w.readLong(GROUP + "rowsWritten") : 0;
+
+		n = 0;
+		if(fileRows<rows)
+		{
+			System.out.println("The behavior output has " + fileRows + " event rows, but " + rows + 
+					" had been recorded when the snapshot was taken. The missing rows are lost.");
+		}
+		if(fileRows==0) return;
+
+		rowsWritten = Math.min(rows, fileRows);
+		w.writeLong(GROUP + "rowsWritten", rowsWritten);
+		created = true;
+	}
+
+	// Create the datasets, or continue after the rows already in the file
+	private void create(IHDF5Writer w)
+	{
+		HDF5IntStorageFeatures intFeatures = layout.intColumnFeatures();
+		HDF5FloatStorageFeatures floatFeatures = layout.floatColumnFeatures();
+
+		if(w.exists(GROUP + "rowsWritten"))
+		{
+			rowsWritten = w.readLong(GROUP + "rowsWritten");
+		}
+		else
+		{
+			w.createIntArray(GROUP + "particleId", 0, blockSize, intFeatures);
+			w.createByteArray(GROUP + "type", 0, blockSize, intFeatures);
+			w.createIntArray(GROUP + "minute", 0, blockSize, intFeatures);
+			w.createIntArray(GROUP + "location", 0, blockSize, intFeatures);
+			w.createIntArray(GROUP + "pass", 0, blockSize, intFeatures);
+			if(layout.float32SurvProb) w.createFloatArray(GROUP + "value", 0, blockSize, floatFeatures);
+			else w.createDoubleArray(GROUP + "value", 0, blockSize, floatFeatures);
+			w.writeStringArray(GROUP + "namedCheckpoints", NAMED_CHECKPOINTS);
+		}
+		created = true;
+	}
+
+	// Append the rows of each worker of a sharded run
+	public static void writeMerged(List<IHDF5Reader> shards, IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		BehaviorEventTable merged = new BehaviorEventTable(layout);
+		long rows;
+		int size;
+		byte[] types;
+		int[] ids, minutes, locations, passes;
+		double[] values;
+
+		for(IHDF5Reader r : shards)
+		{
+			if(!r.exists(GROUP + "rowsWritten")) continue;
+
+			rows = r.readLong(GROUP + "rowsWritten");
+			for(long offset=0; offset<rows; offset+=merged.blockSize)
+			{
+				size = (int) Math.min(merged.blockSize, rows-offset);
+				ids = r.readIntArrayBlockWithOffset(GROUP + "particleId", size, offset);
+				types = r.readByteArrayBlockWithOffset(GROUP + "type", size, offset);
+				minutes = r.readIntArrayBlockWithOffset(GROUP + "minute", size, offset);
+				locations = r.readIntArrayBlockWithOffset(GROUP + "location", size, offset);
+				passes = r.readIntArrayBlockWithOffset(GROUP + "pass", size, offset);
+				values = r.readDoubleArrayBlockWithOffset(GROUP + "value", size, offset);
+				for(int i=0; i<size; i++)
+				{
+					merged.record(w, ids[i], types[i], minutes[i], locations[i], passes[i], values[i]);
+				}
+			}
+		}
+		merged.flush(w);
+	}
+
+	private void allocate()
+	{
+		particleId = new int[blockSize];
+		type = new byte[blockSize];
+		minute = new int[blockSize];
+		location = new int[blockSize];
+		pass = new int[blockSize];
+		value = new double[blockSize];
+	}
+
+	public String toString()
+	{
+		return "event table blockSize=" + blockSize + ", rows=" + getRows();
+	}
+}
@@ -0,0 +1,195 @@
+package DWR.DMS.PTM;
+
+import java.io.File;
+import java.util.Random;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Measures the write rate and file size of the behavior output for several storage layouts. Each
+ * configuration writes the same synthetic release: for every fish an insertion, its swim speed,
+ * checkpoint passages, and either its realized survival probability at Chipps or its death. The
+ * per-particle layout writes the scalar datasets the way BehavedParticle does without
+ * outputLayout/columnarEvents; the columnar layouts go through BehaviorEventTable.
+ *
+ * No results have been recorded yet, so BehaviorOutputLayout keeps the old contiguous,
+ * uncompressed per-particle layout as its default. Run this on a representative release before
+ * changing the defaults, and record the table printed here with the change.
+ *
+ * Usage: java DWR.DMS.PTM.BehaviorOutputBenchmark [-fish N] [-dir directory]
+ */
+public class BehaviorOutputBenchmark
+{
+	private static final int START_MINUTE = 15778080; // 01JAN2000 0000
+	private static final String[] CHECKPOINTS = {"439", "Chipps", "Exit"};
+
+	public static void main(String[] args)
+	{
+		int fish = 100000;
+		String directory = System.getProperty("java.io.tmpdir");
+		Object[][] configurations = {
+				// name, columnarEvents, chunkSize, deflateLevel, shuffle, float32SurvProb
+				{"per-particle scalars", false, 0, 0, false, false},
+				{"per-particle scalars, deflate 4", false, 4096, 4, true, false},
+				{"columnar, uncompressed", true, 65536, 0, false, false},
+				{"columnar, deflate 1", true, 65536, 1, false, false},
+				{"columnar, deflate 4 + shuffle", true, 65536, 4, true, false},
+				{"columnar, deflate 4 + shuffle, float32", true, 65536, 4, true, true},
+				{"columnar, deflate 9 + shuffle, float32", true, 65536, 9, true, true}};
+		BehaviorOutputLayout layout;
+		File file;
+		long start, bytes, baseline = 0;
+		double seconds;
+		int events;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-fish")) fish = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-dir")) directory = args[++i];
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		System.out.println(String.format("%-42s %10s %12s %14s %12s %8s", "layout", "seconds", "events/s", "bytes", "bytes/fish",
+				"ratio"));
+		for(Object[] c : configurations)
+		{
+			layout = new BehaviorOutputLayout();
+			layout.columnarEvents = (Boolean) c[1];
+			layout.chunkSize = (Integer) c[2];
+			layout.deflateLevel = (Integer) c[3];
+			layout.shuffle = (Boolean) c[4];
+			layout.float32SurvProb = (Boolean) c[5];
+
+			file = new File(directory, "behaviorOutputBenchmark.h5");
+			if(file.exists()) file.delete();
+
+			start = System.nanoTime();
+			events = write(file.getPath(), layout, fish);
+			seconds = (System.nanoTime()-start)/1e9;
+			bytes = file.length();
+			if(baseline==0) baseline = bytes;
+			file.delete();
+
+			System.out.println(String.format("%-42s %10.2f %12.0f %14d %12.1f %8.3f", c[0], seconds, events/seconds, bytes,
+					bytes/(double) fish, bytes/(double) baseline));
+		}
+	}
+
+	// Write the synthetic release and return the number of events written
+	private static int write(String filename, BehaviorOutputLayout layout, int fish)
+	{
+		IHDF5Writer w = layout.open(filename);
+		BehaviorEventTable table = new BehaviorEventTable(layout);
+		Random random = new Random(1);
+		int minute, events = 0;
+
+		try
+		{
+			for(int id=1; id<=fish; id++)
+			{
+				minute = START_MINUTE + 15*(id/100);
+				insertion(w, table, layout, id, minute, 330 + random.nextInt(20));
+				swimSpeed(w, table, layout, id, minute, (float) (random.nextGaussian()*0.1));
+				events += 2;
+				for(int c=0; c<CHECKPOINTS.length; c++)
+				{
+					minute += 60 + random.nextInt(2880);
+					if(random.nextDouble()<0.3)
+					{
+						death(w, table, layout, id, minute, random.nextInt(800));
+						events++;
+						break;
+					}
+					checkpoint(w, table, layout, id, minute, CHECKPOINTS[c]);
+					events++;
+					if(CHECKPOINTS[c].equals("Chipps"))
+					{
+						survProb(w, table, layout, id, minute, random.nextDouble());
+						events++;
+					}
+				}
+			}
+			table.flush(w);
+		} finally
+		{
+			w.close();
+		}
+		return events;
+	}
+
+	private static void insertion(IHDF5Writer w, BehaviorEventTable table, BehaviorOutputLayout layout, int id, int minute,
+			int node)
+	{
+		String path = "inserted/particleNum/" + id;
+
+		if(layout.columnarEvents)
+		{
+			table.record(w, id, BehaviorEventTable.INSERTED, minute, node, 0, 1.0);
+			return;
+		}
+		w.writeString(path + "/modelDate", modelDate(minute), 9);
+		w.writeInt(path + "/modelTime", modelTime(minute));
+		w.writeInt(path + "/insertionNode", node);
+	}
+
+	private static void death(IHDF5Writer w, BehaviorEventTable table, BehaviorOutputLayout layout, int id, int minute,
+			int waterbody)
+	{
+		String path = "died/particleNum/" + id;
+
+		if(layout.columnarEvents)
+		{
+			table.record(w, id, BehaviorEventTable.DIED, minute, waterbody, 0, 1.0);
+			return;
+		}
+		w.writeString(path + "/modelDate", modelDate(minute), 9);
+		w.writeInt(path + "/modelTime", modelTime(minute));
+		w.writeInt(path + "/waterBody", waterbody);
+	}
+
+	private static void checkpoint(IHDF5Writer w, BehaviorEventTable table, BehaviorOutputLayout layout, int id, int minute,
+			String checkpoint)
+	{
+		String path = checkpoint + "/particleNum/" + id;
+
+		if(layout.columnarEvents)
+		{
+			table.record(w, id, BehaviorEventTable.CHECKPOINT, minute, BehaviorEventTable.checkpointLocation(checkpoint), 1, 1.0);
+			return;
+		}
+		w.writeString(path + "/modelDate_1", modelDate(minute), 9);
+		w.writeInt(path + "/modelTime_1", modelTime(minute));
+	}
+
+	private static void swimSpeed(IHDF5Writer w, BehaviorEventTable table, BehaviorOutputLayout layout, int id, int minute,
+			float swimSpeed)
+	{
+		if(layout.columnarEvents)
+		{
+			table.record(w, id, BehaviorEventTable.SWIM_SPEED, minute, 0, 0, swimSpeed);
+			return;
+		}
+		w.writeFloat("swimSpeed/particleNum/" + id, swimSpeed);
+	}
+
+	private static void survProb(IHDF5Writer w, BehaviorEventTable table, BehaviorOutputLayout layout, int id, int minute,
+			double survProb)
+	{
+		if(layout.columnarEvents)
+		{
+			table.record(w, id, BehaviorEventTable.SURV_PROB, minute, 0, 0, survProb);
+			return;
+		}
+		layout.writeSurvProb(w, "realizedSurvProb/" + id, survProb);
+	}
+
+	private static String modelDate(int minute)
+	{
+		return BehaviorOutputIndex.formatMinute(minute).substring(0, 9);
+	}
+
+	private static int modelTime(int minute)
+	{
+		return Integer.parseInt(BehaviorOutputIndex.formatMinute(minute).substring(9));
+	}
+}
@@ -0,0 +1,631 @@
+package DWR.DMS.PTM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Index of the events in one or more behavior output files (e.g., the windows of a rolling run)
+ * for post-processing. The index is built once, by walking inserted/, died/ and the checkpoint
+ * groups, or by reading the events/ columns of files written with outputLayout/columnarEvents. It
+ * is saved next to the first output file with an .idx extension, together with the path and size
+ * of each output file it indexes, and rebuilt when the files differ from those or one of them is
+ * newer than the index. Events are held in columns sorted by particle, with the
+ * offset of each particle's first event, and the passages of each checkpoint are sorted by time,
+ * so a particle's history and the fish that passed a checkpoint before a date are found by
+ * binary search.
+ *
+ * Usage: java DWR.DMS.PTM.BehaviorOutputIndex output.h5 [more.h5 ...] [-history id]
+ *            [-passed checkpoint ddMMMyyyy HHmm] [-fates] [-csv events.csv]
+ */
+public class BehaviorOutputIndex
+{
+	public static final byte INSERTED = 0;
+	public static final byte DIED = 1;
+	public static final byte CHECKPOINT = 2;
+
+	private static final int MAGIC = 0x50544d49;
+	private static final int VERSION = 2;
+	private static final String[] EVENT_NAMES = {"inserted", "died", "checkpoint"};
+	// Top-level groups that aren't inserted, died or a checkpoint, even if they have a particleNum member
+	private static final String[] NOT_EVENTS = {"swimSpeed", "realizedSurvProb", "trajectory",
+			"events", "counters", "reachSurvival", "convergence", "outputLayout", "weightsTransformation"};
+
+	// Events sorted by particle, then time
+	public int n;
+	public int[] particleId;
+	public byte[] type;
+	public int[] minute;
+	// Insertion node, waterbody of death, or checkpoint index
+	public int[] location;
+	public short[] pass;
+	public String[] checkpointNames;
+
+	// Unique particle IDs and the offset of each one's first event
+	public int[] particles;
+	public int[] particleStart;
+
+	// For each checkpoint, its passages sorted by time (indices into the event columns)
+	private int[][] passagesByTime;
+
+	// The indexed output files (absolute paths) and their sizes when they were indexed
+	private String[] sourceFiles = new String[0];
+	private long[] sourceSizes = new long[0];
+
+	private static SimpleDateFormat dateTimeFormat()
+	{
+		SimpleDateFormat format = new SimpleDateFormat("ddMMMyyyyHHmm", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	// Minutes since 1970 of a model date (e.g., 01JAN2000) and HHMM time
+	public static int toMinute(String modelDate, int modelTime)
+	{
+		try
+		{
+			return (int) (dateTimeFormat().parse(modelDate + String.format("%04d", modelTime)).getTime()/60000L);
+		} catch (ParseException e)
+		{
+			throw new IllegalArgumentException("Unrecognized model date " + modelDate + " " + modelTime);
+		}
+	}
+
+	public static String formatMinute(int minute)
+	{
+		return dateTimeFormat().format(new Date(minute*60000L)).toUpperCase(Locale.US);
+	}
+
+	public static BehaviorOutputIndex open(String... outputFilenames) throws IOException
+	{
+		File indexFile = new File(indexFilename(outputFilenames[0]));
+		BehaviorOutputIndex index;
+		boolean current = indexFile.exists() && indexes(indexFile.getPath(), outputFilenames);
+
+		for(String filename : outputFilenames)
+		{
+			if(new File(filename).lastModified()>indexFile.lastModified()) current = false;
+		}
+
+		if(current)
+		{
+			index = load(indexFile.getPath());
+		}
+		else
+		{
+			index = build(outputFilenames);
+			index.save(indexFile.getPath());
+		}
+		return index;
+	}
+
+	public static String indexFilename(String outputFilename)
+	{
+		int dot = outputFilename.lastIndexOf('.');
+
+		if(dot<=Math.max(outputFilename.lastIndexOf('/'), outputFilename.lastIndexOf('\\')))
+		{
+			return outputFilename + ".idx";
+		}
+		return outputFilename.substring(0, dot) + ".idx";
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// Building
+	////////////////////////////////////////////////////////////////////
+	public static BehaviorOutputIndex build(String... outputFilenames)
+	{
+		EventList events = new EventList();
+		ArrayList<String> checkpoints = new ArrayList<String>();
+		HashMap<String, Integer> checkpointIndex = new HashMap<String, Integer>();
+		BehaviorOutputIndex index;
+		IHDF5Reader r;
+		String path;
+		int id, passNumber;
+		Integer cp;
+
+		for(String filename : outputFilenames)
+		{
+			r = HDF5Factory.openForReading(filename);
+			try
+			{
+				if(r.exists(BehaviorEventTable.GROUP + "rowsWritten")) addEventTable(r, events, checkpoints, checkpointIndex);
+				
+				for(String group : r.getGroupMembers("/"))
+				{
+					if(!r.isGroup(group) || !r.exists(group + "/particleNum")) continue;
+					if(Arrays.asList(NOT_EVENTS).contains(group)) continue;
+
+					for(String particle : r.getGroupMembers(group + "/particleNum"))
+					{
+						id = Integer.parseInt(particle);
+						path = group + "/particleNum/" + particle + "/";
+						if(!r.isGroup(path)) continue;
+
+						if(group.equals("inserted"))
+						{
+							events.add(id, INSERTED, toMinute(r.readString(path + "modelDate"), r.readInt(path + "modelTime")),
+									r.readInt(path + "insertionNode"), 1);
+						}
+						else if(group.equals("died"))
+						{
+							events.add(id, DIED, toMinute(r.readString(path + "modelDate"), r.readInt(path + "modelTime")),
+									r.readInt(path + "waterBody"), 1);
+						}
+						else
+						{
+							cp = checkpointIndex.get(group);
+							if(cp==null)
+							{
+								cp = checkpoints.size();
+								checkpoints.add(group);
+								checkpointIndex.put(group, cp);
+							}
+							for(String member : r.getGroupMembers(path))
+							{
+								if(!member.startsWith("modelDate_")) continue;
+								passNumber = Integer.parseInt(member.substring("modelDate_".length()));
+								events.add(id, CHECKPOINT, toMinute(r.readString(path + member), r.readInt(path + "modelTime_" + passNumber)),
+										cp, passNumber);
+							}
+						}
+					}
+				}
+			} finally
+			{
+				r.close();
+			}
+		}
+
+		index = events.toIndex(checkpoints.toArray(new String[0]));
+		index.sourceFiles = new String[outputFilenames.length];
+		index.sourceSizes = new long[outputFilenames.length];
+		for(int f=0; f<outputFilenames.length; f++)
+		{
+			index.sourceFiles[f] = new File(outputFilenames[f]).getAbsolutePath();
+			index.sourceSizes[f] = new File(outputFilenames[f]).length();
+		}
+		return index;
+	}
+
+	// Add the rows of a columnar event table (outputLayout/columnarEvents)
+	private static void addEventTable(IHDF5Reader r, EventList events, ArrayList<String> checkpoints,
+			HashMap<String, Integer> checkpointIndex)
+	{
+		String group = BehaviorEventTable.GROUP;
+		long rows = r.readLong(group + "rowsWritten");
+		int size, block = 65536;
+		int[] ids, minutes, locations, passes;
+		byte[] types;
+		String name;
+		Integer cp;
+
+		for(long offset=0; offset<rows; offset+=block)
+		{
+			size = (int) Math.min(block, rows-offset);
+			ids = r.readIntArrayBlockWithOffset(group + "particleId", size, offset);
+			types = r.readByteArrayBlockWithOffset(group + "type", size, offset);
+			minutes = r.readIntArrayBlockWithOffset(group + "minute", size, offset);
+			locations = r.readIntArrayBlockWithOffset(group + "location", size, offset);
+			passes = r.readIntArrayBlockWithOffset(group + "pass", size, offset);
+			for(int i=0; i<size; i++)
+			{
+				if(types[i]==BehaviorEventTable.INSERTED) events.add(ids[i], INSERTED, minutes[i], locations[i], 1);
+				else if(types[i]==BehaviorEventTable.DIED) events.add(ids[i], DIED, minutes[i], locations[i], 1);
+				else if(types[i]==BehaviorEventTable.CHECKPOINT)
+				{
+					name = BehaviorEventTable.checkpointName(locations[i]);
+					cp = checkpointIndex.get(name);
+					if(cp==null)
+					{
+						cp = checkpoints.size();
+						checkpoints.add(name);
+						checkpointIndex.put(name, cp);
+					}
+					events.add(ids[i], CHECKPOINT, minutes[i], cp, passes[i]);
+				}
+			}
+		}
+	}
+
+	// Growable event columns used while walking the output
+	private static class EventList
+	{
+		int n = 0;
+		int[] particleId = new int[1024], minute = new int[1024], location = new int[1024], pass = new int[1024];
+		byte[] type = new byte[1024];
+
+		void add(int id, byte eventType, int eventMinute, int eventLocation, int passNumber)
+		{
+			if(n==particleId.length)
+			{
+				particleId = Arrays.copyOf(particleId, 2*n);
+				minute = Arrays.copyOf(minute, 2*n);
+				location = Arrays.copyOf(location, 2*n);
+				pass = Arrays.copyOf(pass, 2*n);
+				type = Arrays.copyOf(type, 2*n);
+			}
+			particleId[n] = id;
+			type[n] = eventType;
+			minute[n] = eventMinute;
+			location[n] = eventLocation;
+			pass[n] = passNumber;
+			n++;
+		}
+
+		// Sort the events by particle, then time, then type
+		BehaviorOutputIndex toIndex(String[] checkpointNames)
+		{
+			BehaviorOutputIndex index = new BehaviorOutputIndex();
+			Integer[] order = new Integer[n];
+			int j;
+
+			for(int i=0; i<n; i++) order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+				public int compare(Integer a, Integer b)
+				{
+					if(particleId[a]!=particleId[b]) return Integer.compare(particleId[a], particleId[b]);
+					if(minute[a]!=minute[b]) return Integer.compare(minute[a], minute[b]);
+					return Byte.compare(type[a], type[b]);
+				}
+			});
+
+			index.allocate(n);
+			index.checkpointNames = checkpointNames;
+			for(int i=0; i<n; i++)
+			{
+				j = order[i];
+				index.particleId[i] = particleId[j];
+				index.type[i] = type[j];
+				index.minute[i] = minute[j];
+				index.location[i] = location[j];
+				index.pass[i] = (short) pass[j];
+			}
+			index.buildLookups();
+			return index;
+		}
+	}
+
+	private void allocate(int size)
+	{
+		n = size;
+		particleId = new int[n];
+		type = new byte[n];
+		minute = new int[n];
+		location = new int[n];
+		pass = new short[n];
+	}
+
+	private void buildLookups()
+	{
+		int count = 0;
+		int[] passages;
+		int[] sizes = new int[checkpointNames.length];
+
+		particles = new int[n];
+		particleStart = new int[n+1];
+		for(int i=0; i<n; i++)
+		{
+			if(i==0 || particleId[i]!=particleId[i-1])
+			{
+				particles[count] = particleId[i];
+				particleStart[count] = i;
+				count++;
+			}
+			if(type[i]==CHECKPOINT) sizes[location[i]]++;
+		}
+		particles = Arrays.copyOf(particles, count);
+		particleStart = Arrays.copyOf(particleStart, count+1);
+		particleStart[count] = n;
+
+		passagesByTime = new int[checkpointNames.length][];
+		for(int c=0; c<checkpointNames.length; c++)
+		{
+			passagesByTime[c] = new int[sizes[c]];
+			sizes[c] = 0;
+		}
+		for(int i=0; i<n; i++)
+		{
+			if(type[i]==CHECKPOINT) passagesByTime[location[i]][sizes[location[i]]++] = i;
+		}
+		for(int c=0; c<checkpointNames.length; c++)
+		{
+			passages = passagesByTime[c];
+			Integer[] boxed = new Integer[passages.length];
+			for(int i=0; i<passages.length; i++) boxed[i] = passages[i];
+			Arrays.sort(boxed, new Comparator<Integer>()
+			{
+				public int compare(Integer a, Integer b)
+				{
+					return Integer.compare(minute[a], minute[b]);
+				}
+			});
+			for(int i=0; i<passages.length; i++) passages[i] = boxed[i];
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// Queries
+	////////////////////////////////////////////////////////////////////
+	// Range [start, end) of the particle's events in the columns, or null if it has none
+	public int[] history(int id)
+	{
+		int p = Arrays.binarySearch(particles, id);
+
+		if(p<0) return null;
+		return new int[] {particleStart[p], particleStart[p+1]};
+	}
+
+	// IDs of the fish that passed checkpoint before minute (first passes only), in order of passage
+	public int[] passedBefore(String checkpoint, int beforeMinute)
+	{
+		int c = Arrays.asList(checkpointNames).indexOf(checkpoint);
+		int[] passages, ids;
+		int lo = 0, hi, mid, count = 0;
+
+		if(c<0) return new int[0];
+		passages = passagesByTime[c];
+		hi = passages.length;
+		while(lo<hi)
+		{
+			mid = (lo+hi) >>> 1;
+			if(minute[passages[mid]]<beforeMinute) lo = mid+1;
+			else hi = mid;
+		}
+
+		ids = new int[lo];
+		for(int i=0; i<lo; i++)
+		{
+			if(pass[passages[i]]==1) ids[count++] = particleId[passages[i]];
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	// Fate of a fish: SWP or CVP if it was exported, Exit if it left the system, died, Chipps if it
+	// passed Chipps Island and is still alive, otherwise alive
+	public String fate(int id)
+	{
+		int[] range = history(id);
+		boolean died = false, chipps = false;
+		String name;
+
+		if(range==null) return "unknown";
+		for(int i=range[0]; i<range[1]; i++)
+		{
+			if(type[i]==DIED) died = true;
+			if(type[i]!=CHECKPOINT) continue;
+
+			name = checkpointNames[location[i]];
+			if(name.equals("SWP") || name.equals("CVP") || name.equals("Exit")) return name;
+			if(name.equals("Chipps")) chipps = true;
+		}
+		return died ? "died" : (chipps ? "Chipps" : "alive");
+	}
+
+	// Count of each fate by release (insertion) node
+	public TreeMap<Integer, TreeMap<String, Integer>> fatesByReleaseNode()
+	{
+		TreeMap<Integer, TreeMap<String, Integer>> fates = new TreeMap<Integer, TreeMap<String, Integer>>();
+		TreeMap<String, Integer> counts;
+		String fate;
+		Integer count;
+
+		for(int p=0; p<particles.length; p++)
+		{
+			for(int i=particleStart[p]; i<particleStart[p+1]; i++)
+			{
+				if(type[i]!=INSERTED) continue;
+
+				counts = fates.get(location[i]);
+				if(counts==null)
+				{
+					counts = new TreeMap<String, Integer>();
+					fates.put(location[i], counts);
+				}
+				fate = fate(particles[p]);
+				count = counts.get(fate);
+				counts.put(fate, count==null ? 1 : count+1);
+				break;
+			}
+		}
+		return fates;
+	}
+
+	// Write all events, or the events in [start, end), as CSV
+	public void exportCSV(String filename) throws IOException
+	{
+		exportCSV(filename, 0, n);
+	}
+
+	public void exportCSV(String filename, int start, int end) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedOutputStream(new FileOutputStream(filename), 1<<16));
+
+		try
+		{
+			out.println("particleId,event,location,checkpoint,pass,modelDate,modelTime");
+			for(int i=start; i<end; i++)
+			{
+				out.println(formatEvent(i));
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	public String formatEvent(int i)
+	{
+		String dateTime = formatMinute(minute[i]);
+
+		return particleId[i] + "," + EVENT_NAMES[type[i]] + "," + (type[i]==CHECKPOINT ? "" : Integer.toString(location[i])) + "," +
+				(type[i]==CHECKPOINT ? checkpointNames[location[i]] : "") + "," + pass[i] + "," +
+				dateTime.substring(0, 9) + "," + dateTime.substring(9);
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// Index file
+	////////////////////////////////////////////////////////////////////
+	public void save(String filename) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1<<16));
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sourceFiles.length);
+			for(int f=0; f<sourceFiles.length; f++)
+			{
+				out.writeUTF(sourceFiles[f]);
+				out.writeLong(sourceSizes[f]);
+			}
+			out.writeInt(checkpointNames.length);
+			for(String name : checkpointNames) out.writeUTF(name);
+			out.writeInt(n);
+			for(int i=0; i<n; i++) out.writeInt(particleId[i]);
+			out.write(type, 0, n);
+			for(int i=0; i<n; i++) out.writeInt(minute[i]);
+			for(int i=0; i<n; i++) out.writeInt(location[i]);
+			for(int i=0; i<n; i++) out.writeShort(pass[i]);
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	public static BehaviorOutputIndex load(String filename) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1<<16));
+		BehaviorOutputIndex index = new BehaviorOutputIndex();
+
+		try
+		{
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+			{
+				throw new IOException(filename + " is not a behavior output index of version " + VERSION);
+			}
+			index.sourceFiles = new String[in.readInt()];
+			index.sourceSizes = new long[index.sourceFiles.length];
+			for(int f=0; f<index.sourceFiles.length; f++)
+			{
+				index.sourceFiles[f] = in.readUTF();
+				index.sourceSizes[f] = in.readLong();
+			}
+			index.checkpointNames = new String[in.readInt()];
+			for(int c=0; c<index.checkpointNames.length; c++) index.checkpointNames[c] = in.readUTF();
+			index.allocate(in.readInt());
+			for(int i=0; i<index.n; i++) index.particleId[i] = in.readInt();
+			in.readFully(index.type, 0, index.n);
+			for(int i=0; i<index.n; i++) index.minute[i] = in.readInt();
+			for(int i=0; i<index.n; i++) index.location[i] = in.readInt();
+			for(int i=0; i<index.n; i++) index.pass[i] = in.readShort();
+		} finally
+		{
+			in.close();
+		}
+		index.buildLookups();
+		return index;
+	}
+
+	// Whether the index file was built from exactly these output files, at their current sizes.
+	// Only the header is read.
+	private static boolean indexes(String filename, String[] outputFilenames) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		File file;
+
+		try
+		{
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION || in.readInt()!=outputFilenames.length) return false;
+			for(String outputFilename : outputFilenames)
+			{
+				file = new File(outputFilename);
+				if(!in.readUTF().equals(file.getAbsolutePath()) || in.readLong()!=file.length()) return false;
+			}
+			return true;
+		} catch (EOFException e)
+		{
+			return false;
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		ArrayList<String> files = new ArrayList<String>();
+		BehaviorOutputIndex index;
+		long start = System.nanoTime();
+		int[] range, ids;
+		int i = 0;
+
+		while(i<args.length && !args[i].startsWith("-")) files.add(args[i++]);
+		if(files.isEmpty())
+		{
+			System.out.println("Usage: BehaviorOutputIndex output.h5 [more.h5 ...] [-history id] " +
+					"[-passed checkpoint ddMMMyyyy HHmm] [-fates] [-csv events.csv]");
+			System.exit(1);
+		}
+
+		index = open(files.toArray(new String[0]));
+		System.out.println("Indexed " + index.n + " events of " + index.particles.length + " particles in " +
+				(System.nanoTime()-start)/1000000 + " ms");
+
+		for(; i<args.length; i++)
+		{
+			start = System.nanoTime();
+			if(args[i].equals("-history"))
+			{
+				range = index.history(Integer.parseInt(args[++i]));
+				if(range!=null)
+				{
+					for(int e=range[0]; e<range[1]; e++) System.out.println(index.formatEvent(e));
+				}
+			}
+			else if(args[i].equals("-passed"))
+			{
+				ids = index.passedBefore(args[i+1], toMinute(args[i+2], Integer.parseInt(args[i+3])));
+				System.out.println(ids.length + " fish passed " + args[i+1] + " before " + args[i+2] + " " + args[i+3] + ": " +
+						Arrays.toString(ids));
+				i += 3;
+			}
+			else if(args[i].equals("-fates"))
+			{
+				System.out.println(index.fatesByReleaseNode());
+			}
+			else if(args[i].equals("-csv"))
+			{
+				index.exportCSV(args[++i]);
+				System.out.println("Wrote " + args[i]);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unrecognized option " + args[i]);
+			}
+			System.out.println("(" + (System.nanoTime()-start)/1000 + " us)");
+		}
+	}
+}
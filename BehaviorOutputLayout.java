@@ -0,0 +1,176 @@
+package DWR.DMS.PTM;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleWriter;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Storage layout of the behavior output file: chunk size, deflate level, shuffle filter, whether
+ * survival probabilities are stored as float32, and whether the per-particle events are written
+ * to the columns of BehaviorEventTable. The values are read from outputLayout/* in the behavior
+ * parameter file. Missing values keep the old contiguous, uncompressed layout. Scalar datasets
+ * can't be chunked or compressed, so without columnarEvents the layout only applies to the array
+ * datasets. The layout is also recorded under outputLayout/ in each output file, where
+ * BehaviorOutputMerger reads it. BehaviorOutputBenchmark measures the write rate and file size of
+ * each setting. The defaults stay the old layout until it has been run on a representative release;
+ * change them together with its numbers.
+ */
+public class BehaviorOutputLayout
+{
+	public int chunkSize;
+	public int deflateLevel;
+	public boolean shuffle;
+	public boolean float32SurvProb;
+	public boolean columnarEvents;
+	
+	public BehaviorOutputLayout()
+	{
+		chunkSize = 0;
+		deflateLevel = 0;
+		shuffle = false;
+		float32SurvProb = false;
+		columnarEvents = false;
+	}
+	
+	public static BehaviorOutputLayout read(IHDF5SimpleReader r)
+	{
+		BehaviorOutputLayout layout = new BehaviorOutputLayout();
+		
+		if(r.exists("outputLayout/chunkSize")) layout.chunkSize = r.readInt("outputLayout/chunkSize");
+		if(r.exists("outputLayout/deflateLevel")) layout.deflateLevel = r.readInt("outputLayout/deflateLevel");
+		if(r.exists("outputLayout/shuffle")) layout.shuffle = r.readBoolean("outputLayout/shuffle");
+		if(r.exists("outputLayout/float32SurvProb")) layout.float32SurvProb = r.readBoolean("outputLayout/float32SurvProb");
+		if(r.exists("outputLayout/columnarEvents")) layout.columnarEvents = r.readBoolean("outputLayout/columnarEvents");
+		
+		if(layout.deflateLevel<0 || layout.deflateLevel>9)
+		{
+			throw new IllegalArgumentException("outputLayout/deflateLevel must be between 0 and 9");
+		}
+		return layout;
+	}
+	
+	// Record the layout in the output file, so the files of a sharded run can be merged with the
+	// layout they were written with
+	public void write(IHDF5SimpleWriter w)
+	{
+		w.writeInt("outputLayout/chunkSize", chunkSize);
+		w.writeInt("outputLayout/deflateLevel", deflateLevel);
+		w.writeBoolean("outputLayout/shuffle", shuffle);
+		w.writeBoolean("outputLayout/float32SurvProb", float32SurvProb);
+		w.writeBoolean("outputLayout/columnarEvents", columnarEvents);
+	}
+	
+	public IHDF5Writer open(String filename)
+	{
+		return HDF5Factory.configure(filename).writer();
+	}
+	
+	public HDF5FloatStorageFeatures floatFeatures()
+	{
+		HDF5FloatStorageFeatures.HDF5FloatStorageFeatureBuilder builder = HDF5FloatStorageFeatures.build();
+		
+		if(deflateLevel>0) builder.deflateLevel((byte) deflateLevel);
+		if(deflateLevel>0 && shuffle) builder.shuffleBeforeDeflate();
+		if(chunkSize>0) builder.chunkedStorageLayout();
+		return builder.features();
+	}
+	
+	public HDF5IntStorageFeatures intFeatures()
+	{
+		HDF5IntStorageFeatures.HDF5IntStorageFeatureBuilder builder = HDF5IntStorageFeatures.build();
+		
+		if(deflateLevel>0) builder.deflateLevel((byte) deflateLevel);
+		if(deflateLevel>0 && shuffle) builder.shuffleBeforeDeflate();
+		if(chunkSize>0) builder.chunkedStorageLayout();
+		return builder.features();
+	}
+	
+	// Extendable column datasets have to be chunked, whatever chunkSize is
+	public HDF5FloatStorageFeatures floatColumnFeatures()
+	{
+		HDF5FloatStorageFeatures.HDF5FloatStorageFeatureBuilder builder = HDF5FloatStorageFeatures.build();
+		
+		if(deflateLevel>0) builder.deflateLevel((byte) deflateLevel);
+		if(deflateLevel>0 && shuffle) builder.shuffleBeforeDeflate();
+		builder.chunkedStorageLayout();
+		return builder.features();
+	}
+	
+	public HDF5IntStorageFeatures intColumnFeatures()
+	{
+		HDF5IntStorageFeatures.HDF5IntStorageFeatureBuilder builder = HDF5IntStorageFeatures.build();
+		
+		if(deflateLevel>0) builder.deflateLevel((byte) deflateLevel);
+		if(deflateLevel>0 && shuffle) builder.shuffleBeforeDeflate();
+		builder.chunkedStorageLayout();
+		return builder.features();
+	}
+	
+	// Write an array with the configured layout. Chunked datasets are created with chunkSize
+	// (or the array length, if it is shorter) so the chunk size is not left to the library.
+	public void writeFloatArray(IHDF5Writer w, String path, float[] data)
+	{
+		if(chunkSize>0 && data.length>0)
+		{
+			w.createFloatArray(path, data.length, Math.min(chunkSize, data.length), floatFeatures());
+			w.writeFloatArrayBlockWithOffset(path, data, data.length, 0);
+		}
+		else
+		{
+			w.writeFloatArray(path, data, floatFeatures());
+		}
+	}
+	
+	public void writeDoubleArray(IHDF5Writer w, String path, double[] data)
+	{
+		if(chunkSize>0 && data.length>0)
+		{
+			w.createDoubleArray(path, data.length, Math.min(chunkSize, data.length), floatFeatures());
+			w.writeDoubleArrayBlockWithOffset(path, data, data.length, 0);
+		}
+		else
+		{
+			w.writeDoubleArray(path, data, floatFeatures());
+		}
+	}
+	
+	public void writeIntArray(IHDF5Writer w, String path, int[] data)
+	{
+		if(chunkSize>0 && data.length>0)
+		{
+			w.createIntArray(path, data.length, Math.min(chunkSize, data.length), intFeatures());
+			w.writeIntArrayBlockWithOffset(path, data, data.length, 0);
+		}
+		else
+		{
+			w.writeIntArray(path, data, intFeatures());
+		}
+	}
+	
+	public void writeDoubleMatrix(IHDF5Writer w, String path, double[][] data)
+	{
+		w.writeDoubleMatrix(path, data, floatFeatures());
+	}
+	
+	// Survival probabilities are optionally stored as float32
+	public void writeSurvProb(IHDF5SimpleWriter w, String path, double value)
+	{
+		if(float32SurvProb)
+		{
+			w.writeFloat(path, (float) value);
+		}
+		else
+		{
+			w.writeDouble(path, value);
+		}
+	}
+	
+	public String toString()
+	{
+		return "chunkSize=" + chunkSize + ", deflateLevel=" + deflateLevel + ", shuffle=" + shuffle + 
+				", float32SurvProb=" + float32SurvProb + ", columnarEvents=" + columnarEvents;
+	}
+}
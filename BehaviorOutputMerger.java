@@ -0,0 +1,180 @@
+package DWR.DMS.PTM;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Merges the behavior output files written by the workers of a sharded run into one file with the
+ * layout of a single-process run. The workers simulate disjoint sets of particles, so the
+ * per-particle groups (inserted, died, checkpoints, realizedSurvProb) are copied as they are, and
+ * datasets that every worker writes (the echoed parameters) are taken from the first worker. The
+ * run-wide counters and the reach survival counts are summed and the survival estimates
+ * recomputed, as are the convergence intervals from the pooled outcomes; the sampled trajectory
+ * rows and the rows of the event table are appended worker by worker. Unless a layout is given,
+ * the merged file is written with the storage layout recorded under outputLayout/ in the first
+ * worker's file.
+ *
+ * If the workers split their output into windows of model time (output/windowInterval), each
+ * worker wrote <shard>_w<k> files and an index <shard>.csv instead of its shard file.
+ * mergeWindows merges the workers' files window by window into the files and index a
+ * single-process run would have written, with the pooled summaries in the last window.
+ */
+public class BehaviorOutputMerger
+{
+	public static void merge(List<String> shardFilenames, String outputFilename)
+	{
+		merge(shardFilenames, outputFilename, null);
+	}
+
+	public static void merge(List<String> shardFilenames, String outputFilename, BehaviorOutputLayout layout)
+	{
+		merge(shardFilenames, shardFilenames, outputFilename, layout);
+	}
+
+	// Merge the windowed output of the workers. Every worker ends the run in the window of the
+	// last file in its index, which holds its summaries.
+	public static void mergeWindows(List<String> shardFilenames, String outputFilename) throws IOException
+	{
+		BehaviorOutputWindows merged = new BehaviorOutputWindows(outputFilename);
+		BehaviorOutputWindows shard;
+		TreeMap<Integer, List<String>> windows = new TreeMap<Integer, List<String>>();
+		ArrayList<String> summaryFilenames = new ArrayList<String>();
+		TreeMap<Integer, String> index;
+		List<String> files;
+
+		for(String filename : shardFilenames)
+		{
+			shard = new BehaviorOutputWindows(filename);
+			index = shard.readIndex();
+			if(index.isEmpty())
+			{
+				throw new IOException("The output window index " + shard.getIndexFilename() + " lists no windows");
+			}
+			if(merged.interval>0 && shard.interval!=merged.interval)
+			{
+				throw new IOException("The workers' output windows differ: " + shard.getIndexFilename() + " has " +
+						shard.interval + " minute windows, not " + merged.interval);
+			}
+			merged.interval = shard.interval;
+
+			for(Map.Entry<Integer, String> e : index.entrySet())
+			{
+				files = windows.get(e.getKey());
+				if(files==null)
+				{
+					files = new ArrayList<String>();
+					windows.put(e.getKey(), files);
+				}
+				files.add(e.getValue());
+			}
+			summaryFilenames.add(index.lastEntry().getValue());
+		}
+
+		merged.startIndex();
+		for(Map.Entry<Integer, List<String>> e : windows.entrySet())
+		{
+			merge(e.getValue(), e.getKey().equals(windows.lastKey()) ? summaryFilenames : Collections.<String>emptyList(),
+					merged.filename(e.getKey()), null);
+			merged.completed(e.getKey());
+			System.out.println("Merged window " + e.getKey() + " of " + shardFilenames.size() + " shard outputs into " +
+					merged.filename(e.getKey()));
+		}
+	}
+
+	// Merge the events in eventFilenames and the end-of-run summaries (counters, reach survival,
+	// convergence) in summaryFilenames. A file in both lists is opened once.
+	private static void merge(List<String> eventFilenames, List<String> summaryFilenames, String outputFilename,
+			BehaviorOutputLayout layout)
+	{
+		LinkedHashMap<String, IHDF5Reader> opened = new LinkedHashMap<String, IHDF5Reader>();
+		ArrayList<IHDF5Reader> shards = new ArrayList<IHDF5Reader>();
+		ArrayList<IHDF5Reader> summaries = new ArrayList<IHDF5Reader>();
+		IHDF5Writer w = null;
+		File outputFile = new File(outputFilename);
+
+		try
+		{
+			for(String filename : eventFilenames)
+			{
+				shards.add(open(filename, opened));
+			}
+			for(String filename : summaryFilenames)
+			{
+				summaries.add(open(filename, opened));
+			}
+			if(layout==null)
+			{
+				layout = shards.isEmpty() ? new BehaviorOutputLayout() : BehaviorOutputLayout.read(shards.get(0));
+			}
+
+			if(outputFile.exists()) outputFile.delete();
+			w = layout.open(outputFilename);
+
+			for(IHDF5Reader r : shards)
+			{
+				for(String member : r.getGroupMembers("/"))
+				{
+					if(member.equals("counters") || member.equals("reachSurvival") || member.equals("trajectory") ||
+							member.equals("convergence") || member.equals("events") || member.equals("outputLayout")) continue;
+					copyMissing(r, w, "/" + member);
+				}
+			}
+
+			layout.write(w);
+			TrajectoryRecorder.writeMerged(shards, w, layout);
+			BehaviorEventTable.writeMerged(shards, w, layout);
+			if(!summaries.isEmpty())
+			{
+				BehaviorCounters.writeMerged(summaries, w, layout);
+				ReachSurvivalEstimator.writeMerged(summaries, w, layout);
+				ConvergenceMonitor.writeMerged(summaries, w, layout);
+			}
+		} finally
+		{
+			for(IHDF5Reader r : opened.values())
+			{
+				r.close();
+			}
+			if(w!=null) w.close();
+		}
+	}
+
+	private static IHDF5Reader open(String filename, Map<String, IHDF5Reader> opened)
+	{
+		IHDF5Reader r = opened.get(filename);
+
+		if(r==null)
+		{
+			r = HDF5Factory.openForReading(filename);
+			opened.put(filename, r);
+		}
+		return r;
+	}
+
+	// Copy path unless it is already in the output. Groups that are already there are merged member
+	// by member.
+	private static void copyMissing(IHDF5Reader r, IHDF5Writer w, String path)
+	{
+		if(!w.exists(path))
+		{
+			r.copy(path, w, path);
+		}
+		else if(r.isGroup(path) && w.isGroup(path))
+		{
+			for(String member : r.getGroupMembers(path))
+			{
+				copyMissing(r, w, path + "/" + member);
+			}
+		}
+	}
+}
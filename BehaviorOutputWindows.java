@@ -0,0 +1,190 @@
+package DWR.DMS.PTM;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+
+/**
+ * Splits the behavior output into one file per window of model time. Windows are interval minutes
+ * long and aligned to multiples of interval from julian minute 0, so a restarted run writes to the
+ * same files as the original one. The file for window k is the output file name with _w<k>
+ * before the extension. When the model time moves into a new window, the previous file is closed
+ * and a line is appended to the index file (the output file name with a .csv extension), so
+ * analysts can open completed windows while the run continues. Events go to the file of the
+ * window in which they happen; the echoed parameters are in the first file and the end-of-run
+ * summaries (reach survival, counters) in the last. interval=0 (the default) writes one file.
+ */
+public class BehaviorOutputWindows
+{
+	public int interval;
+	private String baseFilename;
+	private String indexFilename;
+
+	public BehaviorOutputWindows(String baseFilename)
+	{
+		this.baseFilename = baseFilename;
+		interval = 0;
+		indexFilename = replaceExtension(baseFilename, ".csv");
+	}
+
+	public static BehaviorOutputWindows read(IHDF5SimpleReader r, String baseFilename)
+	{
+		BehaviorOutputWindows windows = new BehaviorOutputWindows(baseFilename);
+
+		if(r.exists("output/windowInterval")) windows.interval = r.readInt("output/windowInterval");
+		if(windows.interval<0)
+		{
+			throw new IllegalArgumentException("output/windowInterval must not be negative");
+		}
+		return windows;
+	}
+
+	public boolean isEnabled()
+	{
+		return interval>0;
+	}
+
+	public int windowOf(int julianMin)
+	{
+		return isEnabled() ? Math.floorDiv(julianMin, interval) : 0;
+	}
+
+	public String getIndexFilename()
+	{
+		return indexFilename;
+	}
+
+	public String filename(int window)
+	{
+		int dot = baseFilename.lastIndexOf('.');
+
+		if(!isEnabled()) return baseFilename;
+		if(dot<=Math.max(baseFilename.lastIndexOf('/'), baseFilename.lastIndexOf('\\')))
+		{
+			return baseFilename + "_w" + window;
+		}
+		return baseFilename.substring(0, dot) + "_w" + window + baseFilename.substring(dot);
+	}
+
+	// Start a new index
+	public void startIndex()
+	{
+		File index = new File(indexFilename);
+
+		if(!isEnabled()) return;
+		if(index.exists()) index.delete();
+		appendLine("window,file,startJulianMin,endJulianMin,startDate,startTime,endDate,endTime,bytes");
+	}
+
+	// Keep the index of a restarted run up to the windows completed before window, which was open
+	// when the snapshot was taken. The later ones are written again.
+	public void restartIndex(int window)
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader in = null;
+		String line;
+
+		if(!isEnabled() || !new File(indexFilename).exists()) return;
+
+		try
+		{
+			in = new BufferedReader(new FileReader(indexFilename));
+			while((line = in.readLine())!=null)
+			{
+				if(lines.isEmpty() || Integer.parseInt(line.substring(0, line.indexOf(','))) < window) lines.add(line);
+			}
+		} catch (IOException e)
+		{
+			System.out.println("Could not read the output window index " + indexFilename + ": " + e.getMessage());
+			return;
+		} finally
+		{
+			try
+			{
+				if(in!=null) in.close();
+			} catch (IOException e)
+			{
+			}
+		}
+
+		new File(indexFilename).delete();
+		for(String l : lines)
+		{
+			appendLine(l);
+		}
+	}
+
+	// The windows in the index, with the path of each one's file. The interval is set from the index.
+	public TreeMap<Integer, String> readIndex() throws IOException
+	{
+		TreeMap<Integer, String> windows = new TreeMap<Integer, String>();
+		File directory = new File(indexFilename).getAbsoluteFile().getParentFile();
+		BufferedReader in = new BufferedReader(new FileReader(indexFilename));
+		String line;
+		String[] fields;
+
+		try
+		{
+			in.readLine();
+			while((line = in.readLine())!=null)
+			{
+				if(line.trim().isEmpty()) continue;
+				fields = line.split(",");
+				windows.put(Integer.parseInt(fields[0]), new File(directory, fields[1]).getPath());
+				interval = Integer.parseInt(fields[3]) - Integer.parseInt(fields[2]);
+			}
+		} finally
+		{
+			in.close();
+		}
+		return windows;
+	}
+
+	// Record a window whose file has been closed
+	public void completed(int window)
+	{
+		int start = window*interval;
+		int end = start + interval;
+		String filename = filename(window);
+
+		if(!isEnabled()) return;
+		appendLine(window + "," + new File(filename).getName() + "," + start + "," + end + "," +
+				Globals.getModelDate(start) + "," + Globals.getModelTime(start) + "," +
+				Globals.getModelDate(end) + "," + Globals.getModelTime(end) + "," + new File(filename).length());
+	}
+
+	private void appendLine(String line)
+	{
+		PrintWriter out = null;
+
+		try
+		{
+			out = new PrintWriter(new FileWriter(indexFilename, true));
+			out.println(line);
+		} catch (IOException e)
+		{
+			System.out.println("Could not write to the output window index " + indexFilename + ": " + e.getMessage());
+		} finally
+		{
+			if(out!=null) out.close();
+		}
+	}
+
+	private static String replaceExtension(String filename, String extension)
+	{
+		int dot = filename.lastIndexOf('.');
+
+		if(dot<=Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')))
+		{
+			return filename + extension;
+		}
+		return filename.substring(0, dot) + extension;
+	}
+}
@@ -0,0 +1,290 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+
+/**
+ * Optional structure-of-arrays store for the per-fish behavior state. When population/enabled is
+ * set, checkStep (called before each particle moves, like ParticleChangeBuffer.checkStep) does the
+ * once-per-time-step updates of every live fish in bulk the first time it is called in a step:
+ * the probability of confusion on first entering a SmartChannel, the random assessment of
+ * "downstream" (assessCountdown and confusionFactor), and the swim speed noise epsSwimSpeed. The
+ * state is gathered from the BehavedParticles into contiguous primitive arrays, updated there, and
+ * scattered back, and the particles then skip those updates in updatePosition. Each fish draws from
+ * its own generator in the same order as in updatePosition, before any of its other draws in the
+ * step, so the results are the same with and without the store.
+ *
+ * computeVelocities evaluates the swim and advective velocities of swimCodes 9, 10 and 11 for the
+ * whole population from the flow at each fish's location. The engine evaluates the flow at every
+ * sub-step position and asks each particle for its velocities there, so the PTM sub-steps still use
+ * calcXVelocityIntDeterministic and calcXVelocityExtDeterministic; BehaviorPopulationBenchmark runs
+ * both kernels against the object-per-fish code. The incubator Vector API needs a newer JDK than
+ * this code targets, so the kernels are counted loops over primitive arrays without calls or object
+ * access, which HotSpot's superword pass can vectorize and which are also the scalar fallback.
+ * The random draws of each fish come from its own generator and can't be batched, and they take
+ * most of the time, so on JDK 17 the benchmark measured the store at 0.6-0.9 of the speed
+ * of the per-fish updates. It is off by default.
+ */
+public class BehaviorPopulation
+{
+	public boolean enabled = false;
+	public boolean fastGaussian = false;
+	private volatile int lastStep = Integer.MIN_VALUE;
+
+	public int size = 0;
+	public BehavedParticle[] particles;
+	public Random[] generator;
+
+	// Behavior state
+	public float[] swimSpeed;
+	public float[] meanSwimSpeed;
+	public float[] stdSwimSpeed;
+	public float[] epsSwimSpeed;
+	public boolean[] variableSwimSpeed;
+	public float[] confusionFactor;
+	public float[] currentDirection;
+	public float[] holdThr;
+	public double[] probConfusion;
+	public boolean[] randAssess;
+	public float[] probAssess;
+	public int[] assessCountdown;
+
+	// Environment at each fish's current location
+	public float[] flowVelocity;
+	public float[] channelDir;
+
+	// Kernel input and output
+	public double[] noise;
+	public int[] assessStep;
+	public float[] swimVelocity;
+	public float[] advectiveVelocity;
+
+	public BehaviorPopulation()
+	{
+		allocate(16);
+	}
+
+	public static BehaviorPopulation read(IHDF5SimpleReader r, boolean fastGaussian)
+	{
+		BehaviorPopulation population = new BehaviorPopulation();
+
+		if(r.exists("population/enabled")) population.enabled = r.readBoolean("population/enabled");
+		population.fastGaussian = fastGaussian;
+		return population;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	// Update all live fish the first time this is called in a time step. The other particles wait
+	// until it is done, so none of them moves before its state has been updated.
+	public void checkStep(int julianMin)
+	{
+		if(!enabled || julianMin==lastStep) return;
+
+		synchronized(this)
+		{
+			if(julianMin==lastStep) return;
+
+			collect(BehavedParticle.liveParticles);
+			gather();
+			updateStepState();
+			scatter(julianMin);
+			lastStep = julianMin;
+		}
+	}
+
+	// Make the live fish the members of the population
+	public void collect(Iterable<BehavedParticle> live)
+	{
+		size = 0;
+		for(BehavedParticle bP : live)
+		{
+			if(bP.isDead) continue;
+			if(size==particles.length) allocate(2*particles.length);
+			particles[size++] = bP;
+		}
+	}
+
+	// Copy the behavior state from the particles into the arrays
+	public void gather()
+	{
+		BehavedParticle bP;
+
+		for(int i=0; i<size; i++)
+		{
+			bP = particles[i];
+
+			// Update the probability of confusion the first time that the fish enters a SmartChannel
+			if(bP.enteredSmartChannel==false && bP.wb instanceof SmartChannel)
+			{
+				bP.updateProbConfusion();
+				bP.enteredSmartChannel = true;
+			}
+
+			generator[i] = bP.generator;
+			swimSpeed[i] = bP.swimSpeed;
+			meanSwimSpeed[i] = bP.meanSwimSpeed;
+			stdSwimSpeed[i] = bP.stdSwimSpeed;
+			epsSwimSpeed[i] = bP.epsSwimSpeed;
+			variableSwimSpeed[i] = bP.variableSwimSpeed;
+			confusionFactor[i] = bP.confusionFactor;
+			currentDirection[i] = bP.currentDirection;
+			holdThr[i] = bP.holdThr;
+			probConfusion[i] = bP.probConfusion;
+			randAssess[i] = bP.randAssess;
+			probAssess[i] = bP.probAssess;
+			assessCountdown[i] = bP.assessCountdown;
+		}
+	}
+
+	// Copy the updated state back to the particles and mark them as updated for this time step
+	public void scatter(int julianMin)
+	{
+		BehavedParticle bP;
+
+		for(int i=0; i<size; i++)
+		{
+			bP = particles[i];
+			bP.confusionFactor = confusionFactor[i];
+			bP.assessCountdown = assessCountdown[i];
+			bP.epsSwimSpeed = epsSwimSpeed[i];
+			bP.populationStep = julianMin;
+		}
+	}
+
+	// The updates of BehavedParticle.updateStepState for all fish. Each fish's draws are in the same
+	// order: a new countdown if none has been drawn, the assessment and the next countdown when it
+	// reaches 0, and then the swim speed noise.
+	public void updateStepState()
+	{
+		// Only a few fish assess in a time step, so draw for them first
+		for(int i=0; i<size; i++)
+		{
+			assessStep[i] = 0;
+			if(!randAssess[i]) continue;
+
+			if(assessCountdown[i]<0)
+			{
+				assessCountdown[i] = AssessmentSchedule.countdown(generator[i], probAssess[i]);
+			}
+			if(assessCountdown[i]==0)
+			{
+				confusionFactor[i] = generator[i].nextDouble()<probConfusion[i] ? -1.0f : 1.0f;
+				assessCountdown[i] = AssessmentSchedule.countdown(generator[i], probAssess[i]);
+			}
+			else
+			{
+				assessStep[i] = 1;
+			}
+		}
+
+		for(int i=0; i<size; i++)
+		{
+			if(!variableSwimSpeed[i]) continue;
+			noise[i] = fastGaussian ? ZigguratGaussian.next(generator[i]) : generator[i].nextGaussian();
+		}
+
+		// Kernels
+		for(int i=0; i<size; i++)
+		{
+			assessCountdown[i] -= assessStep[i];
+		}
+		for(int i=0; i<size; i++)
+		{
+			epsSwimSpeed[i] = variableSwimSpeed[i] ? (float) (noise[i]*stdSwimSpeed[i]) : epsSwimSpeed[i];
+		}
+	}
+
+	// Compute swimVelocity and advectiveVelocity for all fish from flowVelocity and channelDir.
+	// Matches calcXVelocityIntDeterministic and calcXVelocityExtDeterministic for swimCodes 9, 10 and
+	// 11.
+	public void computeVelocities(int swimCode, boolean swimTime)
+	{
+		if(!swimTime)
+		{
+			// Outside of swim time, fish with these swimCodes hold
+			for(int i=0; i<size; i++)
+			{
+				swimVelocity[i] = 0.0f;
+				advectiveVelocity[i] = 0.0f;
+			}
+			return;
+		}
+
+		for(int i=0; i<size; i++)
+		{
+			swimSpeed[i] = meanSwimSpeed[i] + epsSwimSpeed[i];
+		}
+
+		switch(swimCode)
+		{
+			// Swim "downstream" based on the fish's own velocity memory
+			case 9:
+				for(int i=0; i<size; i++)
+				{
+					swimVelocity[i] = swimSpeed[i]*currentDirection[i]*confusionFactor[i];
+					advectiveVelocity[i] = flowVelocity[i];
+				}
+				break;
+
+			// Swim "downstream" based on the channel's average flow direction
+			case 10:
+				for(int i=0; i<size; i++)
+				{
+					swimVelocity[i] = swimSpeed[i]*channelDir[i]*confusionFactor[i];
+					advectiveVelocity[i] = flowVelocity[i];
+				}
+				break;
+
+			// As 10, but hold when the "upstream" flow exceeds holdThr
+			case 11:
+				for(int i=0; i<size; i++)
+				{
+					boolean swim = flowVelocity[i]*channelDir[i]*confusionFactor[i]>-holdThr[i];
+					swimVelocity[i] = swim ? swimSpeed[i]*channelDir[i]*confusionFactor[i] : 0.0f;
+					advectiveVelocity[i] = swim ? flowVelocity[i] : 0.0f;
+				}
+				break;
+
+			default:
+				throw new IllegalArgumentException("Batch velocities are only available for swimCodes 9, 10 and 11");
+		}
+	}
+
+	// Make room for at least capacity fish, keeping the first size entries
+	public void allocate(int capacity)
+	{
+		if(particles!=null && capacity<=particles.length) return;
+
+		particles = copy(particles, new BehavedParticle[capacity]);
+		generator = copy(generator, new Random[capacity]);
+		swimSpeed = copy(swimSpeed, new float[capacity]);
+		meanSwimSpeed = copy(meanSwimSpeed, new float[capacity]);
+		stdSwimSpeed = copy(stdSwimSpeed, new float[capacity]);
+		epsSwimSpeed = copy(epsSwimSpeed, new float[capacity]);
+		variableSwimSpeed = copy(variableSwimSpeed, new boolean[capacity]);
+		confusionFactor = copy(confusionFactor, new float[capacity]);
+		currentDirection = copy(currentDirection, new float[capacity]);
+		holdThr = copy(holdThr, new float[capacity]);
+		probConfusion = copy(probConfusion, new double[capacity]);
+		randAssess = copy(randAssess, new boolean[capacity]);
+		probAssess = copy(probAssess, new float[capacity]);
+		assessCountdown = copy(assessCountdown, new int[capacity]);
+		flowVelocity = copy(flowVelocity, new float[capacity]);
+		channelDir = copy(channelDir, new float[capacity]);
+		noise = new double[capacity];
+		assessStep = new int[capacity];
+		swimVelocity = new float[capacity];
+		advectiveVelocity = new float[capacity];
+	}
+
+	private <T> T copy(Object from, T to)
+	{
+		if(from!=null) System.arraycopy(from, 0, to, 0, size);
+		return to;
+	}
+}
@@ -0,0 +1,274 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Measures the per-time-step behavior updates and the swimCode 9, 10 and 11 velocities of a
+ * population of fish, computed object by object the way BehavedParticle.updateStepState and
+ * calcXVelocityIntDeterministic/calcXVelocityExtDeterministic do, and with the BehaviorPopulation
+ * kernels. The structure-of-arrays path is timed with the state kept in the arrays, and with it
+ * gathered from and scattered back to the fish objects in every step, which is what
+ * BehaviorPopulation.checkStep does in a run. Each fish has its own generator and sees a flow that
+ * changes every step, and the paths must give identical velocities and state.
+ *
+ * Usage: java DWR.DMS.PTM.BehaviorPopulationBenchmark [-fish N] [-steps S] [-swimCode 9|10|11]
+ *            [-probAssess P] [-fastGaussian]
+ */
+public class BehaviorPopulationBenchmark
+{
+	private static final int FLOW_PERIODS = 8;
+
+	// The per-fish state and code of BehavedParticle that the kernels replace
+	private static class Fish
+	{
+		Random generator;
+		float swimSpeed;
+		float meanSwimSpeed;
+		float stdSwimSpeed;
+		float epsSwimSpeed;
+		boolean variableSwimSpeed;
+		float confusionFactor;
+		float currentDirection;
+		float holdThr;
+		double probConfusion;
+		boolean randAssess;
+		float probAssess;
+		int assessCountdown = -1;
+		float flowVelocity;
+		float channelDir;
+
+		void updateStepState(boolean fastGaussian)
+		{
+			if(randAssess)
+			{
+				if(assessCountdown<0)
+				{
+					assessCountdown = AssessmentSchedule.countdown(generator, probAssess);
+				}
+				if(assessCountdown==0)
+				{
+					confusionFactor = generator.nextDouble()<probConfusion ? -1.0f : 1.0f;
+					assessCountdown = AssessmentSchedule.countdown(generator, probAssess);
+				}
+				else
+				{
+					assessCountdown--;
+				}
+			}
+			if(variableSwimSpeed)
+			{
+				if(fastGaussian)
+				{
+					epsSwimSpeed = (float) (ZigguratGaussian.next(generator)*stdSwimSpeed);
+				}
+				else
+				{
+					epsSwimSpeed = (float) (generator.nextGaussian()*stdSwimSpeed);
+				}
+			}
+		}
+
+		float calcXVelocityIntDeterministic(int swimCode)
+		{
+			swimSpeed = meanSwimSpeed + epsSwimSpeed;
+			switch(swimCode)
+			{
+				case 9:
+					return swimSpeed*currentDirection*confusionFactor;
+				case 10:
+					return swimSpeed*channelDir*confusionFactor;
+				default:
+					if(flowVelocity*channelDir*confusionFactor>-holdThr) return swimSpeed*channelDir*confusionFactor;
+					return 0.0f;
+			}
+		}
+
+		float calcXVelocityExtDeterministic(int swimCode)
+		{
+			if(swimCode==11 && !(flowVelocity*channelDir*confusionFactor>-holdThr)) return 0.0f;
+			return flowVelocity;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		int fish = 200000;
+		int steps = 200;
+		int swimCode = 11;
+		float probAssess = 0.1f;
+		boolean fastGaussian = false;
+		float[][] flows;
+		Fish[] objects;
+		BehaviorPopulation resident, gathered;
+		double object, soa, soaGather;
+		Random random = new Random(1);
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-fish")) fish = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-steps")) steps = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-swimCode")) swimCode = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-probAssess")) probAssess = Float.parseFloat(args[++i]);
+			else if(args[i].equals("-fastGaussian")) fastGaussian = true;
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+		if(swimCode<9 || swimCode>11) throw new IllegalArgumentException("swimCode must be 9, 10 or 11");
+
+		// Tidal flows that change every step and repeat after FLOW_PERIODS steps
+		flows = new float[FLOW_PERIODS][fish];
+		for(int i=0; i<fish; i++)
+		{
+			double phase = 2.0*Math.PI*random.nextDouble(), amplitude = 0.2 + random.nextDouble();
+			for(int p=0; p<FLOW_PERIODS; p++) flows[p][i] = (float) (amplitude*Math.sin(phase + 2.0*Math.PI*p/FLOW_PERIODS));
+		}
+
+		// Warm up all paths so they are compiled before they are timed
+		objects = createFish(fish, probAssess, fastGaussian);
+		runObjects(objects, flows, steps/10 + 1, swimCode, fastGaussian, new float[fish]);
+		resident = createPopulation(createFish(fish, probAssess, fastGaussian), fastGaussian);
+		runPopulation(resident, null, flows, steps/10 + 1, swimCode, new float[fish]);
+		gathered = createPopulation(objects, fastGaussian);
+		runPopulation(gathered, objects, flows, steps/10 + 1, swimCode, new float[fish]);
+
+		float[] a = new float[fish], b = new float[fish], c = new float[fish];
+		objects = createFish(fish, probAssess, fastGaussian);
+		object = runObjects(objects, flows, steps, swimCode, fastGaussian, a);
+		resident = createPopulation(createFish(fish, probAssess, fastGaussian), fastGaussian);
+		soa = runPopulation(resident, null, flows, steps, swimCode, b);
+		Fish[] copies = createFish(fish, probAssess, fastGaussian);
+		gathered = createPopulation(copies, fastGaussian);
+		soaGather = runPopulation(gathered, copies, flows, steps, swimCode, c);
+
+		System.out.println(String.format("%d fish, %d steps, swimCode %d, probAssess %.3f, %s", fish, steps, swimCode,
+				probAssess, fastGaussian ? "ziggurat" : "polar"));
+		System.out.println(String.format("%-14s %10.3f ms/step %8.2f ns/fish", "objects", object/1e6, object/fish));
+		System.out.println(String.format("%-14s %10.3f ms/step %8.2f ns/fish (speedup %.2f)", "arrays", soa/1e6,
+				soa/fish, object/soa));
+		System.out.println(String.format("%-14s %10.3f ms/step %8.2f ns/fish (speedup %.2f)", "arrays+gather",
+				soaGather/1e6, soaGather/fish, object/soaGather));
+		System.out.println("Differences: " + differences(objects, resident, a, b) + " (arrays), " +
+				differences(objects, gathered, a, c) + " (arrays+gather)");
+	}
+
+	private static Fish[] createFish(int n, float probAssess, boolean fastGaussian)
+	{
+		Fish[] fish = new Fish[n];
+		Random random = new Random(2);
+
+		for(int i=0; i<n; i++)
+		{
+			Fish f = new Fish();
+			f.generator = new Random(1000 + i);
+			f.meanSwimSpeed = 0.1f + 0.3f*random.nextFloat();
+			f.stdSwimSpeed = 0.1f*random.nextFloat();
+			f.variableSwimSpeed = true;
+			f.confusionFactor = random.nextFloat()<0.5f ? -1.0f : 1.0f;
+			f.currentDirection = random.nextFloat()<0.5f ? -1.0f : 1.0f;
+			f.channelDir = random.nextFloat()<0.5f ? -1.0f : 1.0f;
+			f.holdThr = 0.1f + 0.5f*random.nextFloat();
+			f.probConfusion = 0.5*random.nextDouble();
+			f.randAssess = true;
+			f.probAssess = probAssess;
+			fish[i] = f;
+		}
+		return fish;
+	}
+
+	private static BehaviorPopulation createPopulation(Fish[] fish, boolean fastGaussian)
+	{
+		BehaviorPopulation p = new BehaviorPopulation();
+
+		p.fastGaussian = fastGaussian;
+		p.allocate(fish.length);
+		p.size = fish.length;
+		gather(p, fish);
+		return p;
+	}
+
+	// BehaviorPopulation.gather reads BehavedParticles, which need the engine, so copy the same fields
+	private static void gather(BehaviorPopulation p, Fish[] fish)
+	{
+		for(int i=0; i<p.size; i++)
+		{
+			Fish f = fish[i];
+			p.generator[i] = f.generator;
+			p.swimSpeed[i] = f.swimSpeed;
+			p.meanSwimSpeed[i] = f.meanSwimSpeed;
+			p.stdSwimSpeed[i] = f.stdSwimSpeed;
+			p.epsSwimSpeed[i] = f.epsSwimSpeed;
+			p.variableSwimSpeed[i] = f.variableSwimSpeed;
+			p.confusionFactor[i] = f.confusionFactor;
+			p.currentDirection[i] = f.currentDirection;
+			p.holdThr[i] = f.holdThr;
+			p.probConfusion[i] = f.probConfusion;
+			p.randAssess[i] = f.randAssess;
+			p.probAssess[i] = f.probAssess;
+			p.assessCountdown[i] = f.assessCountdown;
+			p.channelDir[i] = f.channelDir;
+		}
+	}
+
+	private static void scatter(BehaviorPopulation p, Fish[] fish)
+	{
+		for(int i=0; i<p.size; i++)
+		{
+			Fish f = fish[i];
+			f.confusionFactor = p.confusionFactor[i];
+			f.assessCountdown = p.assessCountdown[i];
+			f.epsSwimSpeed = p.epsSwimSpeed[i];
+		}
+	}
+
+	// Nanoseconds per step. velocity is the summed velocity of each fish over all steps.
+	private static double runObjects(Fish[] fish, float[][] flows, int steps, int swimCode, boolean fastGaussian,
+			float[] velocity)
+	{
+		long start = System.nanoTime();
+
+		for(int s=0; s<steps; s++)
+		{
+			float[] flow = flows[s%FLOW_PERIODS];
+			for(int i=0; i<fish.length; i++)
+			{
+				Fish f = fish[i];
+				f.flowVelocity = flow[i];
+				f.updateStepState(fastGaussian);
+				velocity[i] += f.calcXVelocityIntDeterministic(swimCode) + f.calcXVelocityExtDeterministic(swimCode);
+			}
+		}
+		return (System.nanoTime() - start)/(double) steps;
+	}
+
+	// With fish set, the state is gathered from them before and scattered back after each step
+	private static double runPopulation(BehaviorPopulation p, Fish[] fish, float[][] flows, int steps, int swimCode,
+			float[] velocity)
+	{
+		long start = System.nanoTime();
+
+		for(int s=0; s<steps; s++)
+		{
+			if(fish!=null) gather(p, fish);
+			System.arraycopy(flows[s%FLOW_PERIODS], 0, p.flowVelocity, 0, p.size);
+			p.updateStepState();
+			p.computeVelocities(swimCode, true);
+			for(int i=0; i<p.size; i++)
+			{
+				velocity[i] += p.swimVelocity[i] + p.advectiveVelocity[i];
+			}
+			if(fish!=null) scatter(p, fish);
+		}
+		return (System.nanoTime() - start)/(double) steps;
+	}
+
+	private static int differences(Fish[] fish, BehaviorPopulation p, float[] a, float[] b)
+	{
+		int n = 0;
+
+		for(int i=0; i<fish.length; i++)
+		{
+			if(a[i]!=b[i] || fish[i].epsSwimSpeed!=p.epsSwimSpeed[i] || fish[i].confusionFactor!=p.confusionFactor[i] ||
+					fish[i].assessCountdown!=p.assessCountdown[i]) n++;
+		}
+		return n;
+	}
+}
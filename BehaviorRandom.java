@@ -0,0 +1,93 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Drop-in replacement for java.util.Random whose state can be saved and restored, so that a run
+ * resumed from a behavior snapshot draws the same random numbers as an uninterrupted run.
+ * It uses the same linear congruential generator and polar method as java.util.Random, so a
+ * given seed produces the same sequence. Unlike java.util.Random it is not thread-safe; each
+ * particle owns its generator.
+ */
+public class BehaviorRandom extends Random
+{
+	private static final long serialVersionUID = 1L;
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+	
+	// These are assigned by setSeed, which Random's constructor calls, so they must not have initializers
+	private long state;
+	private double nextNextGaussian;
+	private boolean haveNextNextGaussian;
+	
+	public BehaviorRandom()
+	{
+		super();
+	}
+	
+	public BehaviorRandom(long seed)
+	{
+		super(seed);
+	}
+	
+	@Override
+	public void setSeed(long seed)
+	{
+		state = (seed ^ multiplier) & mask;
+		haveNextNextGaussian = false;
+	}
+	
+	@Override
+	protected int next(int bits)
+	{
+		state = (state*multiplier + addend) & mask;
+		return (int)(state >>> (48 - bits));
+	}
+	
+	@Override
+	public double nextGaussian()
+	{
+		double v1, v2, s, multiplier;
+		
+		if(haveNextNextGaussian)
+		{
+			haveNextNextGaussian = false;
+			return nextNextGaussian;
+		}
+		
+		do
+		{
+			v1 = 2*nextDouble() - 1;
+			v2 = 2*nextDouble() - 1;
+			s = v1*v1 + v2*v2;
+		} while(s>=1 || s==0);
+		
+		multiplier = StrictMath.sqrt(-2*StrictMath.log(s)/s);
+		nextNextGaussian = v2*multiplier;
+		haveNextNextGaussian = true;
+		return v1*multiplier;
+	}
+	
+	public long getState()
+	{
+		return state;
+	}
+	
+	public double getNextNextGaussian()
+	{
+		return nextNextGaussian;
+	}
+	
+	public boolean getHaveNextNextGaussian()
+	{
+		return haveNextNextGaussian;
+	}
+	
+	public void setState(long state, double nextNextGaussian, boolean haveNextNextGaussian)
+	{
+		this.state = state;
+		this.nextNextGaussian = nextNextGaussian;
+		this.haveNextNextGaussian = haveNextNextGaussian;
+	}
+}
@@ -0,0 +1,77 @@
+package DWR.DMS.PTM;
+
+/**
+ * The part of a release that this JVM simulates when a run is split across worker processes by
+ * BehaviorShardLauncher. The shard is given by system properties:
+ * ptm.behavior.shard: index of this worker (0..shards-1)
+ * ptm.behavior.shards: number of workers (default 1, i.e., no sharding)
+ * ptm.behavior.numParticles: number of particles in the release. If it is set, each worker takes
+ * a contiguous range of particle IDs; otherwise the IDs are dealt out round robin.
+ * ptm.behavior.seed: base seed. If it is set, each fish's generator is seeded from the base seed
+ * and its particle ID, so the random streams of different fish don't overlap and a fish draws the
+ * same numbers whichever worker it runs on.
+ * Each worker writes its own behavior output file, named after the single-process file with a
+ * _shard<index> suffix, and only records the particles it owns. The PTM engine, which is outside
+ * this tree, still creates every particle of the release in every worker: the particles that
+ * belong to other workers are marked dead when they would be inserted, but their construction and
+ * memory are only saved if the engine checks owns() before it creates them.
+ */
+public class BehaviorShard
+{
+	public static final int index = Integer.getInteger("ptm.behavior.shard", 0);
+	public static final int count = Integer.getInteger("ptm.behavior.shards", 1);
+	public static final int numParticles = Integer.getInteger("ptm.behavior.numParticles", 0);
+	public static final Long seed = Long.getLong("ptm.behavior.seed");
+
+	public static boolean isSharded()
+	{
+		return count>1;
+	}
+
+	// Whether the particle with this ID belongs to this worker
+	public static boolean owns(int id)
+	{
+		if(!isSharded()) return true;
+		if(numParticles>0) return shardOf(id, numParticles, count)==index;
+		return Math.floorMod(id, count)==index;
+	}
+
+	// Shard of id when IDs 0..numParticles-1 (or 1..numParticles) are split into count ranges
+	public static int shardOf(int id, int numParticles, int count)
+	{
+		int shard = (int) ((long) Math.max(0, id-1)*count/numParticles);
+		return Math.min(shard, count-1);
+	}
+
+	public static boolean isSeeded()
+	{
+		return seed!=null;
+	}
+
+	// SplitMix64 of the base seed and the particle ID
+	public static long seed(int id)
+	{
+		long z = seed.longValue() + (id + 1L)*0x9E3779B97F4A7C15L;
+
+		z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public static String outputFilename(String filename)
+	{
+		return isSharded() ? shardFilename(filename, index) : filename;
+	}
+
+	// filename with _shard<index> before the extension
+	public static String shardFilename(String filename, int index)
+	{
+		int dot = filename.lastIndexOf('.');
+
+		if(dot<=Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')))
+		{
+			return filename + "_shard" + index;
+		}
+		return filename.substring(0, dot) + "_shard" + index + filename.substring(dot);
+	}
+}
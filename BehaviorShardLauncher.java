@@ -0,0 +1,152 @@
+package DWR.DMS.PTM;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs one release as several worker JVMs on this machine, each simulating its own share of the
+ * particles (see BehaviorShard), then merges the workers' behavior output files into the file a
+ * single-process run would have written and reports how well the run scaled.
+ *
+ * Usage: java DWR.DMS.PTM.BehaviorShardLauncher -workers N -output behaviorOutput.h5
+ *            [-particles P] [-seed S] [-jvm "-Xmx8g ..."] [-baseline seconds] -- mainClass args...
+ * -output is the behavior output file named in the PTM input, -particles the number of particles
+ * in the release (for contiguous ID ranges), -seed the base seed of the per-fish random streams,
+ * -jvm extra options for the workers, and -baseline the wall time of a single-process run, which
+ * is used to report the speedup. Each worker's console output goes to
+ * behaviorOutput_shard<index>.h5.log. If the workers split their output into windows of model
+ * time, the windows are merged one by one (see BehaviorOutputMerger.mergeWindows).
+ */
+public class BehaviorShardLauncher
+{
+	public static void main(String[] args) throws Exception
+	{
+		int workers = 0, particles = 0;
+		String output = null, seed = null, jvmOptions = "";
+		double baseline = 0.0;
+		List<String> command = null;
+		ArrayList<Process> processes = new ArrayList<Process>();
+		ArrayList<String> shardFiles = new ArrayList<String>();
+		ArrayList<String> workerCommand;
+		double[] workerSeconds;
+		long start, mergeStart;
+		int failed = 0, running, windowed = 0;
+		double wallSeconds, mergeSeconds, meanWorker = 0.0, maxWorker = 0.0;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("--"))
+			{
+				command = Arrays.asList(args).subList(i+1, args.length);
+				break;
+			}
+			else if(args[i].equals("-workers")) workers = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-output")) output = args[++i];
+			else if(args[i].equals("-particles")) particles = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-seed")) seed = args[++i];
+			else if(args[i].equals("-jvm")) jvmOptions = args[++i];
+			else if(args[i].equals("-baseline")) baseline = Double.parseDouble(args[++i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		if(workers<1 || output==null || command==null || command.isEmpty())
+		{
+			System.out.println("Usage: BehaviorShardLauncher -workers N -output behaviorOutput.h5 [-particles P] " +
+					"[-seed S] [-jvm \"options\"] [-baseline seconds] -- mainClass args...");
+			System.exit(1);
+		}
+
+		// Start the workers
+		start = System.nanoTime();
+		workerSeconds = new double[workers];
+		for(int i=0; i<workers; i++)
+		{
+			workerCommand = new ArrayList<String>();
+			workerCommand.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			if(!jvmOptions.trim().isEmpty()) workerCommand.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+			workerCommand.add("-cp");
+			workerCommand.add(System.getProperty("java.class.path"));
+			workerCommand.add("-Dptm.behavior.shard=" + i);
+			workerCommand.add("-Dptm.behavior.shards=" + workers);
+			if(particles>0) workerCommand.add("-Dptm.behavior.numParticles=" + particles);
+			if(seed!=null) workerCommand.add("-Dptm.behavior.seed=" + seed);
+			workerCommand.addAll(command);
+
+			shardFiles.add(BehaviorShard.shardFilename(output, i));
+			processes.add(new ProcessBuilder(workerCommand).redirectErrorStream(true)
+					.redirectOutput(new File(shardFiles.get(i) + ".log")).start());
+			System.out.println("Started worker " + i + " of " + workers);
+		}
+
+		// Wait for all of them, noting when each one finishes
+		running = workers;
+		while(running>0)
+		{
+			Thread.sleep(100);
+			for(int i=0; i<workers; i++)
+			{
+				if(workerSeconds[i]==0.0 && !processes.get(i).isAlive())
+				{
+					workerSeconds[i] = (System.nanoTime()-start)/1e9;
+					running--;
+					if(processes.get(i).exitValue()!=0)
+					{
+						System.out.println("Worker " + i + " exited with status " + processes.get(i).exitValue());
+						failed++;
+					}
+				}
+			}
+		}
+		wallSeconds = (System.nanoTime()-start)/1e9;
+
+		if(failed>0)
+		{
+			System.out.println(failed + " worker(s) failed. The shard outputs were not merged.");
+			System.exit(1);
+		}
+
+		for(String shardFile : shardFiles)
+		{
+			if(isWindowed(shardFile)) windowed++;
+		}
+		if(windowed>0 && windowed<workers)
+		{
+			System.out.println(windowed + " of " + workers + " workers split their output into windows. " + 
+					"The shard outputs were not merged.");
+			System.exit(1);
+		}
+
+		mergeStart = System.nanoTime();
+		if(windowed>0) BehaviorOutputMerger.mergeWindows(shardFiles, output);
+		else BehaviorOutputMerger.merge(shardFiles, output);
+		mergeSeconds = (System.nanoTime()-mergeStart)/1e9;
+
+		// Report the scaling
+		for(int i=0; i<workers; i++)
+		{
+			meanWorker += workerSeconds[i]/workers;
+			maxWorker = Math.max(maxWorker, workerSeconds[i]);
+		}
+		System.out.println(String.format("Workers: %d, wall time %.1f s, merge %.1f s, load balance (mean/max worker time) %.2f",
+				workers, wallSeconds, mergeSeconds, meanWorker/maxWorker));
+		if(baseline>0.0)
+		{
+			System.out.println(String.format("Speedup %.2f, parallel efficiency %.2f", baseline/(wallSeconds+mergeSeconds),
+					baseline/(wallSeconds+mergeSeconds)/workers));
+		}
+		System.out.println("Merged " + workers + " shard outputs into " + output);
+	}
+
+	// A worker that split its output into windows wrote an index of them instead of its shard file.
+	// If an earlier run left both, the one written last is from this run.
+	private static boolean isWindowed(String shardFile)
+	{
+		File index = new File(new BehaviorOutputWindows(shardFile).getIndexFilename());
+		File file = new File(shardFile);
+
+		if(!index.exists()) return false;
+		return !file.exists() || index.lastModified()>=file.lastModified();
+	}
+}
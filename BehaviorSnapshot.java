@@ -0,0 +1,727 @@
+package DWR.DMS.PTM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Snapshot of the behavior state of all live BehavedParticles, stored column by column in a
+ * compact binary file. The state is copied on the simulation thread and written to disk on a
+ * background thread, so the simulation only pauses for the copy. A run restarted from a snapshot
+ * restores each particle's state (including its random number generator) by particle ID. The
+ * snapshot also holds the IDs of the particles that had died or been retired, which stay dead
+ * after a restart, the run-wide totals (reach survival, counters and convergence), and how far
+ * the output had got, so the restarted run can drop the events that the earlier run recorded
+ * after the snapshot was taken. Each live particle's position (waterbody, node, x, y, z) is saved
+ * too, and a restored particle is put back there when the engine inserts it.
+ * BehaviorSnapshotCheck compares the events of a restarted run with those of an uninterrupted one.
+ */
+public class BehaviorSnapshot
+{
+	private static final int MAGIC = 0x50544d53;
+	private static final int VERSION = 9;
+	private static ExecutorService snapshotWriter;
+
+	public int julianMin;
+	public int n;
+
+	// Output window that was open and the columnar rows recorded in it (-1 if nothing had been written)
+	public int window = -1;
+	public long eventRows, trajectoryRows;
+
+	// Particles that had died or been retired
+	public int[] finished = new int[0];
+
+	// reachSurvival, counters and convergence, as saved by their save methods
+	private byte[] totals = new byte[0];
+
+	public int[] id;
+	public int[] ChippsPassCount, ExitPassCount, SWPpassCount, CVPpassCount;
+	public int[] nodeDecisionIndex;
+	public int[] swimTimeStep;
+	public int[] assessCountdown;
+	public boolean[] swimTimeThisStep;
+	public int[][] checkpointsPassCount;
+	public float[] timeSinceDecision, currentDirection, confusionFactor;
+	public float[] sumStageChanges, previousStage;
+	public float[] swimSpeed, meanSwimSpeed, stdSwimSpeed, epsSwimSpeed;
+	public float[] holdThr, constProbConfusion, daytimeSwimProb, lastDecisionAttemptTime;
+	public double[] probConfusion, realizedSurvProb, upNodeEC, downNodeEC, cohortWeight;
+	public double[][] velIntMemory;
+	public String[] reachOrigin;
+	public int[] reachEntryTime;
+	public double[] reachWeight;
+	public boolean[] stageInitialized, tideIncreasing, enteredSmartChannel;
+	public long[] rngState;
+	public double[] rngNextNextGaussian;
+	public boolean[] rngHaveNextNextGaussian;
+	public int[] previousWB;
+	public int[][] possibleChoices;
+	// Where the particle was: waterbody and node envIndex, position in the waterbody and whether it was waiting
+	public int[] waterbody, node;
+	public float[] x, y, z;
+	public boolean[] particleWait;
+
+	private HashMap<Integer, Integer> rowIndex;
+	private HashSet<Integer> finishedIndex;
+
+	private BehaviorSnapshot(int n)
+	{
+		this.n = n;
+		id = new int[n];
+		ChippsPassCount = new int[n];
+		ExitPassCount = new int[n];
+		SWPpassCount = new int[n];
+		CVPpassCount = new int[n];
+		nodeDecisionIndex = new int[n];
+		swimTimeStep = new int[n];
+		assessCountdown = new int[n];
+		swimTimeThisStep = new boolean[n];
+		checkpointsPassCount = new int[n][];
+		timeSinceDecision = new float[n];
+		currentDirection = new float[n];
+		confusionFactor = new float[n];
+		sumStageChanges = new float[n];
+		previousStage = new float[n];
+		swimSpeed = new float[n];
+		meanSwimSpeed = new float[n];
+		stdSwimSpeed = new float[n];
+		epsSwimSpeed = new float[n];
+		holdThr = new float[n];
+		constProbConfusion = new float[n];
+		daytimeSwimProb = new float[n];
+		lastDecisionAttemptTime = new float[n];
+		probConfusion = new double[n];
+		realizedSurvProb = new double[n];
+		upNodeEC = new double[n];
+		downNodeEC = new double[n];
+		cohortWeight = new double[n];
+		reachOrigin = new String[n];
+		reachEntryTime = new int[n];
+		reachWeight = new double[n];
+		velIntMemory = new double[n][];
+		stageInitialized = new boolean[n];
+		tideIncreasing = new boolean[n];
+		enteredSmartChannel = new boolean[n];
+		rngState = new long[n];
+		rngNextNextGaussian = new double[n];
+		rngHaveNextNextGaussian = new boolean[n];
+		previousWB = new int[n];
+		possibleChoices = new int[n][];
+		waterbody = new int[n];
+		node = new int[n];
+		x = new float[n];
+		y = new float[n];
+		z = new float[n];
+		particleWait = new boolean[n];
+	}
+
+	// Copy the behavior state of the live particles and the IDs of the finished ones. This runs on
+	// the simulation thread.
+	public static BehaviorSnapshot capture(Collection<BehavedParticle> live, Collection<Integer> finishedIds, int julianMin)
+	{
+		ArrayList<BehavedParticle> particles = new ArrayList<BehavedParticle>(live);
+		ArrayList<Integer> finishedList = new ArrayList<Integer>(finishedIds);
+		BehaviorSnapshot s = new BehaviorSnapshot(particles.size());
+		BehavedParticle bP;
+
+		s.julianMin = julianMin;
+		s.finished = new int[finishedList.size()];
+		for(int i=0; i<s.finished.length; i++)
+		{
+			s.finished[i] = finishedList.get(i);
+		}
+
+		for(int i=0; i<s.n; i++)
+		{
+			bP = particles.get(i);
+			s.id[i] = bP.getId();
+			s.ChippsPassCount[i] = bP.ChippsPassCount;
+			s.ExitPassCount[i] = bP.ExitPassCount;
+			s.SWPpassCount[i] = bP.SWPpassCount;
+			s.CVPpassCount[i] = bP.CVPpassCount;
+			s.nodeDecisionIndex[i] = bP.nodeDecisionIndex;
+			s.swimTimeStep[i] = bP.swimTimeStep;
+			s.assessCountdown[i] = bP.assessCountdown;
+			s.swimTimeThisStep[i] = bP.swimTimeThisStep;
+			s.checkpointsPassCount[i] = bP.checkpointsPassCount.clone();
+			s.timeSinceDecision[i] = bP.timeSinceDecision;
+			s.currentDirection[i] = bP.currentDirection;
+			s.confusionFactor[i] = bP.confusionFactor;
+			s.sumStageChanges[i] = bP.sumStageChanges;
+			s.previousStage[i] = bP.previousStage;
+			s.swimSpeed[i] = bP.swimSpeed;
+			s.meanSwimSpeed[i] = bP.meanSwimSpeed;
+			s.stdSwimSpeed[i] = bP.stdSwimSpeed;
+			s.epsSwimSpeed[i] = bP.epsSwimSpeed;
+			s.holdThr[i] = bP.holdThr;
+			s.constProbConfusion[i] = bP.constProbConfusion;
+			s.daytimeSwimProb[i] = bP.daytimeSwimProb;
+			s.lastDecisionAttemptTime[i] = bP.lastDecisionAttemptTime;
+			s.probConfusion[i] = bP.probConfusion;
+			s.realizedSurvProb[i] = bP.realizedSurvProb;
+			s.upNodeEC[i] = bP.upNodeEC;
+			s.downNodeEC[i] = bP.downNodeEC;
+			s.cohortWeight[i] = bP.cohortWeight;
+			s.reachOrigin[i] = bP.reachOrigin;
+			s.reachEntryTime[i] = bP.reachEntryTime;
+			s.reachWeight[i] = bP.reachWeight;
+			s.velIntMemory[i] = bP.velIntMemory.clone();
+			s.stageInitialized[i] = bP.stageInitialized;
+			s.tideIncreasing[i] = bP.tideIncreasing;
+			s.enteredSmartChannel[i] = bP.enteredSmartChannel;
+			s.rngState[i] = bP.generator.getState();
+			s.rngNextNextGaussian[i] = bP.generator.getNextNextGaussian();
+			s.rngHaveNextNextGaussian[i] = bP.generator.getHaveNextNextGaussian();
+			s.previousWB[i] = bP.previousWB==null ? -1 : bP.previousWB.getEnvIndex();
+			s.possibleChoices[i] = flatten(bP.possibleChoicesHash);
+			s.waterbody[i] = bP.wb==null ? -1 : bP.wb.getEnvIndex();
+			s.node[i] = bP.nd==null ? -1 : bP.nd.getEnvIndex();
+			s.x[i] = bP.x;
+			s.y[i] = bP.y;
+			s.z[i] = bP.z;
+			s.particleWait[i] = bP.particleWait;
+		}
+		return s;
+	}
+
+	// Record the output window that is open and the columnar rows recorded in it so far
+	public void captureOutput(int outputWindow, long events, long trajectoryRows)
+	{
+		window = outputWindow;
+		eventRows = events;
+		this.trajectoryRows = trajectoryRows;
+	}
+
+	public void captureTotals(ReachSurvivalEstimator reachSurvival, BehaviorCounters counters, ConvergenceMonitor convergence)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try
+		{
+			reachSurvival.save(out);
+			counters.save(out);
+			convergence.save(out);
+			out.flush();
+		} catch (IOException e)
+		{
+			// A ByteArrayOutputStream doesn't throw
+			throw new IllegalStateException(e);
+		}
+		totals = bytes.toByteArray();
+	}
+
+	// Continue the run-wide totals from the snapshot
+	public void restoreTotals(ReachSurvivalEstimator reachSurvival, BehaviorCounters counters, 
+			ConvergenceMonitor convergence) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(totals));
+
+		reachSurvival.restore(in);
+		counters.restore(in);
+		convergence.restore(in);
+	}
+
+	// Whether the particle had died or been retired when the snapshot was taken
+	public boolean isFinished(int particleId)
+	{
+		return finishedIndex.contains(particleId);
+	}
+
+	// Restore the state of bP if it is in this snapshot. Returns false if it isn't.
+	public boolean restore(BehavedParticle bP)
+	{
+		Integer row = rowIndex.get(bP.getId());
+		int i;
+
+		if(row==null) return false;
+		i = row.intValue();
+
+		if(velIntMemory[i].length!=bP.velIntMemory.length || checkpointsPassCount[i].length!=bP.checkpointsPassCount.length)
+		{
+			throw new IllegalArgumentException("Snapshot for particle " + bP.getId() +
+					" does not match velDecisionPeriod or checkpoints in the behavior parameter file");
+		}
+
+		bP.ChippsPassCount = ChippsPassCount[i];
+		bP.ExitPassCount = ExitPassCount[i];
+		bP.SWPpassCount = SWPpassCount[i];
+		bP.CVPpassCount = CVPpassCount[i];
+		bP.nodeDecisionIndex = nodeDecisionIndex[i];
+		bP.swimTimeStep = swimTimeStep[i];
+		bP.assessCountdown = assessCountdown[i];
+		bP.swimTimeThisStep = swimTimeThisStep[i];
+		System.arraycopy(checkpointsPassCount[i], 0, bP.checkpointsPassCount, 0, bP.checkpointsPassCount.length);
+		bP.timeSinceDecision = timeSinceDecision[i];
+		bP.currentDirection = currentDirection[i];
+		bP.confusionFactor = confusionFactor[i];
+		bP.sumStageChanges = sumStageChanges[i];
+		bP.previousStage = previousStage[i];
+		bP.swimSpeed = swimSpeed[i];
+		bP.meanSwimSpeed = meanSwimSpeed[i];
+		bP.stdSwimSpeed = stdSwimSpeed[i];
+		bP.epsSwimSpeed = epsSwimSpeed[i];
+		bP.holdThr = holdThr[i];
+		bP.constProbConfusion = constProbConfusion[i];
+		bP.daytimeSwimProb = daytimeSwimProb[i];
+		bP.lastDecisionAttemptTime = lastDecisionAttemptTime[i];
+		bP.probConfusion = probConfusion[i];
+		bP.realizedSurvProb = realizedSurvProb[i];
+		bP.upNodeEC = upNodeEC[i];
+		bP.downNodeEC = downNodeEC[i];
+		bP.cohortWeight = cohortWeight[i];
+		bP.reachOrigin = reachOrigin[i];
+		bP.reachEntryTime = reachEntryTime[i];
+		bP.reachWeight = reachWeight[i];
+		System.arraycopy(velIntMemory[i], 0, bP.velIntMemory, 0, bP.velIntMemory.length);
+		bP.stageInitialized = stageInitialized[i];
+		bP.tideIncreasing = tideIncreasing[i];
+		bP.enteredSmartChannel = enteredSmartChannel[i];
+		bP.generator.setState(rngState[i], rngNextNextGaussian[i], rngHaveNextNextGaussian[i]);
+		bP.previousWB = previousWB[i]<0 ? null : Globals.Environment.getWaterbody(previousWB[i]);
+		unflatten(possibleChoices[i], bP.possibleChoicesHash);
+		return true;
+	}
+
+	// Put bP back where it was when the snapshot was taken. Returns false if it isn't in this snapshot.
+	public boolean restorePosition(BehavedParticle bP)
+	{
+		Integer row = rowIndex.get(bP.getId());
+		int i;
+
+		if(row==null) return false;
+		i = row.intValue();
+
+		if(waterbody[i]>=0) bP.wb = Globals.Environment.getWaterbody(waterbody[i]);
+		if(node[i]>=0) bP.nd = Globals.Environment.getNode(node[i]);
+		bP.x = x[i];
+		bP.y = y[i];
+		bP.z = z[i];
+		bP.particleWait = particleWait[i];
+		return true;
+	}
+
+	// Remove the per-particle events that the earlier run recorded in w after the snapshot was taken:
+	// all events of the particles that hadn't been inserted, and the deaths, the later checkpoint
+	// passes and the realized survival of the live ones. The particles that had finished keep theirs.
+	// The swim speeds are written when the particles are created, so they are kept. checkpoints are
+	// the sorted user-defined checkpoints of the behavior parameter file; only the first output
+	// window echoes them.
+	public void removeLaterEvents(IHDF5Writer w, int[] checkpoints)
+	{
+		List<String> groups = w.exists("/") ? w.getGroupMembers("/") : new ArrayList<String>();
+		Integer row;
+		int removed = 0, passCount, particleId;
+		String path;
+
+		for(String group : groups)
+		{
+			if(group.equals("realizedSurvProb"))
+			{
+				for(String member : w.getGroupMembers(group))
+				{
+					row = rowIndex.get(Integer.valueOf(member));
+					if(!finishedIndex.contains(Integer.valueOf(member)) && (row==null || ChippsPassCount[row]==0))
+					{
+						w.delete(group + "/" + member);
+						removed++;
+					}
+				}
+				continue;
+			}
+			if(!group.equals("inserted") && !group.equals("died") && !isCheckpoint(group, checkpoints)) continue;
+			if(!w.exists(group + "/particleNum")) continue;
+
+			for(String member : w.getGroupMembers(group + "/particleNum"))
+			{
+				particleId = Integer.parseInt(member);
+				path = group + "/particleNum/" + member;
+				row = rowIndex.get(particleId);
+				if(finishedIndex.contains(particleId) || (row!=null && group.equals("inserted"))) continue;
+
+				passCount = row==null || group.equals("died") ? 0 : passCount(group, checkpoints, row);
+				if(passCount==0)
+				{
+					w.delete(path);
+					removed++;
+					continue;
+				}
+				for(int k=passCount+1; w.exists(path + "/modelDate_" + k); k++)
+				{
+					w.delete(path + "/modelDate_" + k);
+					w.delete(path + "/modelTime_" + k);
+					if(w.exists(path + "/weight_" + k)) w.delete(path + "/weight_" + k);
+					removed++;
+				}
+			}
+		}
+		System.out.println("Removed " + removed + " events recorded after the snapshot");
+	}
+
+	private static boolean isCheckpoint(String group, int[] checkpoints)
+	{
+		if(group.equals("Chipps") || group.equals("Exit") || group.equals("SWP") || group.equals("CVP")) return true;
+		try
+		{
+			return Arrays.binarySearch(checkpoints, Integer.parseInt(group))>=0;
+		} catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	// Number of passes of checkpoint group by the particle in row
+	private int passCount(String group, int[] checkpoints, int row)
+	{
+		if(group.equals("Chipps")) return ChippsPassCount[row];
+		if(group.equals("Exit")) return ExitPassCount[row];
+		if(group.equals("SWP")) return SWPpassCount[row];
+		if(group.equals("CVP")) return CVPpassCount[row];
+		return checkpointsPassCount[row][Arrays.binarySearch(checkpoints, Integer.parseInt(group))];
+	}
+
+	// possibleChoicesHash as node, number of choices, choices, node, ...
+	private static int[] flatten(HashMap<Integer, ArrayList<Integer>> choices)
+	{
+		int size = 0, j = 0;
+		int[] flat;
+
+		for(ArrayList<Integer> c : choices.values()) size += 2 + c.size();
+		flat = new int[size];
+		for(Map.Entry<Integer, ArrayList<Integer>> e : choices.entrySet())
+		{
+			flat[j++] = e.getKey();
+			flat[j++] = e.getValue().size();
+			for(Integer choice : e.getValue()) flat[j++] = choice;
+		}
+		return flat;
+	}
+
+	private static void unflatten(int[] flat, HashMap<Integer, ArrayList<Integer>> choices)
+	{
+		ArrayList<Integer> c;
+		int j = 0, node, size;
+
+		choices.clear();
+		while(j<flat.length)
+		{
+			node = flat[j++];
+			size = flat[j++];
+			c = new ArrayList<Integer>(size);
+			for(int k=0; k<size; k++) c.add(flat[j++]);
+			choices.put(node, c);
+		}
+	}
+
+	// Write to a temporary file and rename it so that a crash during the write leaves the
+	// previous snapshot intact
+	public void write(String filename) throws IOException
+	{
+		File tempFile = new File(filename + ".tmp");
+		File snapshotFile = new File(filename);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(julianMin);
+			out.writeInt(n);
+			out.writeInt(window);
+			out.writeLong(eventRows);
+			out.writeLong(trajectoryRows);
+			writeInts(out, finished);
+			out.writeInt(totals.length);
+			out.write(totals);
+			writeInts(out, id);
+			writeInts(out, ChippsPassCount);
+			writeInts(out, ExitPassCount);
+			writeInts(out, SWPpassCount);
+			writeInts(out, CVPpassCount);
+			writeInts(out, nodeDecisionIndex);
+			writeInts(out, swimTimeStep);
+			writeInts(out, assessCountdown);
+			writeBooleans(out, swimTimeThisStep);
+			for(int i=0; i<n; i++) writeInts(out, checkpointsPassCount[i]);
+			writeFloats(out, timeSinceDecision);
+			writeFloats(out, currentDirection);
+			writeFloats(out, confusionFactor);
+			writeFloats(out, sumStageChanges);
+			writeFloats(out, previousStage);
+			writeFloats(out, swimSpeed);
+			writeFloats(out, meanSwimSpeed);
+			writeFloats(out, stdSwimSpeed);
+			writeFloats(out, epsSwimSpeed);
+			writeFloats(out, holdThr);
+			writeFloats(out, constProbConfusion);
+			writeFloats(out, daytimeSwimProb);
+			writeFloats(out, lastDecisionAttemptTime);
+			writeDoubles(out, probConfusion);
+			writeDoubles(out, realizedSurvProb);
+			writeDoubles(out, upNodeEC);
+			writeDoubles(out, downNodeEC);
+			writeDoubles(out, cohortWeight);
+			writeStrings(out, reachOrigin);
+			writeInts(out, reachEntryTime);
+			writeDoubles(out, reachWeight);
+			for(int i=0; i<n; i++) writeDoubles(out, velIntMemory[i]);
+			writeBooleans(out, stageInitialized);
+			writeBooleans(out, tideIncreasing);
+			writeBooleans(out, enteredSmartChannel);
+			for(int i=0; i<n; i++) out.writeLong(rngState[i]);
+			writeDoubles(out, rngNextNextGaussian);
+			writeBooleans(out, rngHaveNextNextGaussian);
+			writeInts(out, previousWB);
+			for(int i=0; i<n; i++) writeInts(out, possibleChoices[i]);
+			writeInts(out, waterbody);
+			writeInts(out, node);
+			writeFloats(out, x);
+			writeFloats(out, y);
+			writeFloats(out, z);
+			writeBooleans(out, particleWait);
+		} finally
+		{
+			out.close();
+		}
+
+		if(snapshotFile.exists() && !snapshotFile.delete())
+		{
+			throw new IOException("Cannot replace old snapshot " + filename);
+		}
+		if(!tempFile.renameTo(snapshotFile))
+		{
+			throw new IOException("Cannot rename " + tempFile + " to " + filename);
+		}
+	}
+
+	public static BehaviorSnapshot read(String filename) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+		BehaviorSnapshot s;
+		int julianMin;
+
+		try
+		{
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+			{
+				throw new IOException(filename + " is not a behavior snapshot of version " + VERSION);
+			}
+			julianMin = in.readInt();
+			s = new BehaviorSnapshot(in.readInt());
+			s.julianMin = julianMin;
+			s.window = in.readInt();
+			s.eventRows = in.readLong();
+			s.trajectoryRows = in.readLong();
+			s.finished = readInts(in);
+			s.totals = new byte[in.readInt()];
+			in.readFully(s.totals);
+			readInts(in, s.id);
+			readInts(in, s.ChippsPassCount);
+			readInts(in, s.ExitPassCount);
+			readInts(in, s.SWPpassCount);
+			readInts(in, s.CVPpassCount);
+			readInts(in, s.nodeDecisionIndex);
+			readInts(in, s.swimTimeStep);
+			readInts(in, s.assessCountdown);
+			readBooleans(in, s.swimTimeThisStep);
+			for(int i=0; i<s.n; i++) s.checkpointsPassCount[i] = readInts(in);
+			readFloats(in, s.timeSinceDecision);
+			readFloats(in, s.currentDirection);
+			readFloats(in, s.confusionFactor);
+			readFloats(in, s.sumStageChanges);
+			readFloats(in, s.previousStage);
+			readFloats(in, s.swimSpeed);
+			readFloats(in, s.meanSwimSpeed);
+			readFloats(in, s.stdSwimSpeed);
+			readFloats(in, s.epsSwimSpeed);
+			readFloats(in, s.holdThr);
+			readFloats(in, s.constProbConfusion);
+			readFloats(in, s.daytimeSwimProb);
+			readFloats(in, s.lastDecisionAttemptTime);
+			readDoubles(in, s.probConfusion);
+			readDoubles(in, s.realizedSurvProb);
+			readDoubles(in, s.upNodeEC);
+			readDoubles(in, s.downNodeEC);
+			readDoubles(in, s.cohortWeight);
+			readStrings(in, s.reachOrigin);
+			readInts(in, s.reachEntryTime);
+			readDoubles(in, s.reachWeight);
+			for(int i=0; i<s.n; i++) s.velIntMemory[i] = readDoubles(in);
+			readBooleans(in, s.stageInitialized);
+			readBooleans(in, s.tideIncreasing);
+			readBooleans(in, s.enteredSmartChannel);
+			for(int i=0; i<s.n; i++) s.rngState[i] = in.readLong();
+			readDoubles(in, s.rngNextNextGaussian);
+			readBooleans(in, s.rngHaveNextNextGaussian);
+			readInts(in, s.previousWB);
+			for(int i=0; i<s.n; i++) s.possibleChoices[i] = readInts(in);
+			readInts(in, s.waterbody);
+			readInts(in, s.node);
+			readFloats(in, s.x);
+			readFloats(in, s.y);
+			readFloats(in, s.z);
+			readBooleans(in, s.particleWait);
+		} finally
+		{
+			in.close();
+		}
+
+		s.rowIndex = new HashMap<Integer, Integer>();
+		for(int i=0; i<s.n; i++)
+		{
+			s.rowIndex.put(s.id[i], i);
+		}
+		s.finishedIndex = new HashSet<Integer>();
+		for(int i=0; i<s.finished.length; i++)
+		{
+			s.finishedIndex.add(s.finished[i]);
+		}
+		return s;
+	}
+
+	// Queue the snapshot to be written on the background thread
+	public static synchronized void writeInBackground(final BehaviorSnapshot s, final String filename)
+	{
+		if(snapshotWriter==null)
+		{
+			snapshotWriter = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "BehaviorSnapshotWriter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		snapshotWriter.execute(new Runnable()
+		{
+			public void run()
+			{
+				long start = System.nanoTime();
+				try
+				{
+					s.write(filename);
+					System.out.println("Wrote behavior snapshot of " + s.n + " live and " + s.finished.length + " finished particles at " + Globals.getModelDate(s.julianMin) +
+							" " + Globals.getModelTime(s.julianMin) + " to " + filename + " in " + (System.nanoTime()-start)/1000000 + " ms");
+				} catch (IOException e)
+				{
+					System.out.println("Failed to write behavior snapshot " + filename + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	// Wait for queued snapshots to be written
+	public static synchronized void shutdown()
+	{
+		if(snapshotWriter==null) return;
+		snapshotWriter.shutdown();
+		try
+		{
+			snapshotWriter.awaitTermination(10, TimeUnit.MINUTES);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		snapshotWriter = null;
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// Column I/O
+	////////////////////////////////////////////////////////////////////
+	private static void writeInts(DataOutputStream out, int[] col) throws IOException
+	{
+		out.writeInt(col.length);
+		for(int i=0; i<col.length; i++) out.writeInt(col[i]);
+	}
+
+	private static void writeFloats(DataOutputStream out, float[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++) out.writeFloat(col[i]);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] col) throws IOException
+	{
+		out.writeInt(col.length);
+		for(int i=0; i<col.length; i++) out.writeDouble(col[i]);
+	}
+
+	private static void writeBooleans(DataOutputStream out, boolean[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++) out.writeBoolean(col[i]);
+	}
+
+	// null is written as an empty string
+	private static void writeStrings(DataOutputStream out, String[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++) out.writeUTF(col[i]==null ? "" : col[i]);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException
+	{
+		int[] col = new int[in.readInt()];
+		for(int i=0; i<col.length; i++) col[i] = in.readInt();
+		return col;
+	}
+
+	private static void readInts(DataInputStream in, int[] col) throws IOException
+	{
+		if(in.readInt()!=col.length) throw new IOException("Corrupt behavior snapshot");
+		for(int i=0; i<col.length; i++) col[i] = in.readInt();
+	}
+
+	private static void readFloats(DataInputStream in, float[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++) col[i] = in.readFloat();
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException
+	{
+		double[] col = new double[in.readInt()];
+		for(int i=0; i<col.length; i++) col[i] = in.readDouble();
+		return col;
+	}
+
+	private static void readDoubles(DataInputStream in, double[] col) throws IOException
+	{
+		if(in.readInt()!=col.length) throw new IOException("Corrupt behavior snapshot");
+		for(int i=0; i<col.length; i++) col[i] = in.readDouble();
+	}
+
+	private static void readStrings(DataInputStream in, String[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++)
+		{
+			col[i] = in.readUTF();
+			if(col[i].isEmpty()) col[i] = null;
+		}
+	}
+
+	private static void readBooleans(DataInputStream in, boolean[] col) throws IOException
+	{
+		for(int i=0; i<col.length; i++) col[i] = in.readBoolean();
+	}
+}
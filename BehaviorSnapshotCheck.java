@@ -0,0 +1,76 @@
+package DWR.DMS.PTM;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that a run restarted from a behavior snapshot continues where the earlier run stopped.
+ * Run the same release twice: once without interruption, and once split into two halves, stopping
+ * after a snapshot has been written (snapshot/interval) and restarting from it (snapshot/restartFile)
+ * with the same output file. This compares the insertions, deaths and checkpoint passages in the
+ * two outputs, event by event, and lists the first differences. All output windows of a run are
+ * given, in order. The exit status is 1 if the events differ.
+ *
+ * Usage: java DWR.DMS.PTM.BehaviorSnapshotCheck -uninterrupted output.h5 [more.h5 ...]
+ *            -restarted output.h5 [more.h5 ...] [-show N]
+ */
+public class BehaviorSnapshotCheck
+{
+	public static void main(String[] args)
+	{
+		ArrayList<String> uninterrupted = new ArrayList<String>();
+		ArrayList<String> restarted = new ArrayList<String>();
+		ArrayList<String> files = null;
+		BehaviorOutputIndex a, b;
+		int show = 10, differences = 0;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-uninterrupted")) files = uninterrupted;
+			else if(args[i].equals("-restarted")) files = restarted;
+			else if(args[i].equals("-show")) show = Integer.parseInt(args[++i]);
+			else if(files!=null && !args[i].startsWith("-")) files.add(args[i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+		if(uninterrupted.isEmpty() || restarted.isEmpty())
+		{
+			System.out.println("Usage: BehaviorSnapshotCheck -uninterrupted output.h5 [more.h5 ...] " +
+					"-restarted output.h5 [more.h5 ...] [-show N]");
+			System.exit(1);
+		}
+
+		a = BehaviorOutputIndex.build(uninterrupted.toArray(new String[0]));
+		b = BehaviorOutputIndex.build(restarted.toArray(new String[0]));
+		System.out.println("Uninterrupted run: " + a.n + " events of " + a.particles.length + " particles");
+		System.out.println("Restarted run:     " + b.n + " events of " + b.particles.length + " particles");
+
+		for(int i=0; i<Math.max(a.n, b.n); i++)
+		{
+			if(i<a.n && i<b.n && sameEvent(a, b, i)) continue;
+
+			if(differences<show)
+			{
+				System.out.println("Event " + i + ": " + (i<a.n ? a.formatEvent(i) : "none") + " | " +
+						(i<b.n ? b.formatEvent(i) : "none"));
+			}
+			differences++;
+		}
+
+		System.out.println(differences + " differing events");
+		System.out.println(differences==0 ? "PASSED" : "FAILED");
+		if(differences>0) System.exit(1);
+	}
+
+	// Checkpoints are compared by name, since each index numbers them in the order it found them
+	private static boolean sameEvent(BehaviorOutputIndex a, BehaviorOutputIndex b, int i)
+	{
+		if(a.particleId[i]!=b.particleId[i] || a.type[i]!=b.type[i] || a.minute[i]!=b.minute[i] || a.pass[i]!=b.pass[i])
+		{
+			return false;
+		}
+		if(a.type[i]==BehaviorOutputIndex.CHECKPOINT)
+		{
+			return a.checkpointNames[a.location[i]].equals(b.checkpointNames[b.location[i]]);
+		}
+		return a.location[i]==b.location[i];
+	}
+}
@@ -0,0 +1,143 @@
+package DWR.DMS.PTM;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * EC at the up and down node ends of each channel for the current Qual frame. The QualData column
+ * used for each channel end, including the fallback to the opposite node when a node isn't in
+ * QualData, is resolved once per channel. Each new frame is expanded into dense upEC and downEC
+ * arrays indexed by channel envIndex, so a lookup within a time step is an array read. Channels
+ * are resolved the first time they are looked up, and the arrays grow to the largest envIndex seen.
+ * Frames come from an ECFramePrefetcher, which may already have read them in the background.
+ * The columns, the frame and the expanded arrays are published together as one immutable State
+ * through a volatile reference, so lookups read them without locking and always see a consistent
+ * set. A new frame or a newly resolved channel builds a new State under the lock.
+ */
+public class ChannelECTable
+{
+	// Arbitrary lower bound on EC so the fish choose an option with EC==0.0 if there are no other options
+	public static final double MIN_EC = 0.001;
+
+	private static final int UNRESOLVED = -2;
+	private static final int MISSING = -1;
+
+	private ECFramePrefetcher frames;
+	private HashMap<Integer, Integer> nodeColumn;
+
+	private volatile State state = new State(Integer.MIN_VALUE, null, new int[0], new int[0]);
+
+	// Never changed once it is published
+	private static class State
+	{
+		final int frameTime;
+		final double[] frame;
+
+		// QualData column for each channel end, or MISSING
+		final int[] upColumn;
+		final int[] downColumn;
+
+		final double[] upEC;
+		final double[] downEC;
+
+		State(int frameTime, double[] frame, int[] upColumn, int[] downColumn)
+		{
+			this.frameTime = frameTime;
+			this.frame = frame;
+			this.upColumn = upColumn;
+			this.downColumn = downColumn;
+			upEC = new double[upColumn.length];
+			downEC = new double[upColumn.length];
+			if(frame==null) return;
+			for(int i=0; i<upColumn.length; i++)
+			{
+				if(upColumn[i]!=UNRESOLVED) expand(i);
+			}
+		}
+
+		private void expand(int channel)
+		{
+			upEC[channel] = upColumn[channel]==MISSING ? MIN_EC : Math.max(MIN_EC, frame[upColumn[channel]]);
+			downEC[channel] = downColumn[channel]==MISSING ? MIN_EC : Math.max(MIN_EC, frame[downColumn[channel]]);
+		}
+	}
+
+	public ChannelECTable(ECFramePrefetcher frames, HashMap<Integer, Integer> nodeColumn)
+	{
+		this.frames = frames;
+		this.nodeColumn = nodeColumn;
+	}
+
+	public double lookup(Channel c, boolean useUpNode, int julianMin)
+	{
+		State s = state;
+		int channel = c.getEnvIndex();
+
+		if(julianMin!=s.frameTime || channel>=s.upColumn.length || s.upColumn[channel]==UNRESOLVED)
+		{
+			return load(c, useUpNode, julianMin);
+		}
+		return useUpNode ? s.upEC[channel] : s.downEC[channel];
+	}
+
+	// EC at all QualData nodes at julianMin
+	public double[] getFrame(int julianMin)
+	{
+		State s = state;
+
+		if(julianMin==s.frameTime) return s.frame;
+		return current(julianMin).frame;
+	}
+
+	// The state for julianMin, reading the frame if needed
+	private synchronized State current(int julianMin)
+	{
+		State s = state;
+
+		if(julianMin!=s.frameTime)
+		{
+			s = new State(julianMin, frames.get(julianMin), s.upColumn, s.downColumn);
+			state = s;
+		}
+		return s;
+	}
+
+	private synchronized double load(Channel c, boolean useUpNode, int julianMin)
+	{
+		State s = current(julianMin);
+		int channel = c.getEnvIndex();
+		int[] upColumn, downColumn;
+
+		if(channel>=s.upColumn.length || s.upColumn[channel]==UNRESOLVED)
+		{
+			upColumn = grow(s.upColumn, channel);
+			downColumn = grow(s.downColumn, channel);
+			resolve(c, upColumn, downColumn);
+			s = new State(s.frameTime, s.frame, upColumn, downColumn);
+			state = s;
+		}
+		return useUpNode ? s.upEC[channel] : s.downEC[channel];
+	}
+
+	// Try the node at the requested end. If it isn't in QualData, use the opposite node. If neither
+	// is, the EC is MIN_EC.
+	private void resolve(Channel c, int[] upColumn, int[] downColumn)
+	{
+		Integer up = nodeColumn.get(c.getUpNodeId());
+		Integer down = nodeColumn.get(c.getDownNodeId());
+
+		upColumn[c.getEnvIndex()] = up!=null ? up : (down!=null ? down : MISSING);
+		downColumn[c.getEnvIndex()] = down!=null ? down : (up!=null ? up : MISSING);
+	}
+
+	// Copy of column with room for channel
+	private static int[] grow(int[] column, int channel)
+	{
+		int n = column.length;
+		int size = channel<n ? n : Math.max(channel+1, 2*n);
+		int[] grown = Arrays.copyOf(column, size);
+
+		Arrays.fill(grown, n, size, UNRESOLVED);
+		return grown;
+	}
+}
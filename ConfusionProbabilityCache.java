@@ -0,0 +1,126 @@
+package DWR.DMS.PTM;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-channel cache of the probability of confusion, shared by all fish. The probability is a
+ * logistic function of log(signalToNoise), which only changes when a SmartChannel updates its
+ * tide statistics, so an entry is recomputed only when the channel's signalToNoise differs from
+ * the value it was computed with. Fish that use different confusion parameters in the same
+ * channel get separate entries. Entries are immutable and each channel's list of them is replaced
+ * as a whole, so lookups from different threads take no lock. Two threads that recompute the same
+ * entry at once both store it, and one of the copies is dropped. ConfusionProbabilityCacheBenchmark
+ * compares the cache with computing the probability on every entry.
+ */
+public class ConfusionProbabilityCache
+{
+	private volatile AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(1024);
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private static final class Entry
+	{
+		final float constProbConfusion;
+		final float slopeProbConfusion;
+		final double maxProbConfusion;
+		final double signalToNoise;
+		final double probConfusion;
+		final Entry next;
+
+		Entry(float constProbConfusion, float slopeProbConfusion, double maxProbConfusion, double signalToNoise,
+				double probConfusion, Entry next)
+		{
+			this.constProbConfusion = constProbConfusion;
+			this.slopeProbConfusion = slopeProbConfusion;
+			this.maxProbConfusion = maxProbConfusion;
+			this.signalToNoise = signalToNoise;
+			this.probConfusion = probConfusion;
+			this.next = next;
+		}
+
+		boolean matches(float constProb, float slopeProb, double maxProb)
+		{
+			return constProbConfusion==constProb && slopeProbConfusion==slopeProb && maxProbConfusion==maxProb;
+		}
+	}
+
+	public double getProbConfusion(SmartChannel c, float constProbConfusion, float slopeProbConfusion,
+			double maxProbConfusion)
+	{
+		return getProbConfusion(c.getEnvIndex(), c.getSignalToNoise(), constProbConfusion, slopeProbConfusion,
+				maxProbConfusion);
+	}
+
+	public double getProbConfusion(int channel, double signalToNoise, float constProbConfusion, float slopeProbConfusion,
+			double maxProbConfusion)
+	{
+		AtomicReferenceArray<Entry> table = entries;
+		Entry head, e;
+		double probConfusion;
+
+		if(channel>=table.length()) table = grow(channel);
+
+		// Find the entry for these parameters
+		head = table.get(channel);
+		for(e=head; e!=null; e=e.next)
+		{
+			if(!e.matches(constProbConfusion, slopeProbConfusion, maxProbConfusion)) continue;
+
+			if(e.signalToNoise==signalToNoise)
+			{
+				hits.increment();
+				return e.probConfusion;
+			}
+			break;
+		}
+
+		// The tide statistics changed (or this is a new entry), so recompute and replace the entry
+		misses.increment();
+		probConfusion = calcProbConfusion(signalToNoise, constProbConfusion, slopeProbConfusion, maxProbConfusion);
+		table.set(channel, new Entry(constProbConfusion, slopeProbConfusion, maxProbConfusion, signalToNoise,
+				probConfusion, without(head, constProbConfusion, slopeProbConfusion, maxProbConfusion)));
+		return probConfusion;
+	}
+
+	// A copy of the list from head without the entry for these parameters
+	private static Entry without(Entry head, float constProbConfusion, float slopeProbConfusion, double maxProbConfusion)
+	{
+		if(head==null) return null;
+		if(head.matches(constProbConfusion, slopeProbConfusion, maxProbConfusion)) return head.next;
+		return new Entry(head.constProbConfusion, head.slopeProbConfusion, head.maxProbConfusion, head.signalToNoise,
+				head.probConfusion, without(head.next, constProbConfusion, slopeProbConfusion, maxProbConfusion));
+	}
+
+	// Entries stored in the old table while it is copied may be lost, which only costs a recomputation
+	private synchronized AtomicReferenceArray<Entry> grow(int channel)
+	{
+		AtomicReferenceArray<Entry> table = entries;
+		AtomicReferenceArray<Entry> newTable;
+
+		if(channel<table.length()) return table;
+
+		newTable = new AtomicReferenceArray<Entry>(Math.max(channel+1, 2*table.length()));
+		for(int i=0; i<table.length(); i++)
+		{
+			newTable.set(i, table.get(i));
+		}
+		entries = newTable;
+		return newTable;
+	}
+
+	public static double calcProbConfusion(double signalToNoise, float constProbConfusion, float slopeProbConfusion,
+			double maxProbConfusion)
+	{
+		double lnSignalToNoise, term;
+
+		lnSignalToNoise = Math.log(Math.max(1E-10, signalToNoise));
+		term = Math.exp(constProbConfusion + slopeProbConfusion*lnSignalToNoise);
+		return maxProbConfusion*term/(1+term);
+	}
+
+	public String toString()
+	{
+		return "confusion probability cache hits=" + hits.sum() + ", misses=" + misses.sum();
+	}
+}
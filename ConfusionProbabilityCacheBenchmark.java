@@ -0,0 +1,122 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of looking up the probability of confusion the way
+ * BehavedParticle.updateProbConfusion does when a fish enters a SmartChannel: through the shared
+ * ConfusionProbabilityCache, or by computing Math.log and Math.exp on every entry as before. Each
+ * fish enters one of the channels in every time step, and each channel's signalToNoise changes every
+ * updateEvery steps, when its tide statistics are updated. The fish are split between the given
+ * number of threads, which all use one cache. Both paths are timed over the same entries, after a
+ * warm-up.
+ *
+ * Usage: java DWR.DMS.PTM.ConfusionProbabilityCacheBenchmark [-fish N] [-steps S] [-channels C]
+ *            [-updateEvery K] [-threads T]
+ */
+public class ConfusionProbabilityCacheBenchmark
+{
+	private static final float CONST_PROB_CONFUSION = -1.0f;
+	private static final float SLOPE_PROB_CONFUSION = -0.5f;
+	private static final double MAX_PROB_CONFUSION = 0.5;
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int fish = 100000;
+		int steps = 200;
+		int channels = 50;
+		int updateEvery = 4;
+		int threads = 1;
+		double inline, cached;
+		ConfusionProbabilityCache cache;
+		double[][] signalToNoise;
+		int[] channel;
+		Random random = new Random(1);
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-fish")) fish = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-steps")) steps = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-channels")) channels = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-updateEvery")) updateEvery = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		// signalToNoise of each channel in each update period, and the channel each fish enters
+		signalToNoise = new double[steps/updateEvery + 1][channels];
+		for(int p=0; p<signalToNoise.length; p++)
+		{
+			for(int c=0; c<channels; c++) signalToNoise[p][c] = 0.1 + 10.0*random.nextDouble();
+		}
+		channel = new int[fish];
+		for(int i=0; i<fish; i++) channel[i] = random.nextInt(channels);
+
+		// Warm up both paths so they are compiled before they are timed
+		run(null, fish, steps/10 + 1, updateEvery, threads, signalToNoise, channel);
+		run(new ConfusionProbabilityCache(), fish, steps/10 + 1, updateEvery, threads, signalToNoise, channel);
+
+		inline = run(null, fish, steps, updateEvery, threads, signalToNoise, channel);
+		cache = new ConfusionProbabilityCache();
+		cached = run(cache, fish, steps, updateEvery, threads, signalToNoise, channel);
+
+		System.out.println(String.format("%d fish, %d steps, %d channels updated every %d steps, %d thread(s)", fish, steps,
+				channels, updateEvery, threads));
+		System.out.println(String.format("%-8s %12.3f ms/step %10.2f ns/entry", "inline", inline/1e6, inline/fish));
+		System.out.println(String.format("%-8s %12.3f ms/step %10.2f ns/entry", "cache", cached/1e6, cached/fish));
+		System.out.println(String.format("speedup %.2f (%s)", inline/cached, cache));
+	}
+
+	// Nanoseconds per time step. cache==null computes the probability on every entry.
+	private static double run(final ConfusionProbabilityCache cache, final int fish, final int steps, final int updateEvery,
+			int threads, final double[][] signalToNoise, final int[] channel) throws InterruptedException
+	{
+		Thread[] workers = new Thread[threads];
+		final double[] sums = new double[threads];
+		long start;
+
+		start = System.nanoTime();
+		for(int t=0; t<threads; t++)
+		{
+			final int thread = t;
+			final int from = (int) ((long) fish*t/threads);
+			final int to = (int) ((long) fish*(t+1)/threads);
+
+			workers[t] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					double sum = 0.0;
+					double[] period;
+
+					for(int s=0; s<steps; s++)
+					{
+						period = signalToNoise[s/updateEvery];
+						for(int i=from; i<to; i++)
+						{
+							if(cache==null)
+							{
+								sum += ConfusionProbabilityCache.calcProbConfusion(period[channel[i]], CONST_PROB_CONFUSION,
+										SLOPE_PROB_CONFUSION, MAX_PROB_CONFUSION);
+							}
+							else
+							{
+								sum += cache.getProbConfusion(channel[i], period[channel[i]], CONST_PROB_CONFUSION,
+										SLOPE_PROB_CONFUSION, MAX_PROB_CONFUSION);
+							}
+						}
+					}
+					sums[thread] = sum;
+				}
+			});
+			workers[t].start();
+		}
+		for(Thread worker : workers)
+		{
+			worker.join();
+		}
+		// Keep the lookups from being optimized away
+		if(sums[0]==Double.MAX_VALUE) System.out.println(sums[0]);
+		return (System.nanoTime() - start)/(double) steps;
+	}
+}
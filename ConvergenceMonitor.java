@@ -0,0 +1,534 @@
+package DWR.DMS.PTM;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Stops a calibration run once its survival estimates are precise enough. A fish's outcome is
+ * known when it first reaches Chipps or Exit, or dies. For the fish whose outcome is known, the
+ * monitor keeps the mean realizedSurvProb of the fish that reached Chipps and the proportion that
+ * passed each checkpoint, with 95% confidence intervals (normal for the mean, Wilson for the
+ * proportions). Once at least minFish outcomes are known and every interval is narrower than
+ * targetWidth, the run has converged: particles are no longer inserted, and if endRun is set the
+ * fish still moving are censored and stop where they are, so the rest of the run costs little
+ * more than the hydrodynamics. The achieved precision is written under convergence/ whether or
+ * not the run converged. In cohort mode, where mortality reduces a particle's weight rather than
+ * killing it, a fish reaching Chipps or a checkpoint counts with the fraction of its initial
+ * weight that it had left at the first passage, and the intervals use the spread of those
+ * fractions (the mean realizedSurvProb uses the effective number of fish). Without cohorts every
+ * fraction is 1. The outcomes are saved in behavior snapshots, so a restarted run continues them.
+ * targetWidth=0 (the default) turns the monitor off.
+ *
+ * Fish that die early or move fast are resolved first, so counting outcomes as they become known
+ * would favor them. Instead the fish released at the same model time form a release group, and a
+ * group's outcomes only count once every fish in it has been resolved. Fish whose outcome is
+ * still unknown at the end of the run, and the groups they hold back, are left out like censored
+ * fish; convergence/unresolved is the number of those fish and convergence/pending the number of
+ * resolved fish left out with them. In a sharded run each worker counts its own fish of a group.
+ */
+public class ConvergenceMonitor
+{
+	public static final String GROUP = "convergence/";
+
+	public double targetWidth = 0.0;
+	public int minFish = 100;
+	public boolean endRun = false;
+
+	// Outcomes of the complete release groups: the number of fish, and the sums of the weight
+	// fractions (and of their squares) that reached Chipps and each checkpoint
+	private long resolved;
+	private double survived, survivedSq;
+	private double sumSurvProb, sumSqSurvProb;
+	private TreeMap<String, double[]> arrivals = new TreeMap<String, double[]>();
+	private long inserted;
+	private long skippedInsertions;
+	private long retired;
+	private volatile boolean converged = false;
+	private int convergedTime = -1;
+
+	// Release groups with fish still moving, by release time, and the release time of each of those fish
+	private TreeMap<Integer, ReleaseGroup> groups = new TreeMap<Integer, ReleaseGroup>();
+	private HashMap<Integer, Integer> releaseTime = new HashMap<Integer, Integer>();
+	// Release time of a group whose fish have all been resolved, but that may still get fish, or -1
+	private int readyTime = -1;
+
+	// Outcomes of the resolved fish of a release group
+	private static class ReleaseGroup
+	{
+		int unresolved;
+		long resolved;
+		double survived, survivedSq;
+		double sumSurvProb, sumSqSurvProb;
+		TreeMap<String, double[]> arrivals = new TreeMap<String, double[]>();
+	}
+
+	public static ConvergenceMonitor read(IHDF5SimpleReader r)
+	{
+		ConvergenceMonitor monitor = new ConvergenceMonitor();
+
+		if(r.exists("convergence/targetWidth")) monitor.targetWidth = r.readFloat("convergence/targetWidth");
+		if(r.exists("convergence/minFish")) monitor.minFish = r.readInt("convergence/minFish");
+		if(r.exists("convergence/endRun")) monitor.endRun = r.readBoolean("convergence/endRun");
+		if(monitor.targetWidth<0.0 || monitor.minFish<1)
+		{
+			throw new IllegalArgumentException("convergence/targetWidth must not be negative and convergence/minFish must be positive");
+		}
+		return monitor;
+	}
+
+	public boolean isEnabled()
+	{
+		return targetWidth>0.0;
+	}
+
+	public boolean isConverged()
+	{
+		return converged;
+	}
+
+	// Whether fish that are still moving should stop
+	public boolean shouldRetire()
+	{
+		return converged && endRun;
+	}
+
+	// bP was released at julianMin
+	public synchronized void inserted(BehavedParticle bP, int julianMin)
+	{
+		ReleaseGroup group;
+
+		if(!isEnabled()) return;
+
+		foldReady(julianMin);
+		inserted++;
+		group = groups.get(julianMin);
+		if(group==null)
+		{
+			group = new ReleaseGroup();
+			groups.put(julianMin, group);
+		}
+		group.unresolved++;
+		releaseTime.put(bP.getId(), julianMin);
+	}
+
+	// Fraction of its initial weight that bP has left
+	private static double fraction(BehavedParticle bP)
+	{
+		return BehavedParticle.cohortMode ? bP.cohortWeight/BehavedParticle.cohortInitialWeight : 1.0;
+	}
+
+	// bP passed checkpoint. The first passage of a fish whose outcome isn't known yet counts with the
+	// weight it has now.
+	public synchronized void arrived(BehavedParticle bP, String checkpoint, int passCount)
+	{
+		Integer time;
+		ReleaseGroup group;
+
+		if(!isEnabled() || passCount!=1) return;
+
+		time = releaseTime.get(bP.getId());
+		group = time==null ? null : groups.get(time);
+		if(group!=null) arrival(group.arrivals, checkpoint, fraction(bP));
+	}
+
+	// The outcome of bP is known. survProb is its realizedSurvProb if it reached Chipps, or NaN.
+	public synchronized void resolve(BehavedParticle bP, double survProb)
+	{
+		int julianMin = Globals.currentModelTime;
+		Integer time;
+		ReleaseGroup group;
+		double f = fraction(bP), unrecorded = 0.0;
+
+		if(!isEnabled()) return;
+
+		foldReady(julianMin);
+		time = releaseTime.remove(bP.getId());
+		group = time==null ? null : groups.get(time);
+		if(group==null)
+		{
+			// Not recorded at its release, so arrived didn't count its passages; count it on its own,
+			// with the weight it has now
+			group = new ReleaseGroup();
+			group.unresolved = 1;
+			unrecorded = f;
+		}
+		group.unresolved--;
+		group.resolved++;
+		if(!Double.isNaN(survProb))
+		{
+			group.survived += f;
+			group.survivedSq += f*f;
+			group.sumSurvProb += f*survProb;
+			group.sumSqSurvProb += f*survProb*survProb;
+		}
+
+		// List every checkpoint, passed or not
+		arrival(group.arrivals, "Chipps", bP.ChippsPassCount>0 ? unrecorded : 0.0);
+		arrival(group.arrivals, "Exit", bP.ExitPassCount>0 ? unrecorded : 0.0);
+		arrival(group.arrivals, "SWP", bP.SWPpassCount>0 ? unrecorded : 0.0);
+		arrival(group.arrivals, "CVP", bP.CVPpassCount>0 ? unrecorded : 0.0);
+		for(int i=0; i<bP.checkpoints.length; i++)
+		{
+			arrival(group.arrivals, Integer.toString(bP.checkpoints[i]), bP.checkpointsPassCount[i]>0 ? unrecorded : 0.0);
+		}
+
+		if(group.unresolved>0) return;
+		// More fish may still be released at the time of the group
+		if(time!=null && time>=julianMin) readyTime = time;
+		else fold(time, group, julianMin);
+	}
+
+	// Count a group that was complete when the model time moved past its release
+	private void foldReady(int julianMin)
+	{
+		ReleaseGroup group;
+
+		if(readyTime<0 || readyTime>=julianMin) return;
+
+		group = groups.get(readyTime);
+		if(group!=null && group.unresolved==0) fold(readyTime, group, julianMin);
+		readyTime = -1;
+	}
+
+	// Add the outcomes of a complete group to the counts and see whether the run has converged
+	private void fold(Integer time, ReleaseGroup group, int julianMin)
+	{
+		if(time!=null) groups.remove(time);
+		resolved += group.resolved;
+		survived += group.survived;
+		survivedSq += group.survivedSq;
+		sumSurvProb += group.sumSurvProb;
+		sumSqSurvProb += group.sumSqSurvProb;
+		for(Map.Entry<String, double[]> e : group.arrivals.entrySet())
+		{
+			add(arrivals, e.getKey(), e.getValue()[0], e.getValue()[1]);
+		}
+
+		if(!converged && resolved>=minFish && maxWidth()<=targetWidth)
+		{
+			convergedTime = julianMin;
+			converged = true;
+			System.out.println(Globals.getModelDate(convergedTime) + " " + Globals.getModelTime(convergedTime) +
+					" Converged: " + this + (endRun ? ". Ending the run." : ". No more particles will be inserted."));
+		}
+	}
+
+	private static void arrival(TreeMap<String, double[]> arrivals, String checkpoint, double weight)
+	{
+		add(arrivals, checkpoint, weight, weight*weight);
+	}
+
+	private static void add(TreeMap<String, double[]> arrivals, String checkpoint, double sum, double sumSq)
+	{
+		double[] a = arrivals.get(checkpoint);
+
+		if(a==null)
+		{
+			a = new double[2];
+			arrivals.put(checkpoint, a);
+		}
+		a[0] += sum;
+		a[1] += sumSq;
+	}
+
+	// Number of equally weighted fish that would give the same precision as the ones that reached
+	// Chipps (their number, without cohorts)
+	private double effectiveSurvivors()
+	{
+		return survivedSq>0.0 ? survived*survived/survivedSq : 0.0;
+	}
+
+	// Resolved fish whose release group isn't complete
+	private long pending()
+	{
+		long pending = 0;
+
+		for(ReleaseGroup group : groups.values())
+		{
+			pending += group.resolved;
+		}
+		return pending;
+	}
+
+	public synchronized void skippedInsertion()
+	{
+		skippedInsertions++;
+	}
+
+	public synchronized void retired()
+	{
+		retired++;
+	}
+
+	// Width of the 95% confidence interval of the mean realizedSurvProb at Chipps, weighted by the
+	// fractions
+	public synchronized double survProbWidth()
+	{
+		double n = effectiveSurvivors(), mean, variance;
+
+		if(n<2) return Double.POSITIVE_INFINITY;
+		mean = sumSurvProb/survived;
+		variance = Math.max(0.0, (sumSqSurvProb/survived - mean*mean)*n/(n-1));
+		return 2.0*ReachSurvivalEstimator.Z95*Math.sqrt(variance/n);
+	}
+
+	// Width of the 95% interval of the proportion of fish that passed checkpoint. When every fish
+	// counts fully or not at all (no cohorts) it is the Wilson interval, otherwise the normal
+	// interval of the mean fraction.
+	public synchronized double arrivalWidth(String checkpoint)
+	{
+		double z2 = ReachSurvivalEstimator.Z95*ReachSurvivalEstimator.Z95;
+		double p, variance;
+		double[] a = arrivals.get(checkpoint);
+		double sum = a==null ? 0.0 : a[0], sumSq = a==null ? 0.0 : a[1];
+
+		if(resolved==0) return Double.POSITIVE_INFINITY;
+		p = sum/resolved;
+		if(sumSq==sum)
+		{
+			return 2.0*ReachSurvivalEstimator.Z95*Math.sqrt(p*(1.0-p)/resolved + z2/(4.0*resolved*resolved))/(1.0 + z2/resolved);
+		}
+		if(resolved<2) return Double.POSITIVE_INFINITY;
+		variance = Math.max(0.0, (sumSq - resolved*p*p)/(resolved-1));
+		return 2.0*ReachSurvivalEstimator.Z95*Math.sqrt(variance/resolved);
+	}
+
+	// The widest of the intervals. realizedSurvProb only counts once two fish have reached Chipps.
+	private double maxWidth()
+	{
+		double width = effectiveSurvivors()>=2 ? survProbWidth() : 0.0;
+
+		for(String checkpoint : arrivals.keySet())
+		{
+			width = Math.max(width, arrivalWidth(checkpoint));
+		}
+		return width;
+	}
+
+	public synchronized void write(IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		write(w, layout, releaseTime.size(), pending());
+	}
+
+	private void write(IHDF5Writer w, BehaviorOutputLayout layout, long unresolved, long pending)
+	{
+		String[] checkpoints = arrivals.keySet().toArray(new String[0]);
+		double[] counts = new double[checkpoints.length];
+		double[] countsSq = new double[checkpoints.length];
+		double[] proportions = new double[checkpoints.length];
+		double[] widths = new double[checkpoints.length];
+
+		if(!isEnabled()) return;
+
+		for(int i=0; i<checkpoints.length; i++)
+		{
+			counts[i] = arrivals.get(checkpoints[i])[0];
+			countsSq[i] = arrivals.get(checkpoints[i])[1];
+			proportions[i] = resolved>0 ? counts[i]/resolved : 0.0;
+			widths[i] = arrivalWidth(checkpoints[i]);
+		}
+
+		w.writeDouble(GROUP + "targetWidth", targetWidth);
+		w.writeBoolean(GROUP + "converged", converged);
+		if(converged)
+		{
+			w.writeString(GROUP + "modelDate", Globals.getModelDate(convergedTime), 9);
+			w.writeInt(GROUP + "modelTime", Integer.parseInt(Globals.getModelTime(convergedTime)));
+			w.writeInt(GROUP + "julianMin", convergedTime);
+		}
+		w.writeLong(GROUP + "resolved", resolved);
+		w.writeLong(GROUP + "inserted", inserted);
+		w.writeLong(GROUP + "unresolved", unresolved);
+		w.writeLong(GROUP + "pending", pending);
+		w.writeLong(GROUP + "skippedInsertions", skippedInsertions);
+		w.writeLong(GROUP + "retired", retired);
+		w.writeDouble(GROUP + "survived", survived);
+		w.writeDouble(GROUP + "survivedSq", survivedSq);
+		w.writeDouble(GROUP + "sumSurvProb", sumSurvProb);
+		w.writeDouble(GROUP + "sumSqSurvProb", sumSqSurvProb);
+		w.writeDouble(GROUP + "meanSurvProb", survived>0 ? sumSurvProb/survived : 0.0);
+		w.writeDouble(GROUP + "survProbWidth", survProbWidth());
+		if(checkpoints.length>0)
+		{
+			w.writeStringArray(GROUP + "checkpoints", checkpoints);
+			layout.writeDoubleArray(w, GROUP + "arrivals", counts);
+			layout.writeDoubleArray(w, GROUP + "arrivalsSq", countsSq);
+			layout.writeDoubleArray(w, GROUP + "arrivalProportion", proportions);
+			layout.writeDoubleArray(w, GROUP + "arrivalWidth", widths);
+		}
+	}
+
+	// Pool the outcomes recorded by the workers of a sharded run and recompute the intervals. The
+	// pooled run has converged if every worker did, at the time the last one did.
+	public static void writeMerged(List<IHDF5Reader> shards, IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		ConvergenceMonitor merged = new ConvergenceMonitor();
+		String[] checkpoints;
+		double[] counts, countsSq;
+		long unresolved = 0, pending = 0;
+		boolean any = false;
+
+		merged.converged = true;
+		for(IHDF5Reader r : shards)
+		{
+			if(!r.exists(GROUP + "resolved")) continue;
+
+			any = true;
+			merged.targetWidth = r.readDouble(GROUP + "targetWidth");
+			merged.resolved += r.readLong(GROUP + "resolved");
+			merged.inserted += r.readLong(GROUP + "inserted");
+			unresolved += r.readLong(GROUP + "unresolved");
+			pending += r.readLong(GROUP + "pending");
+			merged.skippedInsertions += r.readLong(GROUP + "skippedInsertions");
+			merged.retired += r.readLong(GROUP + "retired");
+			merged.survived += r.readDouble(GROUP + "survived");
+			merged.survivedSq += r.readDouble(GROUP + "survivedSq");
+			merged.sumSurvProb += r.readDouble(GROUP + "sumSurvProb");
+			merged.sumSqSurvProb += r.readDouble(GROUP + "sumSqSurvProb");
+			if(r.readBoolean(GROUP + "converged"))
+			{
+				merged.convergedTime = Math.max(merged.convergedTime, r.readInt(GROUP + "julianMin"));
+			}
+			else
+			{
+				merged.converged = false;
+			}
+			if(r.exists(GROUP + "checkpoints"))
+			{
+				checkpoints = r.readStringArray(GROUP + "checkpoints");
+				counts = r.readDoubleArray(GROUP + "arrivals");
+				countsSq = r.readDoubleArray(GROUP + "arrivalsSq");
+				for(int i=0; i<checkpoints.length; i++)
+				{
+					add(merged.arrivals, checkpoints[i], counts[i], countsSq[i]);
+				}
+			}
+		}
+		if(any) merged.write(w, layout, unresolved, pending);
+	}
+
+	// Save the outcomes for a behavior snapshot
+	public synchronized void save(DataOutputStream out) throws IOException
+	{
+		out.writeLong(resolved);
+		out.writeDouble(survived);
+		out.writeDouble(survivedSq);
+		out.writeDouble(sumSurvProb);
+		out.writeDouble(sumSqSurvProb);
+		out.writeLong(skippedInsertions);
+		out.writeLong(retired);
+		out.writeBoolean(converged);
+		out.writeInt(convergedTime);
+		saveArrivals(out, arrivals);
+		out.writeLong(inserted);
+		out.writeInt(readyTime);
+		out.writeInt(groups.size());
+		for(Map.Entry<Integer, ReleaseGroup> e : groups.entrySet())
+		{
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue().unresolved);
+			out.writeLong(e.getValue().resolved);
+			out.writeDouble(e.getValue().survived);
+			out.writeDouble(e.getValue().survivedSq);
+			out.writeDouble(e.getValue().sumSurvProb);
+			out.writeDouble(e.getValue().sumSqSurvProb);
+			saveArrivals(out, e.getValue().arrivals);
+		}
+		out.writeInt(releaseTime.size());
+		for(Map.Entry<Integer, Integer> e : releaseTime.entrySet())
+		{
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	private static void saveArrivals(DataOutputStream out, TreeMap<String, double[]> arrivals) throws IOException
+	{
+		out.writeInt(arrivals.size());
+		for(Map.Entry<String, double[]> e : arrivals.entrySet())
+		{
+			out.writeUTF(e.getKey());
+			out.writeDouble(e.getValue()[0]);
+			out.writeDouble(e.getValue()[1]);
+		}
+	}
+
+	private static void restoreArrivals(DataInputStream in, TreeMap<String, double[]> arrivals) throws IOException
+	{
+		int n = in.readInt();
+
+		arrivals.clear();
+		for(int i=0; i<n; i++)
+		{
+			arrivals.put(in.readUTF(), new double[] {in.readDouble(), in.readDouble()});
+		}
+	}
+
+	// Replace the outcomes with those saved by save
+	public synchronized void restore(DataInputStream in) throws IOException
+	{
+		ReleaseGroup group;
+		int n;
+
+		resolved = in.readLong();
+		survived = in.readDouble();
+		survivedSq = in.readDouble();
+		sumSurvProb = in.readDouble();
+		sumSqSurvProb = in.readDouble();
+		skippedInsertions = in.readLong();
+		retired = in.readLong();
+		converged = in.readBoolean();
+		convergedTime = in.readInt();
+		restoreArrivals(in, arrivals);
+		inserted = in.readLong();
+		readyTime = in.readInt();
+		groups.clear();
+		n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			group = new ReleaseGroup();
+			groups.put(in.readInt(), group);
+			group.unresolved = in.readInt();
+			group.resolved = in.readLong();
+			group.survived = in.readDouble();
+			group.survivedSq = in.readDouble();
+			group.sumSurvProb = in.readDouble();
+			group.sumSqSurvProb = in.readDouble();
+			restoreArrivals(in, group.arrivals);
+		}
+		releaseTime.clear();
+		n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			releaseTime.put(in.readInt(), in.readInt());
+		}
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder s = new StringBuilder("convergence: resolved=" + resolved);
+
+		if(survived>0)
+		{
+			s.append(String.format(", realizedSurvProb=%.3f (width %.3f)", sumSurvProb/survived, survProbWidth()));
+		}
+		for(Map.Entry<String, double[]> e : arrivals.entrySet())
+		{
+			s.append(String.format(", %s=%.3f (width %.3f)", e.getKey(), e.getValue()[0]/Math.max(1, resolved),
+					arrivalWidth(e.getKey())));
+		}
+		if(!releaseTime.isEmpty()) s.append(", unresolved=").append(releaseTime.size()).append(", pending=").append(pending());
+		if(skippedInsertions>0) s.append(", skipped insertions=").append(skippedInsertions);
+		if(retired>0) s.append(", retired=").append(retired);
+		return s.toString();
+	}
+}
@@ -7,12 +7,14 @@ package createBehaviorHDF5;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
 import ch.systemsx.cisd.hdf5.IHDF5SimpleWriter;
 
 public class CreateBehaviorHDF5
@@ -47,6 +49,41 @@ public class CreateBehaviorHDF5
 	public String channelParsFile;
 	public String outputFilename;
 	public String qualDatafileName;
+	public String qualStoreFilename;
+	public boolean updateMode;
+	public boolean updating;
+	public int updatedParameterCount;
+	public int outputChunkSize;
+	public int outputDeflateLevel;
+	public boolean outputShuffle;
+	public boolean outputFloat32SurvProb;
+	public boolean outputColumnarEvents;
+	public int snapshotInterval;
+	public String snapshotFilename;
+	public String restartFilename;
+	public boolean dielDateVarying;
+	public float dielLatitude;
+	public float dielLongitude;
+	public float dielUTCOffset;
+	public boolean cohortMode;
+	public float cohortInitialWeight;
+	public float cohortMinWeight;
+	public int trajectoryInterval;
+	public float trajectoryFraction;
+	public int trajectoryBlockSize;
+	public int qualPrefetchWindow;
+	public boolean fastGaussian;
+	public int countersReportInterval;
+	public int outputWindowInterval;
+	public float convergenceTargetWidth;
+	public int convergenceMinFish;
+	public boolean convergenceEndRun;
+	public int observerBatchMode;
+	public int observerBufferSize;
+	public boolean observerBlock;
+	public String observerLogFile;
+	public boolean observerSynchronous;
+	public boolean populationEnabled;
 	public enum releaseLocations{FREEPORT, SUTTER, STEAMBOAT, J1, J2, GEORGIANA, DCC, MOK, RIO, CVO, NA, FREEPORTTRACK};
 	public releaseLocations releaseLocation;
 	public int[] checkpoints;
@@ -87,6 +124,92 @@ public class CreateBehaviorHDF5
 			thisObj.immortal = Boolean.parseBoolean(args[20]);
 			thisObj.upNodesFile = args[21];
 			thisObj.outputSpecFile = args[22];
+			
+			// Optional standalone Qual data store shared by all of the behavior files in a sweep
+			if(args.length>23) thisObj.qualStoreFilename = args[23];
+			
+			// Optional update mode: only rewrite the parameters that changed in an existing file
+			if(args.length>24) thisObj.updateMode = Boolean.parseBoolean(args[24]);
+			
+			// Optional storage layout of the behavior output file
+			if(args.length>28)
+			{
+				thisObj.outputChunkSize = Integer.parseInt(args[25]);
+				thisObj.outputDeflateLevel = Integer.parseInt(args[26]);
+				thisObj.outputShuffle = Boolean.parseBoolean(args[27]);
+				thisObj.outputFloat32SurvProb = Boolean.parseBoolean(args[28]);
+			}
+			
+			// Optional behavior snapshots and restart
+			if(args.length>31)
+			{
+				thisObj.snapshotInterval = Integer.parseInt(args[29]);
+				thisObj.snapshotFilename = args[30];
+				thisObj.restartFilename = args[31];
+			}
+			
+			// Optional date-varying sunrise and sunset times
+			if(args.length>35)
+			{
+				thisObj.dielDateVarying = Boolean.parseBoolean(args[32]);
+				thisObj.dielLatitude = Float.parseFloat(args[33]);
+				thisObj.dielLongitude = Float.parseFloat(args[34]);
+				thisObj.dielUTCOffset = Float.parseFloat(args[35]);
+			}
+			
+			// Optional weighted cohort mode
+			if(args.length>38)
+			{
+				thisObj.cohortMode = Boolean.parseBoolean(args[36]);
+				thisObj.cohortInitialWeight = Float.parseFloat(args[37]);
+				thisObj.cohortMinWeight = Float.parseFloat(args[38]);
+			}
+			
+			// Optional sampled trajectory output
+			if(args.length>41)
+			{
+				thisObj.trajectoryInterval = Integer.parseInt(args[39]);
+				thisObj.trajectoryFraction = Float.parseFloat(args[40]);
+				thisObj.trajectoryBlockSize = Integer.parseInt(args[41]);
+			}
+			
+			// Optional number of Qual frames to read ahead
+			if(args.length>42) thisObj.qualPrefetchWindow = Integer.parseInt(args[42]);
+			
+			// Optional choice of the normal generator for variable swim speeds
+			if(args.length>43) thisObj.fastGaussian = Boolean.parseBoolean(args[43]);
+			
+			// Optional progress report interval (minutes of model time)
+			if(args.length>44) thisObj.countersReportInterval = Integer.parseInt(args[44]);
+			
+			// Optional length of the output windows (minutes of model time)
+			if(args.length>45) thisObj.outputWindowInterval = Integer.parseInt(args[45]);
+			
+			// Optional early stopping once the survival estimates converge
+			if(args.length>48)
+			{
+				thisObj.convergenceTargetWidth = Float.parseFloat(args[46]);
+				thisObj.convergenceMinFish = Integer.parseInt(args[47]);
+				thisObj.convergenceEndRun = Boolean.parseBoolean(args[48]);
+			}
+			
+			// Optional batched delivery of node and waterbody changes
+			if(args.length>51)
+			{
+				thisObj.observerBatchMode = Integer.parseInt(args[49]);
+				thisObj.observerBufferSize = Integer.parseInt(args[50]);
+				thisObj.observerBlock = Boolean.parseBoolean(args[51]);
+			}
+			if(args.length>52) thisObj.observerLogFile = args[52];
+			
+			// Optional columnar storage of the per-particle events
+			if(args.length>53) thisObj.outputColumnarEvents = Boolean.parseBoolean(args[53]);
+			
+			// Optional bulk update of the per-step behavior state
+			if(args.length>54) thisObj.populationEnabled = Boolean.parseBoolean(args[54]);
+			
+			// Optionally stop calling the particle observer in the batched observer modes
+			if(args.length>55) thisObj.observerSynchronous = Boolean.parseBoolean(args[55]);
 		}
 				
 		thisObj.createFile();
@@ -104,6 +227,34 @@ public class CreateBehaviorHDF5
 		upNodesFile = "/Users/doug.jackson/Documents/Shared_Windows/models/git/createBehaviorHDF5/createBehaviorHDF5/channels_v8_1_2.csv";
 		outputSpecFile = "";
 		
+		// If qualStoreFilename is not empty, the Qual EC series is written once to this standalone
+		// file and the behavior file only references it. Otherwise the EC series is embedded.
+		qualStoreFilename = "";
+		
+		// If updateMode is true and outputFilename already exists, only the parameter datasets that
+		// differ are overwritten and QualData is left untouched
+		updateMode = false;
+		
+		// Storage layout of the behavior output file written by PTM. A chunk size of 0 and a deflate
+		// level of 0 give contiguous, uncompressed datasets. These stay the defaults until
+		// BehaviorOutputBenchmark has been run on a representative release.
+		outputChunkSize = 0;
+		outputDeflateLevel = 0;
+		outputShuffle = false;
+		outputFloat32SurvProb = false;
+		
+		// Write insertions, deaths, checkpoint passages, swim speeds and realized survival
+		// probabilities as rows of chunked, compressible columns under events/ instead of one group of
+		// scalar datasets per particle
+		outputColumnarEvents = false;
+		
+		// Write a snapshot of the behavior state of all live particles every snapshotInterval minutes
+		// of model time (0 disables snapshots). If restartFilename is not empty, the run resumes from
+		// that snapshot.
+		snapshotInterval = 0;
+		snapshotFilename = "";
+		restartFilename = "";
+		
 		numberOfChannels = 521;
 		numberOfReservoirs = 7; //6 
 		swimCode = 11;
@@ -119,6 +270,13 @@ public class CreateBehaviorHDF5
 		sunriseTime = "0727";
 		sunsetTime = "1700";
 		
+		// If dielDateVarying is true, sunrise and sunset are computed for each model day at this
+		// location (degrees, positive north and east) and time zone (hours from UTC) instead
+		dielDateVarying = false;
+		dielLatitude = 38.25f;
+		dielLongitude = -121.5f;
+		dielUTCOffset = -8.0f;
+		
 		// Number of hours to average the velocity over when trying to determine if
 		// a particular fish has been fighting the flow and should turn around
 		velDecisionPeriod = 12;
@@ -153,6 +311,62 @@ public class CreateBehaviorHDF5
 		
 		immortal = false;
 		
+		// In cohort mode each particle starts out representing cohortInitialWeight fish. Mortality
+		// reduces the weight; below cohortMinWeight fish, the cohort survives or dies as a whole.
+		cohortMode = false;
+		cohortInitialWeight = 1000.0f;
+		cohortMinWeight = 1.0f;
+		
+		// Sampled trajectory output: every trajectoryInterval time steps, trajectoryFraction of the
+		// fish record their state. Rows are written in blocks of trajectoryBlockSize. Off by default.
+		trajectoryInterval = 0;
+		trajectoryFraction = 1.0f;
+		trajectoryBlockSize = 65536;
+		
+		// Number of Qual EC frames read ahead of model time on a background thread (0 reads each
+		// frame when it is first needed)
+		qualPrefetchWindow = 2;
+		
+		// Draw the swim speed noise with the ziggurat method instead of Random's polar method. Off by
+		// default so new parameter files reproduce the random streams of earlier runs.
+		fastGaussian = false;
+		
+		// Print the run-wide insertion, passage, export and death counts every
+		// countersReportInterval minutes of model time (0 only prints them at the end)
+		countersReportInterval = 0;
+		
+		// Start a new behavior output file every outputWindowInterval minutes of model time, e.g.
+		// 43200 for 30 days (0 writes a single file)
+		outputWindowInterval = 0;
+		
+		// Stop inserting particles (or, with convergenceEndRun, end the run) once the 95%
+		// confidence intervals of realizedSurvProb and the checkpoint arrival proportions are
+		// narrower than convergenceTargetWidth, with at least convergenceMinFish outcomes known
+		// (0 runs the whole release)
+		convergenceTargetWidth = 0.0f;
+		convergenceMinFish = 100;
+		convergenceEndRun = false;
+		
+		// Deliver node and waterbody changes to the particle observer as they happen (0), or buffer
+		// them per thread and hand them to the batch consumers at the start of each time step (1) or
+		// on a background thread (2). When a buffer of observerBufferSize records is full, changes are
+		// dropped unless observerBlock is set. Batched changes are written as CSV to observerLogFile
+		// if it is set. A particle observer attached by the engine is called for every change in
+		// all modes, which keeps the particle loop as slow as in mode 0, unless observerSynchronous
+		// is false; then the batched modes don't call it.
+		observerBatchMode = 0;
+		observerBufferSize = 4096;
+		observerBlock = false;
+		observerLogFile = "";
+		observerSynchronous = true;
+		
+		// Update the confusion assessment and swim speed noise of all live fish at the start of each
+		// time step from a structure-of-arrays copy of their state. The results are the same as
+		// updating each fish as it moves. Off by default: each fish draws from its own generator, which
+		// the arrays can't batch, and BehaviorPopulationBenchmark measured the bulk update at 0.6-0.9
+		// of the speed of the per-fish one.
+		populationEnabled = false;
+		
 	}	
 
 	//////////////////////////////////////////////////////////////////////
@@ -266,8 +480,19 @@ public class CreateBehaviorHDF5
 		// Read the node numbers
 		upNodes = readUpNodes();
 		
-		// Read the Qual data file until the end if swimCode==7
-		if(swimCode==7)
+		// An existing file can only be updated in place if it was built from the same channels,
+		// upNodes and Qual data. Otherwise rebuild it from scratch.
+		if(updating && !existingFileIsConsistent(channelPars))
+		{
+			System.out.println("Existing file " + outputFilename + " is not consistent with the new parameters. Rewriting it.");
+			writer.close();
+			updateMode = false;
+			writer = initializeWriter();
+		}
+		
+		// Read the Qual data file until the end if swimCode==7, unless a shared Qual data store
+		// already holds the EC series for this Qual file
+		if(swimCode==7 && !updating && !qualStoreIsCurrent())
 		{
 			try
 			{
@@ -326,48 +551,282 @@ public class CreateBehaviorHDF5
 		// Write data to HDF5 file
 		//////////////////////////////////////////////////////////////////////
 		
-		writer.writeString("channelParsFile", channelParsFile, 250);
-		writer.writeString("qualDatafileName", qualDatafileName, 250);
-		writer.writeInt("swimCode", swimCode);
-		writer.writeFloat("meanSwimSpeed", meanSwimSpeed);
-		writer.writeFloat("stdSwimSpeed", stdSwimSpeed);
-		writer.writeFloat("filterK", filterK);
-		writer.writeBoolean("variableSwimSpeed", variableSwimSpeed);
-		writer.writeFloat("stageThresholdInc", stageThresholdInc);
-		writer.writeFloat("stageThresholdDec", stageThresholdDec);
-		writer.writeFloat("daytimeSwimProb", daytimeSwimProb);
-		writer.writeString("sunriseTime", sunriseTime, 4);
-		writer.writeString("sunsetTime", sunsetTime, 4);
-		writer.writeInt("velDecisionPeriod", velDecisionPeriod);
-		writer.writeInt("tideCountThr", tideCountThr);
-		writer.writeFloat("holdThr", holdThr);
-		writer.writeFloat("constProbConfusion", constProbConfusion);
-		writer.writeFloat("slopeProbConfusion", slopeProbConfusion);
-		writer.writeBoolean("randAssess", randAssess);
-		writer.writeFloat("probAssess", probAssess);
-		writer.writeFloat("initProbConfusion", initProbConfusion);
-		writer.writeIntArray("nodeDecisions", nodeDecisions);
-		writer.writeDoubleMatrix("weightsTransformation/weightsTransformation_0", wT_0);
-		writer.writeDoubleMatrix("weightsTransformation/weightsTransformation_1", wT_1);
-		writer.writeDoubleMatrix("weightsTransformation/weightsTransformation_2", wT_2);
-		writer.writeDoubleMatrix("weightsTransformation/weightsTransformation_3", wT_3);
-		writer.writeDoubleMatrix("channelPars", channelPars);
-		writer.writeIntArray("checkpoints", checkpoints);
-		writer.writeBoolean("immortal", immortal);
-		writer.writeString("upNodesFile", upNodesFile, 250);
-		
-		// Write the Qual data to the HDF5 file
+		writeParameter("channelParsFile", channelParsFile, 250);
+		writeParameter("qualDatafileName", qualDatafileName, 250);
+		writeParameter("swimCode", swimCode);
+		writeParameter("meanSwimSpeed", meanSwimSpeed);
+		writeParameter("stdSwimSpeed", stdSwimSpeed);
+		writeParameter("filterK", filterK);
+		writeParameter("variableSwimSpeed", variableSwimSpeed);
+		writeParameter("stageThresholdInc", stageThresholdInc);
+		writeParameter("stageThresholdDec", stageThresholdDec);
+		writeParameter("daytimeSwimProb", daytimeSwimProb);
+		writeParameter("sunriseTime", sunriseTime, 4);
+		writeParameter("sunsetTime", sunsetTime, 4);
+		writeParameter("velDecisionPeriod", velDecisionPeriod);
+		writeParameter("tideCountThr", tideCountThr);
+		writeParameter("holdThr", holdThr);
+		writeParameter("constProbConfusion", constProbConfusion);
+		writeParameter("slopeProbConfusion", slopeProbConfusion);
+		writeParameter("randAssess", randAssess);
+		writeParameter("probAssess", probAssess);
+		writeParameter("initProbConfusion", initProbConfusion);
+		writeParameter("nodeDecisions", nodeDecisions);
+		writeParameter("weightsTransformation/weightsTransformation_0", wT_0);
+		writeParameter("weightsTransformation/weightsTransformation_1", wT_1);
+		writeParameter("weightsTransformation/weightsTransformation_2", wT_2);
+		writeParameter("weightsTransformation/weightsTransformation_3", wT_3);
+		writeParameter("channelPars", channelPars);
+		writeParameter("checkpoints", checkpoints);
+		writeParameter("immortal", immortal);
+		writeParameter("upNodesFile", upNodesFile, 250);
+		writeParameter("outputLayout/chunkSize", outputChunkSize);
+		writeParameter("outputLayout/deflateLevel", outputDeflateLevel);
+		writeParameter("outputLayout/shuffle", outputShuffle);
+		writeParameter("outputLayout/float32SurvProb", outputFloat32SurvProb);
+		writeParameter("outputLayout/columnarEvents", outputColumnarEvents);
+		writeParameter("snapshot/interval", snapshotInterval);
+		writeParameter("snapshot/filename", snapshotFilename, 250);
+		writeParameter("snapshot/restartFile", restartFilename, 250);
+		writeParameter("diel/dateVarying", dielDateVarying);
+		writeParameter("diel/latitude", dielLatitude);
+		writeParameter("diel/longitude", dielLongitude);
+		writeParameter("diel/utcOffset", dielUTCOffset);
+		writeParameter("cohort/enabled", cohortMode);
+		writeParameter("cohort/initialWeight", cohortInitialWeight);
+		writeParameter("cohort/minWeight", cohortMinWeight);
+		writeParameter("trajectory/interval", trajectoryInterval);
+		writeParameter("trajectory/fraction", trajectoryFraction);
+		writeParameter("trajectory/blockSize", trajectoryBlockSize);
+		writeParameter("qualPrefetch/window", qualPrefetchWindow);
+		writeParameter("fastGaussian", fastGaussian);
+		writeParameter("counters/reportInterval", countersReportInterval);
+		writeParameter("output/windowInterval", outputWindowInterval);
+		writeParameter("convergence/targetWidth", convergenceTargetWidth);
+		writeParameter("convergence/minFish", convergenceMinFish);
+		writeParameter("convergence/endRun", convergenceEndRun);
+		writeParameter("observer/batchMode", observerBatchMode);
+		writeParameter("observer/bufferSize", observerBufferSize);
+		writeParameter("observer/block", observerBlock);
+		writeParameter("observer/logFile", observerLogFile, 250);
+		writeParameter("observer/synchronous", observerSynchronous);
+		writeParameter("population/enabled", populationEnabled);
+		
+		// In update mode QualData is already consistent, so leave it alone
+		if(updating)
+		{
+			writer.close();
+			System.out.println("Updated " + updatedParameterCount + " parameter datasets in " + outputFilename);
+			System.out.println("Done");
+			return;
+		}
+		
+		// Write the Qual data to the HDF5 file, or to the shared Qual data store and reference it
 		writer.writeString("QualData/qualFile", qualDatafileName, qualDatafileName.length());
 		writer.writeDoubleArray("QualData/upNodes", upNodes);
-		for(Map.Entry<String, double[]> entry : EC.entrySet())
+		if(swimCode==7 && !qualStoreFilename.isEmpty())
 		{
-			writer.writeDoubleArray("QualData/" + entry.getKey(), entry.getValue());
+			if(!EC.isEmpty())
+			{
+				writeQualStore(EC);
+			}
+			writer.writeString("QualData/qualStore", qualStoreReference(), 250);
+		}
+		else
+		{
+			writer.writeLong("QualData/qualFileSize", new File(qualDatafileName).length());
+			writer.writeLong("QualData/qualFileModified", new File(qualDatafileName).lastModified());
+			for(Map.Entry<String, double[]> entry : EC.entrySet())
+			{
+				writer.writeDoubleArray("QualData/" + entry.getKey(), entry.getValue());
+			}
 		}
 		writer.close();	
 			
 		System.out.println("Done");
 	}
 
+	// Check that the existing file has the same channels, upNodes and Qual data as the new parameters.
+	// Changed channel parameter values are updated in place by writeParameter; only a different set
+	// of channels needs a rewrite.
+	public boolean existingFileIsConsistent(double[][] channelPars)
+	{
+		File qualFile = new File(qualDatafileName);
+		
+		try
+		{
+			if(!sameChannels(writer.readDoubleMatrix("channelPars"), channelPars))
+			{
+				System.out.println("Channels differ from the existing file");
+				return false;
+			}
+			if(!Arrays.equals(writer.readDoubleArray("QualData/upNodes"), upNodes))
+			{
+				System.out.println("upNodes differ from the existing file");
+				return false;
+			}
+			if(!writer.readString("QualData/qualFile").equals(qualDatafileName) || 
+					(writer.readInt("swimCode")==7) != (swimCode==7) ||
+					writer.exists("QualData/qualStore") != (swimCode==7 && !qualStoreFilename.isEmpty()))
+			{
+				System.out.println("Qual data differ from the existing file");
+				return false;
+			}
+			if(writer.exists("QualData/qualStore") && 
+					(!writer.readString("QualData/qualStore").equals(qualStoreReference()) || !qualStoreIsCurrent()))
+			{
+				System.out.println("The Qual data store differs from the existing file or is out of date");
+				return false;
+			}
+			if(swimCode==7 && !writer.exists("QualData/qualStore") && 
+					(!writer.exists("QualData/qualFileSize") || 
+					writer.readLong("QualData/qualFileSize")!=qualFile.length() ||
+					writer.readLong("QualData/qualFileModified")!=qualFile.lastModified()))
+			{
+				System.out.println("The Qual file " + qualDatafileName + " has changed since the existing file was written");
+				return false;
+			}
+		} catch (Exception e)
+		{
+			System.out.println("Could not read existing file " + outputFilename + ": " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	// Whether two channelPars matrices describe the same channels (column 0), whatever their parameters
+	private static boolean sameChannels(double[][] a, double[][] b)
+	{
+		if(a.length!=b.length) return false;
+		for(int i=0; i<a.length; i++)
+		{
+			if(a[i].length!=b[i].length || a[i][0]!=b[i][0]) return false;
+		}
+		return true;
+	}
+	
+	// Write a parameter dataset. In update mode, datasets that already hold the value are skipped.
+	public void writeParameter(String path, int value)
+	{
+		if(updating && writer.exists(path) && writer.readInt(path)==value) return;
+		writer.writeInt(path, value);
+		updatedParameterCount++;
+	}
+	
+	public void writeParameter(String path, float value)
+	{
+		if(updating && writer.exists(path) && writer.readFloat(path)==value) return;
+		writer.writeFloat(path, value);
+		updatedParameterCount++;
+	}
+	
+	public void writeParameter(String path, boolean value)
+	{
+		if(updating && writer.exists(path) && writer.readBoolean(path)==value) return;
+		writer.writeBoolean(path, value);
+		updatedParameterCount++;
+	}
+	
+	public void writeParameter(String path, String value, int maxLength)
+	{
+		if(updating && writer.exists(path) && writer.readString(path).equals(value)) return;
+		writer.writeString(path, value, maxLength);
+		updatedParameterCount++;
+	}
+	
+	public void writeParameter(String path, int[] value)
+	{
+		if(updating && writer.exists(path) && Arrays.equals(writer.readIntArray(path), value)) return;
+		writer.writeIntArray(path, value);
+		updatedParameterCount++;
+	}
+	
+	public void writeParameter(String path, double[][] value)
+	{
+		if(updating && writer.exists(path) && Arrays.deepEquals(writer.readDoubleMatrix(path), value)) return;
+		writer.writeDoubleMatrix(path, value);
+		updatedParameterCount++;
+	}
+	
+	// Check whether qualStoreFilename already holds the EC series for qualDatafileName and upNodes
+	// and the Qual file hasn't changed (same size and modification time) since the store was written
+	public boolean qualStoreIsCurrent()
+	{
+		IHDF5SimpleReader storeReader;
+		File qualFile = new File(qualDatafileName);
+		boolean current = false;
+		
+		if(qualStoreFilename.isEmpty() || !(new File(qualStoreFilename).exists()))
+		{
+			return false;
+		}
+		
+		try
+		{
+			storeReader = HDF5Factory.openForReading(qualStoreFilename);
+			current = storeReader.readString("QualData/qualFile").equals(qualDatafileName) && 
+					Arrays.equals(storeReader.readDoubleArray("QualData/upNodes"), upNodes) &&
+					storeReader.exists("QualData/qualFileSize") && 
+					storeReader.readLong("QualData/qualFileSize")==qualFile.length() &&
+					storeReader.readLong("QualData/qualFileModified")==qualFile.lastModified();
+			storeReader.close();
+		} catch (Exception e)
+		{
+			System.out.println("Could not read Qual data store " + qualStoreFilename + ". It will be rewritten.");
+			return false;
+		}
+		
+		if(current)
+		{
+			System.out.println("Using existing Qual data store " + qualStoreFilename);
+		}
+		return current;
+	}
+	
+	// Write the Qual EC series to the standalone store so that it can be shared between behavior files
+	public void writeQualStore(HashMap<String, double[]> EC)
+	{
+		IHDF5SimpleWriter storeWriter;
+		File storeFile = new File(qualStoreFilename);
+		
+		if(storeFile.exists() && !storeFile.delete())
+		{
+			System.out.println("Cannot delete old Qual data store " + qualStoreFilename);
+			System.out.println("Try deleting it manually and restarting. Aborting execution");
+			System.exit(1);
+		}
+		
+		storeWriter = HDF5Factory.open(qualStoreFilename);
+		storeWriter.writeString("QualData/qualFile", qualDatafileName, qualDatafileName.length());
+		storeWriter.writeDoubleArray("QualData/upNodes", upNodes);
+		storeWriter.writeLong("QualData/qualFileSize", new File(qualDatafileName).length());
+		storeWriter.writeLong("QualData/qualFileModified", new File(qualDatafileName).lastModified());
+		for(Map.Entry<String, double[]> entry : EC.entrySet())
+		{
+			storeWriter.writeDoubleArray("QualData/" + entry.getKey(), entry.getValue());
+		}
+		storeWriter.close();
+		System.out.println("Wrote Qual data store " + qualStoreFilename);
+	}
+
+	// The Qual data store path as it is written to the behavior file. BehavedParticle resolves a
+	// relative path against the behavior file's directory, so the path is made relative to that.
+	public String qualStoreReference()
+	{
+		File store = new File(qualStoreFilename).getAbsoluteFile();
+		File directory = new File(outputFilename).getAbsoluteFile().getParentFile();
+		
+		if(new File(qualStoreFilename).isAbsolute() || directory==null) return qualStoreFilename;
+		try
+		{
+			return directory.toPath().relativize(store.toPath()).toString();
+		} catch (IllegalArgumentException e)
+		{
+			// e.g., on another drive
+			return store.getPath();
+		}
+	}
+	
 	public double[] readUpNodes()
 	{
 		double[] uN = new double[numberOfChannels];
@@ -451,8 +910,19 @@ public class CreateBehaviorHDF5
 	
 	public IHDF5SimpleWriter initializeWriter()
 	{	
-		// Delete outputFilename if it already exists
 		File testFile = new File(outputFilename);
+		
+		// In update mode, open the existing file in place
+		updating = updateMode && testFile.exists();
+		updatedParameterCount = 0;
+		if(updating)
+		{
+			IHDF5SimpleWriter w = HDF5Factory.open(outputFilename);
+			System.out.println("Opened " + outputFilename + " for updating.");
+			return w;
+		}
+		
+		// Delete outputFilename if it already exists
 		try
 		{
 			if(testFile.exists())
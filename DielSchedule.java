@@ -0,0 +1,114 @@
+package DWR.DMS.PTM;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Daytime/nighttime state for every minute of the run. With fixed solar times the state comes
+ * from a 1440-minute table built from sunriseTime and sunsetTime. With date-varying solar times,
+ * sunrise and sunset are computed locally for each model day (NOAA general solar position
+ * equations) and the minute table for the current day is built once and then reused by every
+ * fish in every time step of that day.
+ */
+public class DielSchedule
+{
+	private boolean[] fixedDaytime;
+	private boolean dateVarying = false;
+	private double latitude, longitude, utcOffset;
+	private volatile DayTable currentDay;
+	
+	private static class DayTable
+	{
+		int day;
+		boolean[] daytime;
+	}
+	
+	public DielSchedule(String sunriseTime, String sunsetTime)
+	{
+		int sunrise = Integer.parseInt(sunriseTime.substring(0, 2))*60 + Integer.parseInt(sunriseTime.substring(2, 4));
+		int sunset = Integer.parseInt(sunsetTime.substring(0, 2))*60 + Integer.parseInt(sunsetTime.substring(2, 4));
+		
+		fixedDaytime = buildTable(sunrise, sunset);
+	}
+	
+	// Compute sunrise and sunset for each model day. Latitude and longitude are in degrees (positive
+	// north and east); utcOffset is the model time zone in hours (e.g., -8 for PST).
+	public void setDateVarying(double latitude, double longitude, double utcOffset)
+	{
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.utcOffset = utcOffset;
+		dateVarying = true;
+	}
+	
+	public boolean isDaytime(int julianMin)
+	{
+		int day = (int) Math.floor(julianMin/1440.0);
+		int minute = julianMin - day*1440;
+		DayTable table;
+		
+		if(!dateVarying) return fixedDaytime[minute];
+		
+		table = currentDay;
+		if(table==null || table.day!=day)
+		{
+			table = new DayTable();
+			table.day = day;
+			table.daytime = buildDayTable(day);
+			currentDay = table;
+		}
+		return table.daytime[minute];
+	}
+	
+	private boolean[] buildDayTable(int day)
+	{
+		String modelDate = Globals.getModelDate(day*1440);
+		SimpleDateFormat format = new SimpleDateFormat("ddMMMyyyy", Locale.US);
+		Calendar calendar = Calendar.getInstance();
+		double[] solarTimes;
+		
+		try
+		{
+			calendar.setTime(format.parse(modelDate));
+		} catch (ParseException e)
+		{
+			System.out.println("Could not parse model date " + modelDate + ". Using the fixed sunrise and sunset times.");
+			return fixedDaytime;
+		}
+		
+		solarTimes = calcSolarTimes(calendar.get(Calendar.DAY_OF_YEAR), latitude, longitude, utcOffset);
+		return buildTable((int) Math.round(solarTimes[0]), (int) Math.round(solarTimes[1]));
+	}
+	
+	// Returns local {sunrise, sunset} in minutes after midnight for the given day of the year
+	public static double[] calcSolarTimes(int dayOfYear, double latitude, double longitude, double utcOffset)
+	{
+		double gamma = 2.0*Math.PI/365.0*(dayOfYear - 1);
+		double eqTime, decl, cosHourAngle, hourAngle, lat = Math.toRadians(latitude);
+		
+		eqTime = 229.18*(0.000075 + 0.001868*Math.cos(gamma) - 0.032077*Math.sin(gamma) 
+				- 0.014615*Math.cos(2*gamma) - 0.040849*Math.sin(2*gamma));
+		decl = 0.006918 - 0.399912*Math.cos(gamma) + 0.070257*Math.sin(gamma) - 0.006758*Math.cos(2*gamma) 
+				+ 0.000907*Math.sin(2*gamma) - 0.002697*Math.cos(3*gamma) + 0.00148*Math.sin(3*gamma);
+		
+		// Hour angle of sunrise, including atmospheric refraction. Clamp for polar day and night.
+		cosHourAngle = Math.cos(Math.toRadians(90.833))/(Math.cos(lat)*Math.cos(decl)) - Math.tan(lat)*Math.tan(decl);
+		hourAngle = Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, cosHourAngle))));
+		
+		return new double[]{720.0 - 4.0*(longitude + hourAngle) - eqTime + 60.0*utcOffset, 
+				720.0 - 4.0*(longitude - hourAngle) - eqTime + 60.0*utcOffset};
+	}
+	
+	private static boolean[] buildTable(int sunrise, int sunset)
+	{
+		boolean[] daytime = new boolean[1440];
+		
+		for(int m=0; m<1440; m++)
+		{
+			daytime[m] = (m>=sunrise && m<sunset);
+		}
+		return daytime;
+	}
+}
@@ -0,0 +1,168 @@
+package DWR.DMS.PTM;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+
+/**
+ * Reads Qual EC frames ahead of model time on a background thread. The Qual frames don't carry
+ * a time axis of their own, so the interval between frames is taken from the last two frames the
+ * simulation asked for. After each request, the next window frames at that interval are
+ * scheduled. A frame that was prefetched is handed over without touching the file; otherwise the
+ * simulation waits for the read in progress, or reads the frame itself if it wasn't scheduled.
+ * The counts of each case and the total wait are reported by toString. window=0 disables the
+ * prefetch and every frame is read on the simulation thread.
+ */
+public class ECFramePrefetcher
+{
+	private IHDF5SimpleReader qualReader;
+	private int window;
+	private ExecutorService executor;
+	private HashMap<Integer, Future<double[]>> pending = new HashMap<Integer, Future<double[]>>();
+
+	private int lastTime = Integer.MIN_VALUE;
+	private int interval = 0;
+
+	// Statistics
+	private int hits = 0;
+	private int waits = 0;
+	private int misses = 0;
+	private long waitNanos = 0;
+
+	public ECFramePrefetcher(IHDF5SimpleReader qualReader, int window)
+	{
+		this.qualReader = qualReader;
+		this.window = window;
+
+		if(window>0)
+		{
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "EC prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	public synchronized double[] get(int julianMin)
+	{
+		Future<double[]> frame = pending.remove(julianMin);
+		double[] ECVec;
+		long start = System.nanoTime();
+
+		if(frame==null)
+		{
+			ECVec = read(julianMin);
+			misses++;
+		}
+		else
+		{
+			if(frame.isDone()) hits++;
+			else waits++;
+			ECVec = await(frame, julianMin);
+		}
+		waitNanos += System.nanoTime() - start;
+
+		if(lastTime!=Integer.MIN_VALUE && julianMin>lastTime) interval = julianMin - lastTime;
+		lastTime = julianMin;
+		schedule(julianMin);
+		return ECVec;
+	}
+
+	// Drop frames that are behind model time and queue the next window frames
+	private void schedule(final int julianMin)
+	{
+		Iterator<Integer> it;
+		int t;
+
+		if(executor==null || interval<=0) return;
+
+		it = pending.keySet().iterator();
+		while(it.hasNext())
+		{
+			t = it.next();
+			if(t<=julianMin)
+			{
+				pending.get(t).cancel(false);
+				it.remove();
+			}
+		}
+
+		for(int i=1; i<=window; i++)
+		{
+			t = julianMin + i*interval;
+			if(!pending.containsKey(t))
+			{
+				final int frameTime = t;
+				pending.put(t, executor.submit(new Callable<double[]>()
+				{
+					public double[] call()
+					{
+						return read(frameTime);
+					}
+				}));
+			}
+		}
+	}
+
+	// A failed prefetch, e.g. past the end of the Qual data, is retried on the simulation thread so
+	// the error surfaces where it did before
+	private double[] await(Future<double[]> frame, int julianMin)
+	{
+		try
+		{
+			return frame.get();
+		} catch (ExecutionException e)
+		{
+			return read(julianMin);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return read(julianMin);
+		}
+	}
+
+	private double[] read(int julianMin)
+	{
+		return qualReader.readDoubleArray("QualData/" + Globals.getModelDate(julianMin) + Globals.getModelTime(julianMin));
+	}
+
+	// Stop prefetching. This has to happen before the Qual reader is closed.
+	public synchronized void shutdown()
+	{
+		if(executor==null) return;
+
+		for(Future<double[]> frame : pending.values())
+		{
+			frame.cancel(false);
+		}
+		pending.clear();
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+	}
+
+	public synchronized String toString()
+	{
+		return "EC frames: " + hits + " prefetched, " + waits + " waited for, " + misses + " read on demand, " +
+				waitNanos/1000000 + " ms waiting (window=" + window + ")";
+	}
+}
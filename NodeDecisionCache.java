@@ -0,0 +1,181 @@
+package DWR.DMS.PTM;
+
+import java.util.HashMap;
+
+/**
+ * Raw node decision weights that depend only on the node, the flow and the EC frame, shared by
+ * all particles that arrive at a junction in the same time step. Weights are stored by waterbody
+ * index at the node and the cache is cleared when the model time advances. Particle-specific
+ * adjustments (previousWB, choices already tried) are applied by the caller.
+ * 0: filterOp*outflow
+ * 2: EC at the far end of the channel (0.0 for other waterbodies)
+ * 3: filterOp*signedOutflow; blocked marks waterbodies with zero signed outflow (closed gates)
+ * For particles that haven't tried any of the choices at a node yet, the transformed weights
+ * over all choices and an alias sampler for them are cached as well.
+ */
+public class NodeDecisionCache
+{
+	private int modelTime = Integer.MIN_VALUE;
+	private HashMap<Integer, NodeWeights> weights = new HashMap<Integer, NodeWeights>();
+	private HashMap<Long, ChoiceWeights> choiceWeights = new HashMap<Long, ChoiceWeights>();
+	
+	public static class NodeWeights
+	{
+		public double[] weight;
+		public boolean[] blocked;
+	}
+	
+	// Transformed weights over all of the choices at a node. sum is the sum of the raw weights;
+	// sampler is null if it or the sum of the transformed weights isn't positive, and the caller
+	// then computes the weights itself.
+	public static class ChoiceWeights
+	{
+		public double sum;
+		public AliasSampler sampler;
+		double[][] transformation;
+		
+		public ChoiceWeights(double[] rawWeights, double sum, double[][] transformation)
+		{
+			double[] transformed;
+			double transformedSum = 0.0;
+			
+			this.sum = sum;
+			this.transformation = transformation;
+			if(sum>0)
+			{
+				transformed = BehavedParticle.transformWeightVector(rawWeights, sum, transformation);
+				for(int i=0; i<transformed.length; i++)
+				{
+					transformedSum += transformed[i];
+				}
+				if(transformedSum>0) sampler = new AliasSampler(transformed);
+			}
+		}
+	}
+	
+	public synchronized NodeWeights getWeights(Node nd, int decisionType)
+	{
+		Integer key = nd.getEnvIndex()*4 + decisionType;
+		NodeWeights w;
+		
+		if(Globals.currentModelTime!=modelTime)
+		{
+			weights.clear();
+			choiceWeights.clear();
+			modelTime = Globals.currentModelTime;
+		}
+		
+		w = weights.get(key);
+		if(w==null)
+		{
+			w = calcWeights(nd, decisionType);
+			weights.put(key, w);
+		}
+		return w;
+	}
+	
+	// Weights over all of topology.choices. For type 3 the waterbody the particle is coming from is
+	// excluded, so the entries are also keyed by its index at the node.
+	public synchronized ChoiceWeights getChoiceWeights(Node nd, NodeTopology topology, int decisionType, 
+			Waterbody previousWB, double[][] transformation)
+	{
+		NodeWeights w = getWeights(nd, decisionType);
+		int[] choices = topology.choices;
+		int excluded = -1;
+		double[] raw;
+		double sum = 0.0;
+		float thisFlow, minFlow = 0.0f;
+		Long key;
+		ChoiceWeights cw;
+		
+		if(decisionType==3)
+		{
+			for(int i=0; i<choices.length && excluded<0; i++)
+			{
+				if(nd.getWaterbody(choices[i])==previousWB) excluded = choices[i];
+			}
+		}
+		
+		key = ((long)(nd.getEnvIndex()*4 + decisionType) << 16) | (excluded + 1);
+		cw = choiceWeights.get(key);
+		if(cw!=null && cw.transformation==transformation) return cw;
+		
+		raw = new double[choices.length];
+		if(decisionType==3)
+		{
+			// Weights are flow-minFlow+1.0f, except for the waterbody the particle is coming from
+			// and waterbodies blocked by a gate
+			for(int i=0; i<choices.length; i++)
+			{
+				thisFlow = (float) w.weight[choices[i]];
+				if(i==0 || thisFlow<minFlow) minFlow = thisFlow;
+			}
+			for(int i=0; i<choices.length; i++)
+			{
+				if(nd.getWaterbody(choices[i])==previousWB || w.blocked[choices[i]])
+				{
+					raw[i] = 0.0f;
+				}
+				else
+				{
+					raw[i] = (float) w.weight[choices[i]] - minFlow + 1.0f;
+					sum += raw[i];
+				}
+			}
+		}
+		else
+		{
+			for(int i=0; i<choices.length; i++)
+			{
+				raw[i] = w.weight[choices[i]];
+				sum += raw[i];
+			}
+		}
+		
+		cw = new ChoiceWeights(raw, sum, transformation);
+		choiceWeights.put(key, cw);
+		return cw;
+	}
+	
+	private static NodeWeights calcWeights(Node nd, int decisionType)
+	{
+		int numWaterBodies = nd.getNumberOfWaterbodies();
+		NodeWeights w = new NodeWeights();
+		Channel c;
+		
+		w.weight = new double[numWaterBodies];
+		w.blocked = new boolean[numWaterBodies];
+		
+		for(int i=0; i<numWaterBodies; i++)
+		{
+			switch(decisionType)
+			{
+			case 0:
+				w.weight[i] = nd.getFilterOp(i)*nd.getOutflow(i);
+				break;
+				
+			case 2:
+				if(nd.getWaterbody(i) instanceof Channel)
+				{
+					// Get salinity at the opposite end of the channel (false = use downNode)
+					c = (Channel) nd.getWaterbody(i);
+					w.weight[i] = BehavedParticle.lookupEC(c, c.getUpNodeId()!=nd.getEnvIndex());
+				}
+				else
+				{
+					w.weight[i] = 0.0;
+				}
+				break;
+				
+			case 3:
+				w.weight[i] = nd.getFilterOp(i)*nd.getSignedOutflow(i);
+				w.blocked[i] = (nd.getSignedOutflow(i)==0.0f);
+				break;
+				
+			default:
+				throw new IllegalArgumentException("Decision type " + decisionType + " can't be cached per time step");
+			}
+		}
+		return w;
+	}
+}
@@ -0,0 +1,103 @@
+package DWR.DMS.PTM;
+
+import java.util.HashMap;
+
+/**
+ * Static topology of a node as seen by node decisions. Channel geometry doesn't change during a
+ * run, so it is computed the first time a particle reaches the node and reused after that.
+ * choices: the waterbody indices a particle may enter (no boundaries except 901 and 915)
+ * endWidth: width of each channel at the end that touches this node, by waterbody index
+ * The transformed and normalized width weights over all choices are cached for the width-based
+ * decision (type 1).
+ */
+public class NodeTopology
+{
+	private static HashMap<Integer, NodeTopology> topologies = new HashMap<Integer, NodeTopology>();
+	
+	public int[] choices;
+	public double[] endWidth;
+	public double sumChoiceWidth;
+	private double[][] widthTransformation;
+	private NodeDecisionCache.ChoiceWeights widthWeights;
+	
+	public static synchronized NodeTopology get(Node nd)
+	{
+		NodeTopology topology = topologies.get(nd.getEnvIndex());
+		
+		if(topology==null)
+		{
+			topology = new NodeTopology(nd);
+			topologies.put(nd.getEnvIndex(), topology);
+		}
+		return topology;
+	}
+	
+	private NodeTopology(Node nd)
+	{
+		int numWaterBodies = nd.getNumberOfWaterbodies();
+		int numChoices = 0;
+		Channel c;
+		
+		choices = new int[numWaterBodies];
+		endWidth = new double[numWaterBodies];
+		sumChoiceWidth = 0.0;
+		
+		for(int i=0; i<numWaterBodies; i++)
+		{
+			if(nd.getWaterbody(i) instanceof Channel)
+			{
+				// Get channel width at either the beginning of the channel or the end, depending
+				// on which end of the channel the node is
+				c = (Channel) nd.getWaterbody(i);
+				if(c.getUpNodeId()==nd.getEnvIndex())
+				{
+					endWidth[i] = c.getWidth(0.0f);
+				}
+				else
+				{
+					endWidth[i] = c.getWidth(c.getLength());
+				}
+			}
+			else
+			{
+				endWidth[i] = 0.0;
+			}
+			
+			// Prevent movement into boundaries, but allow entry into 901 and 915 (where water is taken out)
+			if(!(nd.getWaterbody(i) instanceof Boundary) || nd.getWaterbodyEnvIndex(i)==901 || nd.getWaterbodyEnvIndex(i)==915)
+			{
+				choices[numChoices] = i;
+				sumChoiceWidth += endWidth[i];
+				numChoices++;
+			}
+		}
+		
+		if(numChoices<numWaterBodies)
+		{
+			int[] allowed = new int[numChoices];
+			System.arraycopy(choices, 0, allowed, 0, numChoices);
+			choices = allowed;
+		}
+	}
+	
+	// Width weights over all choices with the type 1 transformation applied, and an alias sampler
+	// for them. The transformation matrices are shared by all particles (see
+	// BehavedParticle.internTransformation), so the cached weights are reused as long as the same
+	// matrix is passed in.
+	public synchronized NodeDecisionCache.ChoiceWeights getWidthWeights(double[][] transformation)
+	{
+		double[] widths;
+		
+		if(transformation!=widthTransformation)
+		{
+			widths = new double[choices.length];
+			for(int i=0; i<choices.length; i++)
+			{
+				widths[i] = endWidth[choices[i]];
+			}
+			widthWeights = new NodeDecisionCache.ChoiceWeights(widths, sumChoiceWidth, transformation);
+			widthTransformation = transformation;
+		}
+		return widthWeights;
+	}
+}
@@ -0,0 +1,349 @@
+package DWR.DMS.PTM;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+
+/**
+ * Batched delivery of node and waterbody changes. In the default synchronous mode, makeNodeDecision
+ * and enterWaterbody call the particle observer for every junction a fish passes, and an observer
+ * that logs or animates tracks holds up the particle loop. In the batched modes the particle
+ * instead writes a compact record (change type, particle ID, from and to waterbody, node, julian
+ * minute) into a ring buffer owned by its thread, and the consumers registered with addConsumer
+ * receive the records in bulk: at the start of the next time step (STEP), or on a background
+ * thread (ASYNC). A ring holds bufferSize records; when it is full, the record is dropped (and
+ * counted), or with block set the particle waits until the ring has been drained. The engine's
+ * particle observer reads the particle's state when it is called, which has moved on by the time
+ * a batch is delivered, so it can't be batched: by default a particle with an observer attached
+ * still calls it for every change, which keeps the particle loop as slow as in the synchronous
+ * mode. With observer/synchronous set to false the observer isn't called in the batched modes,
+ * and the changes only reach the consumers. A notice says which of the two happens the first time
+ * an observer is met in a batched mode. If logFile is set, the records are written to it as CSV.
+ */
+public class ParticleChangeBuffer
+{
+	public static final int SYNCHRONOUS = 0;
+	public static final int STEP = 1;
+	public static final int ASYNC = 2;
+
+	public static final int NODE_CHANGE = 0;
+	public static final int WATERBODY_CHANGE = 1;
+
+	private static final String[] CHANGE_NAMES = {"node", "waterbody"};
+
+	public interface Consumer
+	{
+		// Records 0..n-1 of the arrays are new. The arrays are reused once this returns.
+		void consume(int n, int[] type, int[] particleId, int[] fromWaterbody, int[] toWaterbody, int[] node,
+				int[] julianMin);
+
+		void close();
+	}
+
+	public int mode = SYNCHRONOUS;
+	public int bufferSize = 4096;
+	public boolean block = false;
+	// Whether a particle observer is still called in the batched modes
+	public boolean synchronousObserver = true;
+
+	private final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<Ring>();
+	private final ThreadLocal<Ring> threadRing = new ThreadLocal<Ring>()
+	{
+		protected Ring initialValue()
+		{
+			Ring ring = new Ring(bufferSize);
+			rings.add(ring);
+			return ring;
+		}
+	};
+	private final ArrayList<Consumer> consumers = new ArrayList<Consumer>();
+	private Ring batch;
+	private long delivered = 0;
+	private volatile int lastStep = Integer.MIN_VALUE;
+	private volatile boolean running = false;
+	private volatile boolean observerNoticed = false;
+	private Thread drainer;
+
+	// Single-producer, single-consumer ring of change records. Only the owning thread writes head,
+	// and only a drain (under the buffer's lock) writes tail.
+	private static class Ring
+	{
+		final int mask;
+		final int[] type, particleId, fromWaterbody, toWaterbody, node, julianMin;
+		volatile long head = 0;
+		volatile long tail = 0;
+		long dropped = 0;
+
+		Ring(int size)
+		{
+			int capacity = Integer.highestOneBit(Math.max(2, size-1))<<1;
+
+			mask = capacity - 1;
+			type = new int[capacity];
+			particleId = new int[capacity];
+			fromWaterbody = new int[capacity];
+			toWaterbody = new int[capacity];
+			node = new int[capacity];
+			julianMin = new int[capacity];
+		}
+
+		boolean offer(int changeType, int id, int from, int to, int nodeId, int time)
+		{
+			long h = head;
+			int i;
+
+			if(h - tail > mask) return false;
+
+			i = (int) (h & mask);
+			type[i] = changeType;
+			particleId[i] = id;
+			fromWaterbody[i] = from;
+			toWaterbody[i] = to;
+			node[i] = nodeId;
+			julianMin[i] = time;
+			head = h + 1;
+			return true;
+		}
+
+		// Copy up to batch.mask+1 records into batch and release them
+		int drainTo(Ring batch)
+		{
+			long t = tail;
+			int n = (int) Math.min(head - t, batch.mask + 1);
+			int i;
+
+			for(int j=0; j<n; j++)
+			{
+				i = (int) ((t + j) & mask);
+				batch.type[j] = type[i];
+				batch.particleId[j] = particleId[i];
+				batch.fromWaterbody[j] = fromWaterbody[i];
+				batch.toWaterbody[j] = toWaterbody[i];
+				batch.node[j] = node[i];
+				batch.julianMin[j] = julianMin[i];
+			}
+			tail = t + n;
+			return n;
+		}
+	}
+
+	public static ParticleChangeBuffer read(IHDF5SimpleReader r)
+	{
+		ParticleChangeBuffer buffer = new ParticleChangeBuffer();
+		String logFile = "";
+
+		if(r.exists("observer/batchMode")) buffer.mode = r.readInt("observer/batchMode");
+		if(r.exists("observer/bufferSize")) buffer.bufferSize = r.readInt("observer/bufferSize");
+		if(r.exists("observer/block")) buffer.block = r.readBoolean("observer/block");
+		if(r.exists("observer/logFile")) logFile = r.readString("observer/logFile").trim();
+		if(r.exists("observer/synchronous")) buffer.synchronousObserver = r.readBoolean("observer/synchronous");
+		if(buffer.mode<SYNCHRONOUS || buffer.mode>ASYNC || buffer.bufferSize<1)
+		{
+			throw new IllegalArgumentException("observer/batchMode must be 0, 1 or 2 and observer/bufferSize must be positive");
+		}
+
+		if(buffer.isBatched())
+		{
+			buffer.batch = new Ring(buffer.bufferSize);
+			if(!logFile.isEmpty()) buffer.addConsumer(new ChangeLog(logFile));
+			if(buffer.mode==ASYNC) buffer.startDrainer();
+		}
+		return buffer;
+	}
+
+	public boolean isBatched()
+	{
+		return mode!=SYNCHRONOUS;
+	}
+
+	public synchronized void addConsumer(Consumer consumer)
+	{
+		consumers.add(consumer);
+	}
+
+	public void record(int type, int particleId, int fromWaterbody, int toWaterbody, int node, int julianMin)
+	{
+		Ring ring = threadRing.get();
+
+		while(!ring.offer(type, particleId, fromWaterbody, toWaterbody, node, julianMin))
+		{
+			if(!block)
+			{
+				ring.dropped++;
+				return;
+			}
+			if(running) LockSupport.parkNanos(50000L);
+			else drain();
+		}
+	}
+
+	// A particle with an observer attached has a change for it. Returns whether to call the observer.
+	public boolean observed(int particleId)
+	{
+		if(!isBatched()) return true;
+		if(!observerNoticed) notice(particleId);
+		return synchronousObserver;
+	}
+
+	private void notice(int particleId)
+	{
+		synchronized(this)
+		{
+			if(observerNoticed) return;
+			observerNoticed = true;
+		}
+		if(synchronousObserver)
+		{
+			System.out.println("Particle " + particleId + " has an observer attached. Observers read the particle's state, " +
+					"so it is called for every node and waterbody change and observer/batchMode " + mode + " does not speed " +
+					"up the particle loop. Set observer/synchronous to false to deliver the changes only to the batch consumers.");
+		}
+		else
+		{
+			System.out.println("Particle " + particleId + " has an observer attached. observer/synchronous is false, so it " +
+					"is not called; node and waterbody changes only go to the batch consumers.");
+		}
+	}
+
+	// In STEP mode, hand over the records of the previous time step the first time this is called in
+	// a new one
+	public void checkStep(int julianMin)
+	{
+		if(mode!=STEP || julianMin==lastStep) return;
+
+		lastStep = julianMin;
+		drain();
+	}
+
+	// Deliver everything in the rings to the consumers. Returns the number of records delivered.
+	public synchronized int drain()
+	{
+		int n, total = 0;
+
+		if(batch==null) return 0;
+
+		for(Ring ring : rings)
+		{
+			while((n = ring.drainTo(batch))>0)
+			{
+				for(Consumer consumer : consumers)
+				{
+					consumer.consume(n, batch.type, batch.particleId, batch.fromWaterbody, batch.toWaterbody,
+							batch.node, batch.julianMin);
+				}
+				total += n;
+			}
+		}
+		delivered += total;
+		return total;
+	}
+
+	private void startDrainer()
+	{
+		running = true;
+		drainer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while(running)
+				{
+					if(drain()==0) LockSupport.parkNanos(1000000L);
+				}
+			}
+		}, "Particle change drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	// Stop the drainer, deliver what is left and close the consumers
+	public void shutdown()
+	{
+		if(!isBatched()) return;
+
+		running = false;
+		if(drainer!=null)
+		{
+			try
+			{
+				drainer.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			drainer = null;
+		}
+		drain();
+		synchronized(this)
+		{
+			for(Consumer consumer : consumers)
+			{
+				consumer.close();
+			}
+			consumers.clear();
+		}
+	}
+
+	public synchronized long getDropped()
+	{
+		long dropped = 0;
+
+		for(Ring ring : rings)
+		{
+			dropped += ring.dropped;
+		}
+		return dropped;
+	}
+
+	public synchronized String toString()
+	{
+		return "Particle changes: " + delivered + " delivered, " + getDropped() + " dropped (" +
+				(mode==STEP ? "per step" : "asynchronous") + ", " + rings.size() + " thread buffer(s) of " +
+				(batch==null ? 0 : batch.mask+1) + (block ? ", blocking" : ", dropping") + ")";
+	}
+
+	// Writes the change records to a CSV file
+	public static class ChangeLog implements Consumer
+	{
+		private String filename;
+		private PrintWriter out;
+
+		public ChangeLog(String filename)
+		{
+			this.filename = filename;
+			try
+			{
+				out = new PrintWriter(new BufferedWriter(new FileWriter(filename), 1<<16));
+				out.println("change,particleId,fromWaterbody,toWaterbody,node,modelDate,modelTime");
+			} catch (IOException e)
+			{
+				System.out.println("Could not open the particle change log " + filename + ": " + e.getMessage());
+			}
+		}
+
+		public void consume(int n, int[] type, int[] particleId, int[] fromWaterbody, int[] toWaterbody, int[] node,
+				int[] julianMin)
+		{
+			if(out==null) return;
+
+			for(int i=0; i<n; i++)
+			{
+				out.println(CHANGE_NAMES[type[i]] + "," + particleId[i] + "," + fromWaterbody[i] + "," + toWaterbody[i] + "," +
+						node[i] + "," + Globals.getModelDate(julianMin[i]) + "," + Globals.getModelTime(julianMin[i]));
+			}
+		}
+
+		public void close()
+		{
+			if(out==null) return;
+
+			out.close();
+			System.out.println("Closed " + filename);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package DWR.DMS.PTM;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+
+/**
+ * Read-only access to standalone Qual EC stores written by CreateBehaviorHDF5.
+ * Each store is opened once per JVM, no matter how many behavior files reference it. A relative
+ * store path is resolved against the directory of the behavior file that references it.
+ */
+public class QualDataStore
+{
+	private static HashMap<String, IHDF5SimpleReader> openStores = new HashMap<String, IHDF5SimpleReader>();
+	
+	public static synchronized IHDF5SimpleReader open(String storeFilename, String referencingFilename)
+	{
+		String key;
+		
+		storeFilename = resolve(storeFilename, referencingFilename);
+		key = new File(storeFilename).getAbsolutePath();
+		IHDF5SimpleReader storeReader = openStores.get(key);
+		
+		if(storeReader==null)
+		{
+			try
+			{
+				storeReader = HDF5Factory.openForReading(storeFilename);
+			} catch (Exception e)
+			{
+				System.out.println("Failed to open Qual data store " + storeFilename + ". Does it exist?");
+				System.out.println("Aborting execution");
+				System.exit(1);
+			}
+			openStores.put(key, storeReader);
+			System.out.println("Opened Qual data store " + storeFilename);
+		}
+		return storeReader;
+	}
+	
+	// storeFilename, relative to the directory of referencingFilename unless it is absolute
+	public static String resolve(String storeFilename, String referencingFilename)
+	{
+		File store = new File(storeFilename);
+		File directory = new File(referencingFilename).getAbsoluteFile().getParentFile();
+		
+		if(store.isAbsolute() || directory==null) return storeFilename;
+		return new File(directory, storeFilename).getPath();
+	}
+	
+	public static synchronized void closeAll()
+	{
+		for(Map.Entry<String, IHDF5SimpleReader> entry : openStores.entrySet())
+		{
+			entry.getValue().close();
+			System.out.println("Closed Qual data store " + entry.getKey());
+		}
+		openStores.clear();
+	}
+}
@@ -0,0 +1,346 @@
+package DWR.DMS.PTM;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Online Kaplan-Meier estimate of survival through each reach. A reach starts at release or at
+ * the first pass of a checkpoint and ends at the first pass of the next checkpoint, which
+ * censors the fish in the reach. Deaths are binned by hours since the fish entered the reach, and
+ * fish still in a reach at the end of the run are censored then. Chipps, Exit, SWP, CVP and the
+ * user-defined checkpoints all end reaches; Exit, SWP and CVP don't start a new one. Counts are
+ * weighted by the number of fish a particle represents (1 unless cohort mode is on), so partial
+ * mortality of a cohort counts as deaths. At the end of the run the survival through each reach
+ * is written under reachSurvival/ with Greenwood standard errors and log(-log) 95% confidence
+ * intervals. The counts are saved in behavior snapshots, so a restarted run continues them.
+ */
+public class ReachSurvivalEstimator
+{
+	public static final String GROUP = "reachSurvival/";
+	public static final String RELEASE = "release";
+	public static final double Z95 = 1.959964;
+
+	private static final HashSet<String> terminal = new HashSet<String>(Arrays.asList("Exit", "SWP", "CVP"));
+
+	private TreeMap<String, Reach> reaches = new TreeMap<String, Reach>();
+
+	private static class Reach
+	{
+		String origin;
+		double entered;
+		double deathTotal;
+		double censoredTotal;
+		double[] deaths = new double[24];
+		double[] removed = new double[24];
+		HashMap<String, Double> arrivals = new HashMap<String, Double>();
+
+		Reach(String origin)
+		{
+			this.origin = origin;
+		}
+
+		void grow(int bin)
+		{
+			int n = deaths.length;
+
+			while(n<=bin) n *= 2;
+			if(n!=deaths.length)
+			{
+				deaths = Arrays.copyOf(deaths, n);
+				removed = Arrays.copyOf(removed, n);
+			}
+		}
+	}
+
+	// The fish enters the reach that starts at origin
+	public synchronized void enter(BehavedParticle bP, String origin, int julianMin)
+	{
+		getReach(origin).entered += bP.reachWeight;
+		bP.reachOrigin = origin;
+		bP.reachEntryTime = julianMin;
+	}
+
+	public synchronized void checkpoint(BehavedParticle bP, String checkpoint, int passCount, int julianMin)
+	{
+		Reach reach;
+		Double arrived;
+		int bin;
+
+		// Only the first pass of a checkpoint ends a reach
+		if(passCount!=1) return;
+
+		if(bP.reachOrigin!=null)
+		{
+			reach = getReach(bP.reachOrigin);
+			bin = bin(bP, julianMin);
+			reach.grow(bin);
+			reach.removed[bin] += bP.reachWeight;
+			arrived = reach.arrivals.get(checkpoint);
+			reach.arrivals.put(checkpoint, (arrived==null ? 0.0 : arrived) + bP.reachWeight);
+			bP.reachOrigin = null;
+		}
+
+		if(!terminal.contains(checkpoint))
+		{
+			enter(bP, checkpoint, julianMin);
+		}
+	}
+
+	// Part (weight) of the fish represented by bP died
+	public synchronized void loss(BehavedParticle bP, double weight, int julianMin)
+	{
+		Reach reach;
+		int bin;
+
+		if(bP.reachOrigin==null || weight<=0.0) return;
+
+		reach = getReach(bP.reachOrigin);
+		bin = bin(bP, julianMin);
+		reach.grow(bin);
+		reach.deaths[bin] += weight;
+		reach.removed[bin] += weight;
+		reach.deathTotal += weight;
+		bP.reachWeight -= weight;
+	}
+
+	public synchronized void death(BehavedParticle bP, int julianMin)
+	{
+		loss(bP, bP.reachWeight, julianMin);
+		bP.reachOrigin = null;
+	}
+
+	// The fish is still in its reach at the end of the run
+	public synchronized void censor(BehavedParticle bP, int julianMin)
+	{
+		Reach reach;
+		int bin;
+
+		if(bP.reachOrigin==null) return;
+
+		reach = getReach(bP.reachOrigin);
+		bin = bin(bP, julianMin);
+		reach.grow(bin);
+		reach.removed[bin] += bP.reachWeight;
+		reach.censoredTotal += bP.reachWeight;
+		bP.reachOrigin = null;
+	}
+
+	private Reach getReach(String origin)
+	{
+		Reach reach = reaches.get(origin);
+
+		if(reach==null)
+		{
+			reach = new Reach(origin);
+			reaches.put(origin, reach);
+		}
+		return reach;
+	}
+
+	public synchronized void write(IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		String path;
+		String[] destinations;
+		double[] arrivals;
+		double[] curve, estimate;
+
+		for(Reach reach : reaches.values())
+		{
+			path = GROUP + reach.origin + "/";
+			curve = new double[reach.deaths.length];
+			estimate = estimate(reach, curve);
+
+			destinations = reach.arrivals.keySet().toArray(new String[0]);
+			Arrays.sort(destinations);
+			arrivals = new double[destinations.length];
+			for(int j=0; j<destinations.length; j++)
+			{
+				arrivals[j] = reach.arrivals.get(destinations[j]);
+			}
+
+			w.writeDouble(path + "entered", reach.entered);
+			w.writeDouble(path + "deaths", reach.deathTotal);
+			w.writeDouble(path + "censored", reach.censoredTotal);
+			w.writeDouble(path + "survival", estimate[0]);
+			w.writeDouble(path + "stdErr", estimate[1]);
+			w.writeDouble(path + "lower95", estimate[2]);
+			w.writeDouble(path + "upper95", estimate[3]);
+			if(destinations.length>0)
+			{
+				w.writeStringArray(path + "destinations", destinations);
+				layout.writeDoubleArray(w, path + "arrivals", arrivals);
+			}
+			layout.writeDoubleArray(w, path + "survivalByHour", curve);
+			layout.writeDoubleArray(w, path + "deathsByHour", reach.deaths);
+			layout.writeDoubleArray(w, path + "removedByHour", reach.removed);
+		}
+	}
+
+	// Add up the counts written by the workers of a sharded run and recompute the estimates
+	public static void writeMerged(List<IHDF5Reader> shards, IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		ReachSurvivalEstimator merged = new ReachSurvivalEstimator();
+		Reach reach;
+		String path;
+		String[] destinations;
+		double[] arrivals, deaths, removed;
+		Double arrived;
+
+		for(IHDF5Reader r : shards)
+		{
+			if(!r.exists(GROUP)) continue;
+
+			for(String origin : r.getGroupMembers(GROUP))
+			{
+				path = GROUP + origin + "/";
+				reach = merged.getReach(origin);
+				reach.entered += r.readDouble(path + "entered");
+				reach.deathTotal += r.readDouble(path + "deaths");
+				reach.censoredTotal += r.readDouble(path + "censored");
+
+				deaths = r.readDoubleArray(path + "deathsByHour");
+				removed = r.readDoubleArray(path + "removedByHour");
+				reach.grow(deaths.length-1);
+				for(int h=0; h<deaths.length; h++)
+				{
+					reach.deaths[h] += deaths[h];
+					reach.removed[h] += removed[h];
+				}
+
+				if(r.exists(path + "destinations"))
+				{
+					destinations = r.readStringArray(path + "destinations");
+					arrivals = r.readDoubleArray(path + "arrivals");
+					for(int j=0; j<destinations.length; j++)
+					{
+						arrived = reach.arrivals.get(destinations[j]);
+						reach.arrivals.put(destinations[j], (arrived==null ? 0.0 : arrived) + arrivals[j]);
+					}
+				}
+			}
+		}
+		merged.write(w, layout);
+	}
+
+	// Save the counts of every reach for a behavior snapshot
+	public synchronized void save(DataOutputStream out) throws IOException
+	{
+		out.writeInt(reaches.size());
+		for(Reach reach : reaches.values())
+		{
+			out.writeUTF(reach.origin);
+			out.writeDouble(reach.entered);
+			out.writeDouble(reach.deathTotal);
+			out.writeDouble(reach.censoredTotal);
+			out.writeInt(reach.deaths.length);
+			for(int h=0; h<reach.deaths.length; h++)
+			{
+				out.writeDouble(reach.deaths[h]);
+				out.writeDouble(reach.removed[h]);
+			}
+			out.writeInt(reach.arrivals.size());
+			for(Map.Entry<String, Double> e : reach.arrivals.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				out.writeDouble(e.getValue());
+			}
+		}
+	}
+
+	// Replace the counts with those saved by save
+	public synchronized void restore(DataInputStream in) throws IOException
+	{
+		Reach reach;
+		int n, arrivals;
+
+		reaches.clear();
+		n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			reach = getReach(in.readUTF());
+			reach.entered = in.readDouble();
+			reach.deathTotal = in.readDouble();
+			reach.censoredTotal = in.readDouble();
+			reach.deaths = new double[in.readInt()];
+			reach.removed = new double[reach.deaths.length];
+			for(int h=0; h<reach.deaths.length; h++)
+			{
+				reach.deaths[h] = in.readDouble();
+				reach.removed[h] = in.readDouble();
+			}
+			arrivals = in.readInt();
+			for(int j=0; j<arrivals; j++)
+			{
+				reach.arrivals.put(in.readUTF(), in.readDouble());
+			}
+		}
+	}
+
+	// Kaplan-Meier survival at the end of the last hour with deaths, its Greenwood standard error and
+	// log(-log) 95% confidence interval. curve receives the survival at the end of each hour.
+	private static double[] estimate(Reach reach, double[] curve)
+	{
+		double atRisk = reach.entered;
+		double survival = 1.0;
+		double greenwood = 0.0;
+		double stdErr, logSurvival, halfWidth;
+		double lower, upper;
+
+		for(int h=0; h<reach.deaths.length; h++)
+		{
+			if(reach.deaths[h]>0.0 && atRisk>0.0)
+			{
+				survival *= 1.0 - reach.deaths[h]/atRisk;
+				if(atRisk>reach.deaths[h])
+				{
+					greenwood += reach.deaths[h]/(atRisk*(atRisk-reach.deaths[h]));
+				}
+			}
+			curve[h] = survival;
+			atRisk -= reach.removed[h];
+		}
+
+		stdErr = survival*Math.sqrt(greenwood);
+
+		if(survival>0.0 && survival<1.0)
+		{
+			logSurvival = Math.log(survival);
+			halfWidth = Z95*Math.sqrt(greenwood)/Math.abs(logSurvival);
+			lower = Math.pow(survival, Math.exp(halfWidth));
+			upper = Math.pow(survival, Math.exp(-halfWidth));
+		}
+		else
+		{
+			lower = upper = survival;
+		}
+		return new double[] {survival, stdErr, lower, upper};
+	}
+
+	private static int bin(BehavedParticle bP, int julianMin)
+	{
+		return Math.max(0, (julianMin - bP.reachEntryTime)/60);
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder s = new StringBuilder("reach survival:");
+		double[] estimate;
+
+		for(Reach reach : reaches.values())
+		{
+			estimate = estimate(reach, new double[reach.deaths.length]);
+			s.append(String.format(" %s=%.3f (%.3f-%.3f)", reach.origin, estimate[0], estimate[2], estimate[3]));
+		}
+		return s.toString();
+	}
+}
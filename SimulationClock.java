@@ -0,0 +1,58 @@
+package DWR.DMS.PTM;
+
+/**
+ * Model time values that stay the same for a whole time step: the julian minute, the formatted
+ * date and time, the time as a number (HHMM), the Qual dataset key, whether it is daytime, and
+ * the EC frame. current() builds a new clock the first time it is called after the model time
+ * changes, so behavior code doesn't format and re-parse Globals.getModelDate/getModelTime for
+ * every event and lookup.
+ */
+public class SimulationClock
+{
+	private static volatile SimulationClock current;
+
+	public final int julianMin;
+	public final String modelDate;
+	public final String modelTime;
+	public final int modelTimeHHMM;
+	public final String modelDateTime;
+	public final boolean daytime;
+	// Minutes since 01JAN1970 0000 of the model time, as stored in the event table
+	public final int epochMinute;
+
+	private double[] ECFrame;
+
+	private SimulationClock(int julianMin)
+	{
+		this.julianMin = julianMin;
+		modelDate = Globals.getModelDate(julianMin);
+		modelTime = Globals.getModelTime(julianMin);
+		modelTimeHHMM = Integer.parseInt(modelTime);
+		modelDateTime = modelDate + modelTime;
+		epochMinute = BehaviorOutputIndex.toMinute(modelDate, modelTimeHHMM);
+		daytime = BehavedParticle.dielSchedule!=null && BehavedParticle.dielSchedule.isDaytime(julianMin);
+	}
+
+	public static SimulationClock current()
+	{
+		SimulationClock clock = current;
+		int julianMin = Globals.currentModelTime;
+
+		if(clock==null || clock.julianMin!=julianMin)
+		{
+			clock = new SimulationClock(julianMin);
+			current = clock;
+		}
+		return clock;
+	}
+
+	// EC at all QualData nodes for this time step, read when it is first needed
+	public synchronized double[] getECFrame()
+	{
+		if(ECFrame==null)
+		{
+			ECFrame = BehavedParticle.getECFrame(julianMin);
+		}
+		return ECFrame;
+	}
+}
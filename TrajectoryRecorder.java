@@ -0,0 +1,291 @@
+package DWR.DMS.PTM;
+
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Optional sampled trajectory output. Every interval time steps, a fraction of the fish record
+ * their waterbody, x, swim velocity, confusionFactor and currentDirection. Rows are collected in
+ * fixed-size primitive column buffers and appended in blocks of at most blockSize rows to
+ * extendable, chunked datasets under trajectory/ in the behavior output file, so memory use
+ * doesn't grow with the length of the run. particleId and modelTime are delta-encoded within each
+ * block: the first row of a block holds the absolute value and the other rows the difference from
+ * the previous row, which the deflate filter compresses well. trajectory/blockOffset holds the
+ * first row of each block. A restarted run continues after the rows that had been recorded when
+ * the snapshot was taken and overwrites the later ones. The settings are read from trajectory/*
+ * in the behavior parameter file; interval=0 (the default) disables the recorder.
+ */
+public class TrajectoryRecorder
+{
+	public static final String GROUP = "trajectory/";
+
+	public int interval;
+	public float fraction;
+	public int blockSize;
+
+	// Column buffers
+	private int[] particleId;
+	private int[] modelTime;
+	private int[] waterbody;
+	private float[] x;
+	private float[] swimVelocity;
+	private float[] confusionFactor;
+	private byte[] currentDirection;
+	private int n;
+
+	// Values of the previous row in the current block
+	private int lastParticleId;
+	private int lastModelTime;
+
+	private long rowsWritten;
+	private long blocksWritten;
+	private boolean created;
+	private BehaviorOutputLayout layout;
+
+	public TrajectoryRecorder()
+	{
+		interval = 0;
+		fraction = 1.0f;
+		blockSize = 65536;
+	}
+
+	public static TrajectoryRecorder read(IHDF5SimpleReader r, BehaviorOutputLayout layout)
+	{
+		TrajectoryRecorder recorder = new TrajectoryRecorder();
+
+		recorder.layout = layout;
+
+		if(r.exists(GROUP + "interval")) recorder.interval = r.readInt(GROUP + "interval");
+		if(r.exists(GROUP + "fraction")) recorder.fraction = r.readFloat(GROUP + "fraction");
+		if(r.exists(GROUP + "blockSize")) recorder.blockSize = r.readInt(GROUP + "blockSize");
+
+		if(recorder.fraction<0.0f || recorder.fraction>1.0f)
+		{
+			throw new IllegalArgumentException(GROUP + "fraction must be between 0 and 1");
+		}
+		if(recorder.blockSize<=0)
+		{
+			throw new IllegalArgumentException(GROUP + "blockSize must be positive");
+		}
+		return recorder;
+	}
+
+	public boolean isEnabled()
+	{
+		return interval>0 && fraction>0.0f;
+	}
+
+	// Whether the fish is in the sampled fraction. The choice depends only on the particle ID, so
+	// the same fish are sampled in every run and after a restart.
+	public boolean isSampled(int id)
+	{
+		long h;
+
+		if(fraction>=1.0f) return true;
+		h = (id*0x9E3779B97F4A7C15L) >>> 40;
+		return h < fraction*(1L<<24);
+	}
+
+	// Whether the fish should record a row in the time step that it has completed step times
+	public boolean isDue(int id, int step)
+	{
+		return isEnabled() && step%interval==0 && isSampled(id);
+	}
+
+	public synchronized void record(IHDF5Writer w, int id, int julianMin, int waterbodyIndex, float xPos,
+			float swimVel, float confusion, float direction)
+	{
+		if(particleId==null) allocate();
+
+		if(n==0)
+		{
+			particleId[n] = id;
+			modelTime[n] = julianMin;
+		}
+		else
+		{
+			particleId[n] = id - lastParticleId;
+			modelTime[n] = julianMin - lastModelTime;
+		}
+		lastParticleId = id;
+		lastModelTime = julianMin;
+
+		waterbody[n] = waterbodyIndex;
+		x[n] = xPos;
+		swimVelocity[n] = swimVel;
+		confusionFactor[n] = confusion;
+		currentDirection[n] = (byte) Math.signum(direction);
+		n++;
+
+		if(n==blockSize) flush(w);
+	}
+
+	// Append the buffered rows to the output file
+	public synchronized void flush(IHDF5Writer w)
+	{
+		if(n==0) return;
+
+		if(!created) create(w);
+
+		w.writeLongArrayBlockWithOffset(GROUP + "blockOffset", new long[] {rowsWritten}, 1, blocksWritten);
+
+		w.writeIntArrayBlockWithOffset(GROUP + "particleId", particleId, n, rowsWritten);
+		w.writeIntArrayBlockWithOffset(GROUP + "modelTime", modelTime, n, rowsWritten);
+		w.writeIntArrayBlockWithOffset(GROUP + "waterBody", waterbody, n, rowsWritten);
+		w.writeFloatArrayBlockWithOffset(GROUP + "x", x, n, rowsWritten);
+		w.writeFloatArrayBlockWithOffset(GROUP + "swimVelocity", swimVelocity, n, rowsWritten);
+		w.writeFloatArrayBlockWithOffset(GROUP + "confusionFactor", confusionFactor, n, rowsWritten);
+		w.writeByteArrayBlockWithOffset(GROUP + "currentDirection", currentDirection, n, rowsWritten);
+
+		rowsWritten += n;
+		blocksWritten++;
+		w.writeLong(GROUP + "rowsWritten", rowsWritten);
+		w.writeLong(GROUP + "blocksWritten", blocksWritten);
+		n = 0;
+	}
+
+	// Start over in a new output file. Buffered rows must be flushed first.
+	public synchronized void reset()
+	{
+		n = 0;
+		rowsWritten = 0;
+		blocksWritten = 0;
+		created = false;
+	}
+
+	public synchronized long getRows()
+	{
+		return rowsWritten + n;
+	}
+
+	// Continue a restarted run after the first rows rows of the file, which were recorded before the
+	// snapshot was taken. The block that row rows falls in ends there, and a new block starts.
+	public synchronized void restart(IHDF5Writer w, long rows)
+	{
+		long fileRows = w.exists(GROUP + "rowsWritten") ? w.readLong(GROUP + "rowsWritten") : 0;
+		long fileBlocks;
+		long[] offsets;
+
+		n = 0;
+		if(fileRows<rows)
+		{
+			System.out.println("The behavior output has " + fileRows + " trajectory rows, but " + rows + 
+					" had been recorded when the snapshot was taken. The missing rows are lost.");
+		}
+		if(fileRows==0) return;
+
+		fileBlocks = w.readLong(GROUP + "blocksWritten");
+		offsets = w.readLongArrayBlockWithOffset(GROUP + "blockOffset", (int) fileBlocks, 0);
+		rowsWritten = Math.min(rows, fileRows);
+		blocksWritten = 0;
+		while(blocksWritten<fileBlocks && offsets[(int) blocksWritten]<rowsWritten) blocksWritten++;
+		w.writeLong(GROUP + "rowsWritten", rowsWritten);
+		w.writeLong(GROUP + "blocksWritten", blocksWritten);
+		created = true;
+	}
+
+	// Create the datasets, or continue after the rows already in the file
+	private void create(IHDF5Writer w)
+	{
+		HDF5IntStorageFeatures intFeatures = layout.intColumnFeatures();
+		HDF5FloatStorageFeatures floatFeatures = layout.floatColumnFeatures();
+
+		if(w.exists(GROUP + "rowsWritten"))
+		{
+			rowsWritten = w.readLong(GROUP + "rowsWritten");
+			blocksWritten = w.readLong(GROUP + "blocksWritten");
+		}
+		else
+		{
+			w.createIntArray(GROUP + "particleId", 0, blockSize, intFeatures);
+			w.createIntArray(GROUP + "modelTime", 0, blockSize, intFeatures);
+			w.createIntArray(GROUP + "waterBody", 0, blockSize, intFeatures);
+			w.createFloatArray(GROUP + "x", 0, blockSize, floatFeatures);
+			w.createFloatArray(GROUP + "swimVelocity", 0, blockSize, floatFeatures);
+			w.createFloatArray(GROUP + "confusionFactor", 0, blockSize, floatFeatures);
+			w.createByteArray(GROUP + "currentDirection", 0, blockSize, intFeatures);
+			w.createLongArray(GROUP + "blockOffset", 0, 1024, intFeatures);
+			w.writeInt(GROUP + "blockSize", blockSize);
+			w.writeInt(GROUP + "interval", interval);
+			w.writeFloat(GROUP + "fraction", fraction);
+		}
+		created = true;
+	}
+
+	// Append the rows of each worker of a sharded run. Blocks are kept as they are, so only the
+	// block offsets change.
+	public static void writeMerged(List<IHDF5Reader> shards, IHDF5Writer w, BehaviorOutputLayout layout)
+	{
+		TrajectoryRecorder merged = null;
+		long rows, blocks, size;
+		long[] offsets;
+
+		for(IHDF5Reader r : shards)
+		{
+			if(!r.exists(GROUP + "rowsWritten")) continue;
+
+			if(merged==null)
+			{
+				merged = new TrajectoryRecorder();
+				merged.layout = layout;
+				merged.interval = r.readInt(GROUP + "interval");
+				merged.fraction = r.readFloat(GROUP + "fraction");
+				merged.blockSize = r.readInt(GROUP + "blockSize");
+				merged.create(w);
+			}
+
+			rows = r.readLong(GROUP + "rowsWritten");
+			blocks = r.readLong(GROUP + "blocksWritten");
+
+			offsets = r.readLongArrayBlockWithOffset(GROUP + "blockOffset", (int) blocks, 0);
+			for(int i=0; i<offsets.length; i++)
+			{
+				offsets[i] += merged.rowsWritten;
+			}
+			w.writeLongArrayBlockWithOffset(GROUP + "blockOffset", offsets, offsets.length, merged.blocksWritten);
+
+			for(long offset=0; offset<rows; offset+=merged.blockSize)
+			{
+				size = Math.min(merged.blockSize, rows-offset);
+				w.writeIntArrayBlockWithOffset(GROUP + "particleId", r.readIntArrayBlockWithOffset(GROUP + "particleId", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeIntArrayBlockWithOffset(GROUP + "modelTime", r.readIntArrayBlockWithOffset(GROUP + "modelTime", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeIntArrayBlockWithOffset(GROUP + "waterBody", r.readIntArrayBlockWithOffset(GROUP + "waterBody", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeFloatArrayBlockWithOffset(GROUP + "x", r.readFloatArrayBlockWithOffset(GROUP + "x", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeFloatArrayBlockWithOffset(GROUP + "swimVelocity", r.readFloatArrayBlockWithOffset(GROUP + "swimVelocity", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeFloatArrayBlockWithOffset(GROUP + "confusionFactor", r.readFloatArrayBlockWithOffset(GROUP + "confusionFactor", (int) size, offset), (int) size, merged.rowsWritten+offset);
+				w.writeByteArrayBlockWithOffset(GROUP + "currentDirection", r.readByteArrayBlockWithOffset(GROUP + "currentDirection", (int) size, offset), (int) size, merged.rowsWritten+offset);
+			}
+
+			merged.rowsWritten += rows;
+			merged.blocksWritten += blocks;
+		}
+
+		if(merged!=null)
+		{
+			w.writeLong(GROUP + "rowsWritten", merged.rowsWritten);
+			w.writeLong(GROUP + "blocksWritten", merged.blocksWritten);
+		}
+	}
+
+	private void allocate()
+	{
+		particleId = new int[blockSize];
+		modelTime = new int[blockSize];
+		waterbody = new int[blockSize];
+		x = new float[blockSize];
+		swimVelocity = new float[blockSize];
+		confusionFactor = new float[blockSize];
+		currentDirection = new byte[blockSize];
+	}
+
+	public String toString()
+	{
+		return "trajectory interval=" + interval + ", fraction=" + fraction + ", blockSize=" + blockSize +
+				", rows=" + (rowsWritten + n);
+	}
+}
@@ -0,0 +1,77 @@
+package DWR.DMS.PTM;
+
+import java.util.Random;
+
+/**
+ * Standard normal deviates by the ziggurat method of Marsaglia and Tsang (2000) with 128 layers.
+ * About 98% of the draws take one 64-bit random number, a table lookup and a multiply; only the
+ * rest need exp or log. The layer and the value come from separate bits of the random number,
+ * which avoids the correlation between them in the original 32-bit version. The deviates are
+ * drawn from the generator that is passed in, so each fish keeps its own reproducible stream
+ * and its state is still captured by a behavior snapshot.
+ */
+public class ZigguratGaussian
+{
+	private static final int LAYERS = 128;
+	private static final double R = 3.442619855899;
+	private static final double V = 9.91256303526217e-3;
+	private static final double M1 = 2147483648.0;
+
+	private static final long[] kn = new long[LAYERS];
+	private static final double[] wn = new double[LAYERS];
+	private static final double[] fn = new double[LAYERS];
+
+	static
+	{
+		double dn = R, tn = R;
+		double q = V/Math.exp(-0.5*dn*dn);
+
+		kn[0] = (long) ((dn/q)*M1);
+		kn[1] = 0;
+		wn[0] = q/M1;
+		wn[LAYERS-1] = dn/M1;
+		fn[0] = 1.0;
+		fn[LAYERS-1] = Math.exp(-0.5*dn*dn);
+
+		for(int i=LAYERS-2; i>=1; i--)
+		{
+			dn = Math.sqrt(-2.0*Math.log(V/dn + Math.exp(-0.5*dn*dn)));
+			kn[i+1] = (long) ((dn/tn)*M1);
+			tn = dn;
+			fn[i] = Math.exp(-0.5*dn*dn);
+			wn[i] = dn/M1;
+		}
+	}
+
+	public static double next(Random generator)
+	{
+		long bits;
+		int hz, iz;
+		double x, y;
+
+		for(;;)
+		{
+			bits = generator.nextLong();
+			iz = (int) (bits & (LAYERS-1));
+			hz = (int) (bits >> 32);
+
+			// Inside the rectangle of the layer
+			if(Math.abs((long) hz)<kn[iz]) return hz*wn[iz];
+
+			// Tail beyond R
+			if(iz==0)
+			{
+				do
+				{
+					x = -Math.log(1.0 - generator.nextDouble())/R;
+					y = -Math.log(1.0 - generator.nextDouble());
+				} while(y+y<x*x);
+				return hz>0 ? R+x : -R-x;
+			}
+
+			// Wedge between the rectangle and the density
+			x = hz*wn[iz];
+			if(fn[iz] + generator.nextDouble()*(fn[iz-1]-fn[iz]) < Math.exp(-0.5*x*x)) return x;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package DWR.DMS.PTM;
+
+/**
+ * Measures the cost per time step of drawing the swim speed noise the way
+ * BehavedParticle.updatePosition does with variableSwimSpeed on: every fish draws one deviate from
+ * its own BehaviorRandom and scales it by its standard deviation. The polar method
+ * (BehaviorRandom.nextGaussian, the default) and ZigguratGaussian (fastGaussian) are timed over
+ * the same fish and steps, after a warm-up.
+ *
+ * Usage: java DWR.DMS.PTM.ZigguratGaussianBenchmark [-fish N] [-steps S]
+ */
+public class ZigguratGaussianBenchmark
+{
+	public static void main(String[] args)
+	{
+		int fish = 100000;
+		int steps = 200;
+		double polar, ziggurat;
+
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-fish")) fish = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-steps")) steps = Integer.parseInt(args[++i]);
+			else throw new IllegalArgumentException("Unrecognized option " + args[i]);
+		}
+
+		// Warm up both paths so they are compiled before they are timed
+		run(fish, steps/10 + 1, false);
+		run(fish, steps/10 + 1, true);
+
+		polar = run(fish, steps, false);
+		ziggurat = run(fish, steps, true);
+
+		System.out.println(String.format("%d fish, %d steps", fish, steps));
+		System.out.println(String.format("%-10s %12.3f ms/step %10.2f ns/draw", "polar", polar/1e6, polar/fish));
+		System.out.println(String.format("%-10s %12.3f ms/step %10.2f ns/draw", "ziggurat", ziggurat/1e6, ziggurat/fish));
+		System.out.println(String.format("speedup %.2f", polar/ziggurat));
+	}
+
+	// Nanoseconds per time step
+	private static double run(int fish, int steps, boolean fastGaussian)
+	{
+		BehaviorRandom[] generators = new BehaviorRandom[fish];
+		float[] stdSwimSpeed = new float[fish];
+		float[] epsSwimSpeed = new float[fish];
+		double sum = 0.0;
+		long start;
+
+		for(int i=0; i<fish; i++)
+		{
+			generators[i] = new BehaviorRandom(i + 1);
+			stdSwimSpeed[i] = 0.1f + 0.001f*(i%100);
+		}
+
+		start = System.nanoTime();
+		for(int s=0; s<steps; s++)
+		{
+			for(int i=0; i<fish; i++)
+			{
+				if(fastGaussian)
+				{
+					epsSwimSpeed[i] = (float) (ZigguratGaussian.next(generators[i])*stdSwimSpeed[i]);
+				}
+				else
+				{
+					epsSwimSpeed[i] = (float) (generators[i].nextGaussian()*stdSwimSpeed[i]);
+				}
+			}
+			sum += epsSwimSpeed[s%fish];
+		}
+		// Keep the draws from being optimized away
+		if(sum==Double.MAX_VALUE) System.out.println(sum);
+		return (System.nanoTime() - start)/(double) steps;
+	}
+}